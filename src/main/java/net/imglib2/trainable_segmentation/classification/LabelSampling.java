@@ -0,0 +1,119 @@
+package net.imglib2.trainable_segmentation.classification;
+
+import net.imglib2.Cursor;
+import net.imglib2.roi.labeling.LabelRegion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Selects a class balanced random subset of the labeled pixels. Only the
+ * positions of the selected pixels are returned, the features are therefore
+ * only calculated for these pixels.
+ * <p>
+ * Each class gets at most {@code maxSamplesPerClass} pixels. If the sum
+ * exceeds {@code maxSamples}, the total is divided evenly between the
+ * classes, and classes with fewer pixels leave their share to the others.
+ * <p>
+ * The pixels of a class are selected by reservoir sampling (Li's algorithm
+ * L), which skips over the pixels, that are not selected, with
+ * {@link Cursor#jumpFwd(long)}. The selected pixels are returned in the order
+ * of the cursor. The result only depends on the seed.
+ */
+class LabelSampling {
+
+	private final int maxSamplesPerClass;
+
+	private final int maxSamples;
+
+	private final long seed;
+
+	LabelSampling(int maxSamplesPerClass, int maxSamples, long seed) {
+		this.maxSamplesPerClass = maxSamplesPerClass;
+		this.maxSamples = maxSamples;
+		this.seed = seed;
+	}
+
+	/**
+	 * Returns the positions of the selected pixels of each class. The
+	 * coordinates of a pixel are stored one after the other.
+	 *
+	 * @param regions The label region of each class, or null if there are no
+	 *          labels for a class.
+	 */
+	List<long[]> sample(List<? extends LabelRegion<?>> regions) {
+		int[] sizes = new int[regions.size()];
+		for (int c = 0; c < sizes.length; c++) {
+			LabelRegion<?> region = regions.get(c);
+			sizes[c] = region == null ? 0 : (int) Math.min(maxSamplesPerClass, region.size());
+		}
+		int[] caps = balance(sizes, maxSamples);
+		Random random = new Random(seed);
+		List<long[]> positions = new ArrayList<>(sizes.length);
+		for (int c = 0; c < sizes.length; c++)
+			positions.add(caps[c] == 0 ? new long[0] : sample(regions.get(c), caps[c], random));
+		return positions;
+	}
+
+	/**
+	 * Reduces the given sizes, such that their sum is at most {@code total}.
+	 * Classes are processed from the smallest to the biggest, each class gets at
+	 * most an even share of the remaining total.
+	 */
+	static int[] balance(int[] sizes, int total) {
+		int[] caps = new int[sizes.length];
+		Integer[] order = IntStream.range(0, sizes.length).boxed().toArray(Integer[]::new);
+		Arrays.sort(order, Comparator.comparingInt(c -> sizes[c]));
+		long remaining = total;
+		for (int i = 0; i < order.length; i++) {
+			int c = order[i];
+			long share = remaining / (order.length - i);
+			caps[c] = (int) Math.min(sizes[c], share);
+			remaining -= caps[c];
+		}
+		return caps;
+	}
+
+	private static long[] sample(LabelRegion<?> region, int k, Random random) {
+		int n = region.numDimensions();
+		long size = region.size();
+		long[] indices = new long[k];
+		long[] positions = new long[Math.multiplyExact(k, n)];
+		long[] position = new long[n];
+		Cursor<Void> cursor = region.cursor();
+		for (int i = 0; i < k; i++) {
+			cursor.fwd();
+			cursor.localize(position);
+			System.arraycopy(position, 0, positions, i * n, n);
+			indices[i] = i;
+		}
+		double w = Math.exp(Math.log(random.nextDouble()) / k);
+		long index = k - 1;
+		while (true) {
+			double skip = Math.floor(Math.log(random.nextDouble()) / Math.log(1 - w));
+			if (!(skip < size - 1 - index))
+				break;
+			cursor.jumpFwd((long) skip + 1);
+			index += (long) skip + 1;
+			int slot = random.nextInt(k);
+			cursor.localize(position);
+			System.arraycopy(position, 0, positions, slot * n, n);
+			indices[slot] = index;
+			w *= Math.exp(Math.log(random.nextDouble()) / k);
+		}
+		return sortByIndex(indices, positions, n);
+	}
+
+	private static long[] sortByIndex(long[] indices, long[] positions, int n) {
+		Integer[] order = IntStream.range(0, indices.length).boxed().toArray(Integer[]::new);
+		Arrays.sort(order, Comparator.comparingLong(slot -> indices[slot]));
+		long[] sorted = new long[positions.length];
+		for (int i = 0; i < order.length; i++)
+			System.arraycopy(positions, order[i] * n, sorted, i * n, n);
+		return sorted;
+	}
+}
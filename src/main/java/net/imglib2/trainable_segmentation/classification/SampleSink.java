@@ -0,0 +1,16 @@
+package net.imglib2.trainable_segmentation.classification;
+
+/**
+ * Receives the feature vectors of labeled pixels, see
+ * {@link SparseFeatureExtraction} and {@link Trainer#addSampledPixels}. A
+ * {@link Training} is a sample sink, but so is any other sample storage, like
+ * {@link net.imglib2.trainable_segmentation.random_forest.ChunkedTrainingMatrix}.
+ */
+interface SampleSink {
+
+	/**
+	 * Adds a sample, whose feature values are stored in
+	 * {@code featureVector[offset ... offset + numberOfFeatures - 1]}.
+	 */
+	void add(float[] featureVector, int offset, int classIndex);
+}
@@ -11,11 +11,23 @@ import net.imglib2.trainable_segmentation.gpu.api.GpuApi;
 import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.imglib2.*;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.iterator.LocalizingIntervalIterator;
 import net.imglib2.trainable_segmentation.gpu.api.GpuCopy;
 import net.imglib2.trainable_segmentation.gpu.api.GpuPool;
+import net.imglib2.trainable_segmentation.random_forest.ChunkedTrainingMatrix;
 import net.imglib2.trainable_segmentation.random_forest.CpuRandomForestPrediction;
+import net.imglib2.trainable_segmentation.random_forest.FlattenedRandomForest;
+import net.imglib2.trainable_segmentation.random_forest.MappedTrainingMatrix;
+import net.imglib2.trainable_segmentation.random_forest.NativeRandomForest;
+import net.imglib2.trainable_segmentation.random_forest.OutOfBagStatistics;
+import net.imglib2.trainable_segmentation.random_forest.PredictionStatistic;
+import net.imglib2.trainable_segmentation.random_forest.TrainingMatrix;
+import net.imglib2.trainable_segmentation.random_forest.TransparentRandomForest;
+import net.imglib2.trainable_segmentation.gpu.random_forest.GpuRandomForestKernel;
 import net.imglib2.trainable_segmentation.gpu.random_forest.GpuRandomForestPrediction;
 import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureOp;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSetting;
 import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSettings;
 import net.imglib2.trainable_segmentation.RevampUtils;
 import net.imglib2.img.Img;
@@ -23,17 +35,23 @@ import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import net.imglib2.view.composite.Composite;
 import org.scijava.Context;
+import preview.net.imglib2.parallel.Parallelization;
 import weka.classifiers.Classifier;
 import weka.core.Attribute;
+import weka.core.DenseInstance;
 import weka.core.Instances;
 
+import java.nio.file.Path;
 import java.util.*;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -42,24 +60,66 @@ import java.util.stream.Stream;
  */
 public class Segmenter {
 
+	/**
+	 * Number of samples, whose feature values are gathered at once, when
+	 * converting a {@link TrainingMatrix} to weka {@link Instances}.
+	 */
+	private static final int GATHER_BLOCK_SIZE = 4096;
+
 	private final FeatureCalculator features;
 
 	private final List<String> classNames;
 
+	/**
+	 * The weka classifier, or null if the segmenter was loaded from the binary
+	 * format, see {@link #loadBinary}.
+	 */
 	private final weka.classifiers.Classifier classifier;
 
-	private GpuRandomForestPrediction predicition;
+	/**
+	 * Flattened copies of the trained {@link #classifier}. They are immutable and
+	 * shared by all concurrent calls to segment(...) and predict(...). They are
+	 * replaced after each training, and by {@link #setCpuEngine}, always while
+	 * holding {@link #predictionLock}.
+	 */
+	private volatile CpuModel cpuPrediction;
+
+	private volatile GpuRandomForestPrediction gpuPrediction;
+
+	private final Object predictionLock = new Object();
+
+	/**
+	 * Samples of the last incremental training, kept for the next
+	 * {@link #incrementalTraining(int)}. Null if the last training was not
+	 * incremental, or the segmenter was loaded.
+	 */
+	private ChunkedTrainingMatrix trainingData;
 
 	private boolean useGpu = false;
 
+	private volatile CpuRandomForestPrediction.Engine cpuEngine =
+		CpuRandomForestPrediction.Engine.ARRAYS;
+
+	private volatile int fusedTileSize = 0;
+
 	private Segmenter(List<String> classNames, FeatureCalculator features,
 		Classifier classifier)
 	{
 		this.classNames = Collections.unmodifiableList(classNames);
 		this.features = Objects.requireNonNull(features);
 		this.classifier = Objects.requireNonNull(classifier);
-		this.predicition = new GpuRandomForestPrediction(Cast.unchecked(classifier),
-			features.count());
+		updatePredictions();
+	}
+
+	private Segmenter(List<String> classNames, FeatureCalculator features,
+		FlattenedRandomForest forest)
+	{
+		this.classNames = Collections.unmodifiableList(classNames);
+		this.features = Objects.requireNonNull(features);
+		this.classifier = null;
+		this.cpuPrediction = new CpuModel(forest, cpuEngine);
+		this.gpuPrediction = GpuRandomForestPrediction.forFlattenedRandomForest(forest, features
+			.count());
 	}
 
 	public Segmenter(Context context, List<String> classNames, FeatureSettings features,
@@ -68,6 +128,10 @@ public class Segmenter {
 		this(classNames, new FeatureCalculator(context, features), classifier);
 	}
 
+	/**
+	 * Returns the weka classifier, or null if the segmenter was loaded from the
+	 * binary format.
+	 */
 	public Classifier getClassifier() {
 		return classifier;
 	}
@@ -77,6 +141,37 @@ public class Segmenter {
 		features.setUseGpu(useGpu);
 	}
 
+	/**
+	 * Selects the algorithm that is used to apply the random forest, when running
+	 * on the CPU.
+	 */
+	public void setCpuEngine(CpuRandomForestPrediction.Engine cpuEngine) {
+		Objects.requireNonNull(cpuEngine);
+		synchronized (predictionLock) {
+			this.cpuEngine = cpuEngine;
+			cpuPrediction = cpuPrediction.withEngine(cpuEngine);
+		}
+	}
+
+	/**
+	 * Enables the fused CPU execution mode. The output is processed in tiles of
+	 * the given size. The features of each tile are calculated into a reusable
+	 * buffer and the random forest is applied immediately. The feature stack of
+	 * the whole output is never allocated. Memory usage is proportional to
+	 * tileSize^n * number of features, independent of the output size. The
+	 * features are stored pixel interleaved, such that the random forest reads
+	 * each feature vector from contiguous memory.
+	 * <p>
+	 * Feature ops recalculate intermediate results in the margin around each
+	 * tile, therefore small tiles are slower. A tile size of 0 disables the fused
+	 * mode, which is the default.
+	 */
+	public void setFusedTileSize(int tileSize) {
+		if (tileSize < 0)
+			throw new IllegalArgumentException("Tile size must not be negative.");
+		this.fusedTileSize = tileSize;
+	}
+
 	public FeatureCalculator features() {
 		return features;
 	}
@@ -122,19 +217,23 @@ public class Segmenter {
 	private void segmentCpu(RandomAccessible<?> image,
 		RandomAccessibleInterval<? extends IntegerType<?>> out)
 	{
-		RandomAccessibleInterval<FloatType> featureValues = features.apply(image, out);
-		CpuRandomForestPrediction forest = new CpuRandomForestPrediction((FastRandomForest) classifier,
-			features.count());
-		forest.segment(featureValues, out);
+		CpuModel model = cpuPrediction;
+		int tileSize = fusedTileSize;
+		if (tileSize > 0) {
+			forEachTile(image, out, tileSize, model, (tile, featureValues) -> model.prediction
+				.segment(featureValues, Views.interval(out, tile)));
+			return;
+		}
+		RandomAccessibleInterval<FloatType> featureValues = features.apply(image, out,
+			model.usedFeatures);
+		model.prediction.segment(featureValues, out);
 	}
 
 	private void segmentGpu(RandomAccessible<?> image,
 		RandomAccessibleInterval<? extends IntegerType<?>> out)
 	{
 		try (GpuApi scope = GpuPool.borrowGpu()) {
-			GpuRandomForestPrediction prediction = new GpuRandomForestPrediction(Cast.unchecked(
-				classifier),
-				features.count());
+			GpuRandomForestPrediction prediction = gpuPrediction;
 			GpuImage featureStack = features.applyUseGpu(scope, image, out);
 			GpuImage segmentationBuffer = prediction.segment(scope, featureStack);
 			GpuCopy.copyFromTo(segmentationBuffer, out);
@@ -143,12 +242,24 @@ public class Segmenter {
 
 	public RandomAccessibleInterval<? extends RealType<?>> predict(
 		RandomAccessibleInterval<?> image)
+	{
+		return predict(image, new FloatType());
+	}
+
+	/**
+	 * Returns the probability map with the given pixel type. For
+	 * {@link UnsignedByteType} and {@link UnsignedShortType} the probabilities
+	 * are scaled to the range of the type, which needs much less memory than
+	 * {@link FloatType}.
+	 */
+	public <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> predict(
+		RandomAccessibleInterval<?> image, T type)
 	{
 		Objects.requireNonNull(image);
 		Interval outputInterval = features.outputIntervalFromInput(image);
-		RandomAccessibleInterval<FloatType> result = RevampUtils.createImage(RevampUtils
+		RandomAccessibleInterval<T> result = RevampUtils.createImage(RevampUtils
 			.appendDimensionToInterval(
-				outputInterval, 0, classNames.size() - 1), new FloatType());
+				outputInterval, 0, classNames.size() - 1), type);
 		predict(result, Views.extendBorder(image));
 		return result;
 	}
@@ -168,36 +279,234 @@ public class Segmenter {
 		RandomAccessible<?> image)
 	{
 		Interval interval = RevampUtils.removeLastDimension(out);
-		RandomAccessibleInterval<FloatType> featureValues = features.apply(image, interval);
-		CpuRandomForestPrediction prediction = new CpuRandomForestPrediction(Cast.unchecked(classifier),
-			features.count());
-		prediction.distribution(featureValues, out);
+		CpuModel model = cpuPrediction;
+		int tileSize = fusedTileSize;
+		if (tileSize > 0) {
+			forEachTile(image, interval, tileSize, model, (tile, featureValues) -> model.prediction
+				.distribution(featureValues, Views.interval(out, RevampUtils.appendDimensionToInterval(
+					tile, out.min(interval.numDimensions()), out.max(interval.numDimensions())))));
+			return;
+		}
+		RandomAccessibleInterval<FloatType> featureValues = features.apply(image, interval,
+			model.usedFeatures);
+		model.prediction.distribution(featureValues, out);
 	}
 
 	private void predictGpu(RandomAccessibleInterval<? extends RealType<?>> out,
 		RandomAccessible<?> image)
 	{
 		Interval interval = RevampUtils.removeLastDimension(out);
-		GpuRandomForestPrediction prediction = new GpuRandomForestPrediction(Cast.unchecked(classifier),
-			features.count());
+		GpuRandomForestPrediction prediction = gpuPrediction;
 		try (GpuApi scope = GpuPool.borrowGpu()) {
 			GpuImage featureStack = features.applyUseGpu(scope, image, interval);
 			GpuImage distribution = scope.create(featureStack.getDimensions(), classNames.size(),
-				NativeTypeEnum.Float);
+				gpuProbabilityType(out));
 			prediction.distribution(scope, featureStack, distribution);
 			GpuCopy.copyFromTo(distribution, out);
 		}
 	}
 
+	/**
+	 * Applies the segmenter to the image, and computes the given statistics from
+	 * the class probabilities of each pixel. The result has one channel per
+	 * statistic. The probability map itself is never stored, which saves a lot
+	 * of memory compared to {@link #predict(RandomAccessibleInterval)}.
+	 *
+	 * @throws IllegalArgumentException if a statistic is listed twice.
+	 */
+	public RandomAccessibleInterval<FloatType> predictStatistics(RandomAccessibleInterval<?> image,
+		PredictionStatistic... statistics)
+	{
+		Objects.requireNonNull(image);
+		requireDistinct(statistics);
+		Interval outputInterval = features.outputIntervalFromInput(image);
+		RandomAccessibleInterval<FloatType> result = RevampUtils.createImage(RevampUtils
+			.appendDimensionToInterval(outputInterval, 0, statistics.length - 1), new FloatType());
+		predictStatistics(result, Views.extendBorder(image), statistics);
+		return result;
+	}
+
+	/**
+	 * See {@link #predictStatistics(RandomAccessibleInterval, PredictionStatistic...)}.
+	 * The channel axes length of the output image must equal the number of
+	 * statistics.
+	 */
+	public void predictStatistics(RandomAccessibleInterval<? extends RealType<?>> out,
+		RandomAccessible<?> image, PredictionStatistic... statistics)
+	{
+		Objects.requireNonNull(out);
+		Objects.requireNonNull(image);
+		requireDistinct(statistics);
+		if (useGpu)
+			predictStatisticsGpu(out, image, statistics);
+		else
+			predictStatisticsCpu(out, image, statistics);
+	}
+
+	/**
+	 * The GPU kernel computes each statistic only once, see
+	 * {@link GpuRandomForestKernel#statistics}. Duplicates are therefore rejected
+	 * on both, CPU and GPU.
+	 */
+	private static void requireDistinct(PredictionStatistic[] statistics) {
+		if (Arrays.stream(statistics).distinct().count() != statistics.length)
+			throw new IllegalArgumentException("Each statistic can only be computed once.");
+	}
+
+	private void predictStatisticsCpu(RandomAccessibleInterval<? extends RealType<?>> out,
+		RandomAccessible<?> image, PredictionStatistic[] statistics)
+	{
+		Interval interval = RevampUtils.removeLastDimension(out);
+		CpuModel model = cpuPrediction;
+		int tileSize = fusedTileSize;
+		if (tileSize > 0) {
+			forEachTile(image, interval, tileSize, model, (tile, featureValues) -> model.prediction
+				.statistics(featureValues, Views.interval(out, RevampUtils.appendDimensionToInterval(
+					tile, out.min(interval.numDimensions()), out.max(interval.numDimensions()))), statistics));
+			return;
+		}
+		RandomAccessibleInterval<FloatType> featureValues = features.apply(image, interval,
+			model.usedFeatures);
+		model.prediction.statistics(featureValues, out, statistics);
+	}
+
+	private void predictStatisticsGpu(RandomAccessibleInterval<? extends RealType<?>> out,
+		RandomAccessible<?> image, PredictionStatistic[] statistics)
+	{
+		Interval interval = RevampUtils.removeLastDimension(out);
+		GpuRandomForestPrediction prediction = gpuPrediction;
+		try (GpuApi scope = GpuPool.borrowGpu()) {
+			GpuImage featureStack = features.applyUseGpu(scope, image, interval);
+			GpuImage result = prediction.statistics(scope, featureStack, statistics);
+			GpuCopy.copyFromTo(result, out);
+		}
+	}
+
 	public List<String> classNames() {
 		return classNames;
 	}
 
 	public Training training() {
-		return new MyTrainingData();
+		requireClassifier();
+		return new MyTrainingData(0);
+	}
+
+	/**
+	 * Returns a {@link Training} for a warm start. Only the new samples must be
+	 * added to it, they are appended to the samples of the previous incremental
+	 * training. Samples that are added again are duplicated. Instead of training
+	 * the whole random forest again, {@code numNewTrees} new trees are trained,
+	 * with emphasis on the new samples, and replace the oldest trees. See
+	 * {@link NativeRandomForest#update}.
+	 * <p>
+	 * The samples are only kept between incremental trainings. If the previous
+	 * training was not incremental, or the segmenter was loaded with
+	 * {@link #fromJson}, the whole random forest is trained on the samples added
+	 * to the returned {@link Training}, which then must contain all samples.
+	 * <p>
+	 * Requires the classifier to be a {@link NativeRandomForest}.
+	 */
+	public Training incrementalTraining(int numNewTrees) {
+		requireClassifier();
+		if (!(classifier instanceof NativeRandomForest))
+			throw new UnsupportedOperationException(
+				"Incremental training requires a NativeRandomForest.");
+		if (numNewTrees < 1)
+			throw new IllegalArgumentException("Number of new trees must be positive.");
+		return new MyTrainingData(numNewTrees);
+	}
+
+	/**
+	 * Returns the out of bag accuracy and feature importance of the last
+	 * training, or null. They are only calculated by a
+	 * {@link NativeRandomForest}, see
+	 * {@link NativeRandomForest#setComputeOutOfBagStatistics(boolean)}. The
+	 * feature indices refer to {@link FeatureCalculator#attributeLabels()}.
+	 */
+	public OutOfBagStatistics outOfBagStatistics() {
+		return classifier instanceof NativeRandomForest ? ((NativeRandomForest) classifier)
+			.getOutOfBagStatistics() : null;
+	}
+
+	/**
+	 * Proposes reduced feature settings, that only contain the feature ops,
+	 * which calculate the k most important features, see
+	 * {@link #outOfBagStatistics()}. A feature op may calculate several features,
+	 * the reduced settings may therefore have more than k features.
+	 */
+	public FeatureSettings mostImportantFeatureSettings(int k) {
+		OutOfBagStatistics statistics = outOfBagStatistics();
+		if (statistics == null)
+			throw new IllegalStateException("The segmenter has no out of bag statistics.");
+		// NB: The features of all image channels are interleaved, see
+		// FeatureCalculator.attributeLabels().
+		List<FeatureOp> ops = features.features();
+		int channels = features.settings().globals().channelSetting().channels().size();
+		int[] opOfFeature = new int[features.count() / channels];
+		for (int op = 0, index = 0; op < ops.size(); op++)
+			for (int i = 0; i < ops.get(op).count(); i++)
+				opOfFeature[index++] = op;
+		BitSet selected = new BitSet();
+		for (int feature : statistics.mostImportantFeatures(k))
+			selected.set(opOfFeature[feature / channels]);
+		List<FeatureSetting> settings = features.settings().features();
+		return new FeatureSettings(features.settings().globals(), selected.stream().mapToObj(
+			settings::get).collect(Collectors.toList()));
+	}
+
+	/**
+	 * Returns a {@link Training}, that appends the samples to the given
+	 * {@link MappedTrainingMatrix}, instead of keeping them on the Java heap.
+	 * Samples added by concurrent {@link Training.Buffer}s are stored in the
+	 * order they arrive. The file can later be opened again, see
+	 * {@link MappedTrainingMatrix#open}, and passed to
+	 * {@link #train(TrainingMatrix)}.
+	 */
+	public Training training(MappedTrainingMatrix storage) {
+		requireClassifier();
+		requireMatchingData(storage);
+		return new MappedTrainingData(storage);
+	}
+
+	/**
+	 * Trains the classifier on the given samples. The number of features and
+	 * classes must match the segmenter.
+	 */
+	public void train(TrainingMatrix data) {
+		requireClassifier();
+		requireMatchingData(data);
+		trainingData = null;
+		trainClassifier(data);
+	}
+
+	private void requireMatchingData(TrainingMatrix data) {
+		if (data.numberOfFeatures() != features.count() || data.numberOfClasses() != classNames
+			.size())
+			throw new IllegalArgumentException(
+				"Number of features or classes of the training data differs from the segmenter.");
+	}
+
+	/**
+	 * Trains the classifier in the {@link Parallelization} context of the caller.
+	 * A {@link NativeRandomForest} trains its trees on the caller's
+	 * {@link preview.net.imglib2.parallel.TaskExecutor}. A
+	 * {@link FastRandomForest} uses its own thread pool, its number of threads is
+	 * therefore set to the parallelism of the caller's context.
+	 */
+	private void trainClassifier(TrainingMatrix data) {
+		if (classifier instanceof NativeRandomForest)
+			((NativeRandomForest) classifier).train(data);
+		else {
+			if (classifier instanceof FastRandomForest)
+				((FastRandomForest) classifier).setNumThreads(Parallelization.getTaskExecutor()
+					.getParallelism());
+			RevampUtils.wrapException(() -> classifier.buildClassifier(toInstances(data)));
+		}
+		updatePredictions();
 	}
 
 	public JsonElement toJsonTree() {
+		requireClassifier();
 		JsonObject json = new JsonObject();
 		json.add("features", features.settings().toJson());
 		json.add("classNames", new Gson().toJsonTree(classNames));
@@ -215,32 +524,304 @@ public class Segmenter {
 			ClassifierSerialization.jsonToWeka(object.get("classifier")));
 	}
 
+	/**
+	 * Writes the segmenter into a binary file. The file contains the feature
+	 * settings, the class names, and the random forest in its flattened form. It
+	 * can be loaded much faster than the JSON format, but does not contain the
+	 * weka classifier. A segmenter loaded from the binary format can therefore
+	 * not be trained further.
+	 */
+	public void saveBinary(Path file) {
+		JsonObject header = new JsonObject();
+		header.add("features", features.settings().toJson());
+		header.add("classNames", new Gson().toJsonTree(classNames));
+		RevampUtils.wrapException(() -> SegmenterBinaryFormat.write(file, header,
+			cpuPrediction.flattened()));
+	}
+
+	/**
+	 * Loads a segmenter, that was written by {@link #saveBinary(Path)}.
+	 */
+	public static Segmenter loadBinary(Context context, Path file) {
+		return RevampUtils.wrapException(() -> SegmenterBinaryFormat.read(file, (header,
+			forest) -> {
+			JsonObject object = header.getAsJsonObject();
+			List<String> classNames = new Gson().fromJson(object.get("classNames"),
+				new TypeToken<List<String>>()
+				{}.getType());
+			FeatureSettings featureSettings = FeatureSettings.fromJson(object.get("features"));
+			return new Segmenter(classNames, new FeatureCalculator(context, featureSettings),
+				forest);
+		}));
+	}
+
+	/**
+	 * Stores the samples as float columns, see {@link ChunkedTrainingMatrix}. A
+	 * {@link NativeRandomForest} is trained directly on the columns, all other
+	 * classifiers get a copy as weka {@link Instances}.
+	 * <p>
+	 * Each buffer has its own {@link ChunkedTrainingMatrix}. The buffers are
+	 * concatenated in {@link #train()}.
+	 * <p>
+	 * If {@link #numNewTrees} is positive, the samples are appended to the
+	 * previous {@link #trainingData}, if any, and the random forest is updated,
+	 * see {@link #incrementalTraining(int)}.
+	 */
 	private class MyTrainingData implements Training {
 
-		final Instances instances;
+		final int numNewTrees;
+
+		final int featureCount = features.count();
 
-		final int featureCount;
+		final List<ChunkedTrainingMatrix> buffers = new ArrayList<>();
 
-		MyTrainingData() {
-			this.instances = new Instances("segment", new ArrayList<>(attributes()), 1);
-			this.featureCount = features.count();
-			instances.setClassIndex(featureCount);
+		final ChunkedTrainingMatrix defaultBuffer = newMatrix();
+
+		final float[] values = new float[featureCount];
+
+		MyTrainingData(int numNewTrees) {
+			this.numNewTrees = numNewTrees;
 		}
 
 		@Override
 		public void add(Composite<? extends RealType<?>> featureVector, int classIndex) {
-			instances.add(RevampUtils.getInstance(featureCount, classIndex, featureVector));
+			for (int i = 0; i < featureCount; i++)
+				values[i] = featureVector.get(i).getRealFloat();
+			defaultBuffer.add(values, 0, classIndex);
+		}
+
+		@Override
+		public void add(float[] featureVector, int offset, int classIndex) {
+			defaultBuffer.add(featureVector, offset, classIndex);
+		}
+
+		@Override
+		public Buffer newBuffer() {
+			ChunkedTrainingMatrix buffer = newMatrix();
+			float[] values = new float[featureCount];
+			return (featureVector, classIndex) -> {
+				for (int i = 0; i < featureCount; i++)
+					values[i] = featureVector.get(i).getRealFloat();
+				buffer.add(values, 0, classIndex);
+			};
+		}
+
+		private ChunkedTrainingMatrix newMatrix() {
+			ChunkedTrainingMatrix matrix = new ChunkedTrainingMatrix(featureCount, classNames.size());
+			synchronized (buffers) {
+				buffers.add(matrix);
+			}
+			return matrix;
 		}
 
 		@Override
 		public void train() {
-			RevampUtils.wrapException(() -> classifier.buildClassifier(instances));
-			predicition = new GpuRandomForestPrediction(Cast.unchecked(classifier), features.count());
+			ChunkedTrainingMatrix data = new ChunkedTrainingMatrix(featureCount, classNames.size());
+			boolean incremental = numNewTrees > 0;
+			boolean update = incremental && trainingData != null;
+			if (update)
+				data.addAll(trainingData);
+			int firstNewSample = data.numberOfSamples();
+			synchronized (buffers) {
+				buffers.forEach(data::addAll);
+			}
+			if (update) {
+				((NativeRandomForest) classifier).update(data, firstNewSample, numNewTrees);
+				updatePredictions();
+			}
+			else
+				trainClassifier(data);
+			trainingData = incremental ? data : null;
+		}
+	}
+
+	/**
+	 * Stores the samples in a {@link MappedTrainingMatrix}, see
+	 * {@link #training(MappedTrainingMatrix)}.
+	 */
+	private class MappedTrainingData implements Training {
+
+		final MappedTrainingMatrix storage;
+
+		final float[] values = new float[features.count()];
+
+		MappedTrainingData(MappedTrainingMatrix storage) {
+			this.storage = storage;
+		}
+
+		@Override
+		public void add(Composite<? extends RealType<?>> featureVector, int classIndex) {
+			for (int i = 0; i < values.length; i++)
+				values[i] = featureVector.get(i).getRealFloat();
+			storage.add(values, 0, classIndex);
+		}
+
+		@Override
+		public void add(float[] featureVector, int offset, int classIndex) {
+			storage.add(featureVector, offset, classIndex);
+		}
+
+		@Override
+		public void train() {
+			storage.flush();
+			Segmenter.this.train(storage);
+		}
+	}
+
+	/**
+	 * The random forest used on the CPU only reads the features used by at least
+	 * one tree node. Only these features are calculated, the remaining feature ops
+	 * are skipped. The attribute indices of the forest are remapped accordingly.
+	 */
+	private static class CpuModel {
+
+		/**
+		 * The trained random forest, or null if the segmenter was loaded from the
+		 * binary format.
+		 */
+		private final TransparentRandomForest forest;
+
+		/**
+		 * The random forest loaded from the binary format, or null.
+		 */
+		private final FlattenedRandomForest flattened;
+
+		private final int[] usedFeatures;
+
+		private final CpuRandomForestPrediction prediction;
+
+		private CpuModel(TransparentRandomForest forest, CpuRandomForestPrediction.Engine engine) {
+			this.forest = forest;
+			this.flattened = null;
+			this.usedFeatures = forest.usedAttributes();
+			this.prediction = new CpuRandomForestPrediction(forest.selectAttributes(usedFeatures),
+				usedFeatures.length, engine);
+		}
+
+		private CpuModel(FlattenedRandomForest flattened, CpuRandomForestPrediction.Engine engine) {
+			this.forest = null;
+			this.flattened = flattened;
+			this.usedFeatures = flattened.usedAttributes();
+			this.prediction = new CpuRandomForestPrediction(flattened.selectAttributes(
+				usedFeatures), usedFeatures.length, engine);
+		}
+
+		private CpuModel withEngine(CpuRandomForestPrediction.Engine engine) {
+			return forest != null ? new CpuModel(forest, engine) : new CpuModel(flattened, engine);
+		}
+
+		private FlattenedRandomForest flattened() {
+			return flattened != null ? flattened : FlattenedRandomForest.flatten(forest);
 		}
 	}
 
 	// -- Helper methods --
 
+	/**
+	 * The random forest kernel writes scaled probabilities directly for
+	 * {@link UnsignedByteType} and {@link UnsignedShortType}. Any other pixel
+	 * type gets float probabilities, that are converted when copied to the
+	 * output image.
+	 */
+	private static NativeTypeEnum gpuProbabilityType(
+		RandomAccessibleInterval<? extends RealType<?>> out)
+	{
+		RealType<?> type = Util.getTypeFromInterval(out);
+		if (type instanceof UnsignedByteType)
+			return NativeTypeEnum.UnsignedByte;
+		if (type instanceof UnsignedShortType)
+			return NativeTypeEnum.UnsignedShort;
+		return NativeTypeEnum.Float;
+	}
+
+	/**
+	 * Splits the interval into tiles of the given size, see
+	 * {@link #setFusedTileSize}. Calculates the features for each tile and
+	 * passes them to the given action. All tiles share the same feature buffer.
+	 * The features are stored pixel interleaved, see
+	 * {@link FeatureCalculator#applyInterleaved}.
+	 */
+	private void forEachTile(RandomAccessible<?> image, Interval interval, int size,
+		CpuModel model, BiConsumer<Interval, float[]> action)
+	{
+		if (Intervals.numElements(interval) == 0)
+			return;
+		int n = interval.numDimensions();
+		int numberOfFeatures = model.usedFeatures.length;
+		long[] tileSize = new long[n];
+		long[] gridMax = new long[n];
+		for (int d = 0; d < n; d++) {
+			tileSize[d] = Math.min(size, interval.dimension(d));
+			gridMax[d] = (interval.dimension(d) - 1) / tileSize[d];
+		}
+		long bufferSize = Intervals.numElements(tileSize) * numberOfFeatures;
+		if (bufferSize > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Fused tile size is too big.");
+		float[] buffer = new float[(int) bufferSize];
+		LocalizingIntervalIterator grid = new LocalizingIntervalIterator(new long[n], gridMax);
+		long[] min = new long[n];
+		long[] max = new long[n];
+		while (grid.hasNext()) {
+			grid.fwd();
+			for (int d = 0; d < n; d++) {
+				min[d] = interval.min(d) + grid.getLongPosition(d) * tileSize[d];
+				max[d] = Math.min(min[d] + tileSize[d] - 1, interval.max(d));
+			}
+			Interval tile = new FinalInterval(min, max);
+			features.applyInterleaved(image, tile, model.usedFeatures, buffer);
+			action.accept(tile, buffer);
+		}
+	}
+
+	private void updatePredictions() {
+		if (classifier instanceof NativeRandomForest) {
+			updatePredictions(((NativeRandomForest) classifier).getForest());
+			return;
+		}
+		FastRandomForest forest = Cast.unchecked(classifier);
+		updatePredictions(TransparentRandomForest.forFastRandomForest(forest));
+	}
+
+	private void updatePredictions(TransparentRandomForest forest) {
+		synchronized (predictionLock) {
+			cpuPrediction = new CpuModel(forest, cpuEngine);
+			gpuPrediction = new GpuRandomForestPrediction(forest, features.count(), gpuPrediction);
+		}
+	}
+
+	private void requireClassifier() {
+		if (classifier == null)
+			throw new UnsupportedOperationException(
+				"The segmenter was loaded from the binary format, and has no weka classifier.");
+	}
+
+	private Instances toInstances(TrainingMatrix data) {
+		int featureCount = data.numberOfFeatures();
+		int numberOfSamples = data.numberOfSamples();
+		Instances instances = new Instances("segment", new ArrayList<>(attributes()),
+			numberOfSamples);
+		instances.setClassIndex(featureCount);
+		int[] samples = new int[numberOfSamples];
+		for (int i = 0; i < numberOfSamples; i++)
+			samples[i] = i;
+		// NB: Gather each feature column block wise, and fill the rows of the block.
+		float[] column = new float[Math.min(GATHER_BLOCK_SIZE, numberOfSamples)];
+		for (int from = 0; from < numberOfSamples; from += GATHER_BLOCK_SIZE) {
+			int to = Math.min(from + GATHER_BLOCK_SIZE, numberOfSamples);
+			double[][] rows = new double[to - from][featureCount + 1];
+			for (int f = 0; f < featureCount; f++) {
+				data.gather(f, samples, from, to, column);
+				for (int i = 0; i < to - from; i++)
+					rows[i][f] = column[i];
+			}
+			for (int i = 0; i < to - from; i++) {
+				rows[i][featureCount] = data.classIndex(from + i);
+				instances.add(new DenseInstance(1.0, rows[i]));
+			}
+		}
+		return instances;
+	}
+
 	private List<Attribute> attributes() {
 		Stream<Attribute> featureAttributes = features.attributeLabels().stream().map(Attribute::new);
 		Stream<Attribute> classAttribute = Stream.of(new Attribute("class", classNames));
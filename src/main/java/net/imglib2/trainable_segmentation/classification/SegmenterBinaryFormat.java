@@ -0,0 +1,89 @@
+package net.imglib2.trainable_segmentation.classification;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import net.imglib2.trainable_segmentation.random_forest.FlattenedRandomForest;
+import net.imglib2.trainable_segmentation.random_forest.RandomForestBinaryFormat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiFunction;
+
+/**
+ * Binary file format for a {@link Segmenter}. All values are 32 bit little
+ * endian:
+ * <ul>
+ * <li>int magic number, int version</li>
+ * <li>int n, byte[n] UTF-8 encoded JSON header, padded to a multiple of four
+ * bytes. The header contains the feature settings and class names.</li>
+ * <li>the random forest, see {@link RandomForestBinaryFormat}</li>
+ * </ul>
+ */
+class SegmenterBinaryFormat {
+
+	private static final int MAGIC = 0x47455354; // "TSEG"
+
+	private static final int VERSION = 2;
+
+	static void write(Path file, JsonElement header, FlattenedRandomForest forest)
+		throws IOException
+	{
+		byte[] json = header.toString().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(12 + pad(json.length)).order(
+			ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(json.length);
+		buffer.put(json);
+		buffer.position(buffer.capacity());
+		buffer.flip();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			RandomForestBinaryFormat.write(forest, channel);
+		}
+	}
+
+	static <T> T read(Path file, BiFunction<JsonElement, FlattenedRandomForest, T> factory)
+		throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer start = readFully(channel, 12);
+			if (start.getInt() != MAGIC)
+				throw new IOException("Not a binary segmenter file: " + file);
+			int version = start.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported version of the binary segmenter format: " +
+					version);
+			int length = start.getInt();
+			if (length < 0 || length > channel.size())
+				throw new IOException("Invalid binary segmenter file: " + file);
+			ByteBuffer json = readFully(channel, pad(length));
+			JsonElement header = new Gson().fromJson(new String(json.array(), 0, length,
+				StandardCharsets.UTF_8), JsonElement.class);
+			FlattenedRandomForest forest = RandomForestBinaryFormat.read(channel);
+			return factory.apply(header, forest);
+		}
+	}
+
+	private static int pad(int length) {
+		return (length + 3) & ~3;
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, int numBytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(numBytes).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0)
+				throw new EOFException();
+		buffer.flip();
+		return buffer;
+	}
+}
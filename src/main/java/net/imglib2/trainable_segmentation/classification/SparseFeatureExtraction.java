@@ -0,0 +1,286 @@
+package net.imglib2.trainable_segmentation.classification;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.roi.labeling.LabelRegion;
+import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.GlobalSettings;
+import net.imglib2.util.Intervals;
+import preview.net.imglib2.parallel.Parallelization;
+import preview.net.imglib2.parallel.TaskExecutor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calculates the feature vectors of labeled pixels, without calculating the
+ * features of the whole image. The image is divided into tiles, and the
+ * features are only calculated for the tiles that contain labeled pixels. The
+ * {@link FeatureCalculator} takes care of the margin that each tile needs.
+ * <p>
+ * The filters read a margin of pixels around each tile, which is calculated
+ * again for every tile. The tiles are therefore made large compared to this
+ * margin, and the tiles are only used, if their volume including the margin is
+ * clearly smaller than the volume of the dense feature stack including the
+ * margin.
+ * <p>
+ * The samples are added to the {@link SampleSink} in the same order as by
+ * {@link Trainer#trainLabeledFeatures}, the training result is therefore the
+ * same as with the dense feature stack.
+ */
+class SparseFeatureExtraction {
+
+	/**
+	 * Minimal number of pixels per tile.
+	 */
+	private static final int PIXELS_PER_TILE = 1 << 16;
+
+	/**
+	 * Minimal ratio between the edge length of a tile and the margin.
+	 */
+	private static final int TILE_TO_MARGIN_RATIO = 4;
+
+	/**
+	 * Maximal number of feature values per tile. This limits the size of the
+	 * feature buffer needed for each tile. It takes precedence over
+	 * {@link #PIXELS_PER_TILE} and {@link #TILE_TO_MARGIN_RATIO}, if there are
+	 * many features.
+	 */
+	private static final int MAX_BUFFER_SIZE = 1 << 24;
+
+	/**
+	 * The dense feature stack is used, if the tiles with labels, including their
+	 * margin, would cover more than this fraction of the image including its
+	 * margin.
+	 */
+	private static final double MAX_COVERED_FRACTION = 0.5;
+
+	private final FeatureCalculator features;
+
+	private final Interval interval;
+
+	private final long[] margin;
+
+	private final long[] tileSize;
+
+	private final long[] gridSize;
+
+	/**
+	 * Number of feature values of a tile, {@code numElements(tileSize) * count}.
+	 */
+	private final long bufferSize;
+
+	private final Map<Long, Integer> tileIds = new HashMap<>();
+
+	private final List<Interval> tiles = new ArrayList<>();
+
+	private int numberOfSamples = 0;
+
+	private int[] sampleTiles = new int[16];
+
+	private int[] sampleOffsets = new int[16];
+
+	private int[] sampleClasses = new int[16];
+
+	private SparseFeatureExtraction(FeatureCalculator features, Interval interval) {
+		this.features = features;
+		this.interval = interval;
+		int n = interval.numDimensions();
+		this.margin = estimateMargin(features.settings().globals(), n);
+		long minEdge = Math.max(1, (long) Math.pow(PIXELS_PER_TILE, 1.0 / n));
+		long maxEdge = Math.max(1, (long) Math.pow((double) MAX_BUFFER_SIZE / features.count(),
+			1.0 / n));
+		this.tileSize = new long[n];
+		this.gridSize = new long[n];
+		for (int d = 0; d < n; d++) {
+			long edge = Math.min(Math.max(minEdge, TILE_TO_MARGIN_RATIO * margin[d]), maxEdge);
+			tileSize[d] = Math.min(edge, interval.dimension(d));
+			gridSize[d] = (interval.dimension(d) - 1) / tileSize[d] + 1;
+		}
+		this.bufferSize = Intervals.numElements(tileSize) * features.count();
+	}
+
+	/**
+	 * Estimates the number of pixels, that the features read around each pixel,
+	 * from the largest sigma. The Gaussian kernels reach about 3 sigma, the
+	 * derivatives and the smoothing of the structure tensor add some more.
+	 */
+	private static long[] estimateMargin(GlobalSettings globals, int n) {
+		double maxSigma = globals.sigmas().stream().mapToDouble(x -> x).max().orElse(0);
+		double[] pixelSize = globals.pixelSizeAsDoubleArray();
+		long[] margin = new long[n];
+		for (int d = 0; d < n; d++)
+			margin[d] = (long) Math.ceil(4 * maxSigma / (d < pixelSize.length ? pixelSize[d] : 1)) +
+				1;
+		return margin;
+	}
+
+	/**
+	 * Adds the labeled pixels to the sink. Returns false, and adds nothing,
+	 * if the labels cover too much of the image, such that calculating the dense
+	 * feature stack is faster.
+	 *
+	 * @param regions The label region of each class, or null if there are no
+	 *          labels for a class.
+	 */
+	static boolean addLabeledPixels(FeatureCalculator features, RandomAccessible<?> extendedImage,
+		Interval interval, List<? extends LabelRegion<?>> regions, SampleSink sink)
+	{
+		SparseFeatureExtraction extraction = new SparseFeatureExtraction(features, interval);
+		long[] position = new long[interval.numDimensions()];
+		for (int classIndex = 0; classIndex < regions.size(); classIndex++) {
+			LabelRegion<?> region = regions.get(classIndex);
+			if (region == null)
+				continue;
+			Cursor<Void> cursor = region.cursor();
+			while (cursor.hasNext()) {
+				cursor.fwd();
+				cursor.localize(position);
+				extraction.collectSample(position, classIndex);
+			}
+		}
+		return extraction.addSamples(extendedImage, sink);
+	}
+
+	/**
+	 * Same as {@link #addLabeledPixels}, but for the pixel positions selected by
+	 * {@link LabelSampling}.
+	 *
+	 * @param positions The positions of the pixels of each class, see
+	 *          {@link LabelSampling#sample}.
+	 */
+	static boolean addSampledPixels(FeatureCalculator features, RandomAccessible<?> extendedImage,
+		Interval interval, List<long[]> positions, SampleSink sink)
+	{
+		SparseFeatureExtraction extraction = new SparseFeatureExtraction(features, interval);
+		int n = interval.numDimensions();
+		long[] position = new long[n];
+		for (int classIndex = 0; classIndex < positions.size(); classIndex++) {
+			long[] classPositions = positions.get(classIndex);
+			for (int i = 0; i < classPositions.length; i += n) {
+				System.arraycopy(classPositions, i, position, 0, n);
+				extraction.collectSample(position, classIndex);
+			}
+		}
+		return extraction.addSamples(extendedImage, sink);
+	}
+
+	private boolean addSamples(RandomAccessible<?> extendedImage, SampleSink sink) {
+		int count = features.count();
+		double coveredPixels = 0;
+		for (Interval tile : tiles)
+			coveredPixels += volumeWithMargin(tile);
+		long featureValues = (long) numberOfSamples * count;
+		if (coveredPixels > MAX_COVERED_FRACTION * volumeWithMargin(interval) ||
+			featureValues > Integer.MAX_VALUE - 8 || bufferSize > MAX_BUFFER_SIZE)
+			return false;
+		float[] vectors = calculateFeatureVectors(extendedImage);
+		for (int i = 0; i < numberOfSamples; i++)
+			sink.add(vectors, i * count, sampleClasses[i]);
+		return true;
+	}
+
+	private double volumeWithMargin(Interval interval) {
+		double volume = 1;
+		for (int d = 0; d < interval.numDimensions(); d++)
+			volume *= interval.dimension(d) + 2 * margin[d];
+		return volume;
+	}
+
+	private void collectSample(long[] position, int classIndex) {
+		int n = interval.numDimensions();
+		long key = 0;
+		for (int d = n - 1; d >= 0; d--) {
+			long p = position[d] - interval.min(d);
+			if (p < 0 || p >= interval.dimension(d))
+				throw new IllegalArgumentException("Labeled pixel outside of the image.");
+			key = key * gridSize[d] + p / tileSize[d];
+		}
+		int tileId = tileId(key, position);
+		Interval tile = tiles.get(tileId);
+		int offset = 0;
+		for (int d = n - 1; d >= 0; d--)
+			offset = offset * (int) tile.dimension(d) + (int) (position[d] - tile.min(d));
+		addSample(tileId, offset, classIndex);
+	}
+
+	private int tileId(long key, long[] position) {
+		Integer id = tileIds.get(key);
+		if (id != null)
+			return id;
+		int n = position.length;
+		long[] min = new long[n];
+		long[] max = new long[n];
+		for (int d = 0; d < n; d++) {
+			long gridPosition = (position[d] - interval.min(d)) / tileSize[d];
+			min[d] = interval.min(d) + gridPosition * tileSize[d];
+			max[d] = Math.min(min[d] + tileSize[d] - 1, interval.max(d));
+		}
+		tiles.add(new FinalInterval(min, max));
+		tileIds.put(key, tiles.size() - 1);
+		return tiles.size() - 1;
+	}
+
+	private void addSample(int tile, int offset, int classIndex) {
+		if (numberOfSamples == sampleTiles.length) {
+			int capacity = (int) Math.min(Integer.MAX_VALUE - 8, 2L * numberOfSamples);
+			if (capacity == numberOfSamples)
+				throw new IllegalStateException("Too many labeled pixels.");
+			sampleTiles = Arrays.copyOf(sampleTiles, capacity);
+			sampleOffsets = Arrays.copyOf(sampleOffsets, capacity);
+			sampleClasses = Arrays.copyOf(sampleClasses, capacity);
+		}
+		sampleTiles[numberOfSamples] = tile;
+		sampleOffsets[numberOfSamples] = offset;
+		sampleClasses[numberOfSamples] = classIndex;
+		numberOfSamples++;
+	}
+
+	/**
+	 * Calculates the features of all tiles with labels, in parallel. Returns the
+	 * feature vectors of the labeled pixels, stored one after the other.
+	 */
+	private float[] calculateFeatureVectors(RandomAccessible<?> extendedImage) {
+		int count = features.count();
+		int[] allFeatures = new int[count];
+		for (int i = 0; i < count; i++)
+			allFeatures[i] = i;
+		int[][] samplesPerTile = samplesPerTile();
+		float[] vectors = new float[numberOfSamples * count];
+		TaskExecutor executor = Parallelization.getTaskExecutor();
+		int numberOfTasks = Math.min(tiles.size(), executor.suggestNumberOfTasks());
+		List<Integer> tasks = new ArrayList<>();
+		for (int task = 0; task < numberOfTasks; task++)
+			tasks.add(task);
+		executor.forEach(tasks, task -> {
+			float[] buffer = new float[(int) bufferSize];
+			for (int tile = task; tile < tiles.size(); tile += numberOfTasks) {
+				features.applyInterleaved(extendedImage, tiles.get(tile), allFeatures, buffer);
+				for (int sample : samplesPerTile[tile])
+					System.arraycopy(buffer, sampleOffsets[sample] * count, vectors, sample * count,
+						count);
+			}
+		});
+		return vectors;
+	}
+
+	private int[][] samplesPerTile() {
+		int[] counts = new int[tiles.size()];
+		for (int i = 0; i < numberOfSamples; i++)
+			counts[sampleTiles[i]]++;
+		int[][] samplesPerTile = new int[tiles.size()][];
+		for (int tile = 0; tile < tiles.size(); tile++)
+			samplesPerTile[tile] = new int[counts[tile]];
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < numberOfSamples; i++) {
+			int tile = sampleTiles[i];
+			samplesPerTile[tile][counts[tile]++] = i;
+		}
+		return samplesPerTile;
+	}
+}
@@ -4,13 +4,16 @@ package net.imglib2.trainable_segmentation.classification;
 import hr.irb.fastRandomForest.FastRandomForest;
 import ij.Prefs;
 import net.imglib2.Cursor;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.trainable_segmentation.RevampUtils;
 import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
 import net.imglib2.roi.labeling.LabelRegion;
 import net.imglib2.roi.labeling.LabelRegions;
 import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSettings;
+import net.imglib2.trainable_segmentation.random_forest.NativeRandomForest;
 import net.imglib2.trainable_segmentation.utils.views.FastViews;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -18,9 +21,12 @@ import net.imglib2.view.Views;
 import net.imglib2.view.composite.Composite;
 import net.imglib2.view.composite.GenericComposite;
 import org.scijava.Context;
+import preview.net.imglib2.parallel.Parallelization;
+import preview.net.imglib2.parallel.TaskExecutor;
 import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,6 +40,12 @@ import java.util.stream.Collectors;
  */
 public class Trainer {
 
+	/**
+	 * The labeled pixels are split into tasks of at least this size, which are
+	 * added to the {@link Training} in parallel.
+	 */
+	private static final long MIN_SAMPLES_PER_TASK = 10_000;
+
 	private final FeatureCalculator features;
 
 	private final List<String> classNames;
@@ -44,20 +56,70 @@ public class Trainer {
 
 	private boolean finished = false;
 
-	private Trainer(Segmenter segmenter) {
-		features = segmenter.features();
-		training = segmenter.training();
-		classNames = segmenter.classNames();
+	private int maxSamplesPerClass = Integer.MAX_VALUE;
+
+	private int maxSamples = Integer.MAX_VALUE;
+
+	private long samplingSeed = 1;
+
+	private Trainer(Segmenter segmenter, Training training) {
+		this.features = segmenter.features();
+		this.training = training;
+		this.classNames = segmenter.classNames();
 	}
 
 	public static Trainer of(Segmenter segmenter) {
-		return new Trainer(segmenter);
+		return new Trainer(segmenter, segmenter.training());
+	}
+
+	/**
+	 * Returns a {@link Trainer}, that adds the labeled pixels to the given
+	 * {@link Training}, for example
+	 * {@link Segmenter#training(net.imglib2.trainable_segmentation.random_forest.MappedTrainingMatrix)}.
+	 */
+	public static Trainer of(Segmenter segmenter, Training training) {
+		return new Trainer(segmenter, training);
+	}
+
+	/**
+	 * Returns a {@link Trainer}, that adds the labeled pixels to the samples of
+	 * the previous incremental training, and only trains {@code numNewTrees} new
+	 * trees. The labelings must only contain the pixels labeled since the
+	 * previous incremental training, see
+	 * {@link Segmenter#incrementalTraining(int)}. Use {@link TrainingSession} to
+	 * retrain on a complete labeling without calculating the features of all
+	 * labeled pixels again.
+	 */
+	public static Trainer incremental(Segmenter segmenter, int numNewTrees) {
+		return new Trainer(segmenter, segmenter.incrementalTraining(numNewTrees));
 	}
 
 	public void start() {
 		autoFinish = false;
 	}
 
+	/**
+	 * Limits the number of labeled pixels, that are used for training. If a
+	 * class has more labeled pixels, a random subset is selected, and the
+	 * features are only calculated for the selected pixels. The total number of
+	 * pixels is divided evenly between the classes, see {@link LabelSampling}.
+	 * By default, all labeled pixels are used.
+	 */
+	public void setMaxSamples(int maxSamplesPerClass, int maxSamples) {
+		if (maxSamplesPerClass < 1 || maxSamples < 1)
+			throw new IllegalArgumentException("Maximal number of samples must be positive.");
+		this.maxSamplesPerClass = maxSamplesPerClass;
+		this.maxSamples = maxSamples;
+	}
+
+	/**
+	 * Sets the seed for selecting the labeled pixels, see
+	 * {@link #setMaxSamples(int, int)}.
+	 */
+	public void setSamplingSeed(long samplingSeed) {
+		this.samplingSeed = samplingSeed;
+	}
+
 	public void finish() {
 		if (finished)
 			throw new IllegalStateException();
@@ -65,34 +127,131 @@ public class Trainer {
 		training.train();
 	}
 
+	/**
+	 * Adds the labeled pixels of the image to the training. If the labels cover
+	 * only a small part of the image, the features are calculated only for
+	 * tiles around the labels, see {@link SparseFeatureExtraction}. Otherwise the
+	 * feature stack of the whole image is calculated. If the number of samples is
+	 * limited, see {@link #setMaxSamples(int, int)}, only the selected pixels are
+	 * taken into account.
+	 */
 	public void trainLabeledImage(RandomAccessibleInterval<?> image, LabelRegions<?> labeling) {
+		Interval interval = features.outputIntervalFromInput(image);
+		if (isSampling()) {
+			List<long[]> positions = sampling().sample(regionsPerClass(classNames, labeling));
+			if (!SparseFeatureExtraction.addSampledPixels(features, Views.extendBorder(image),
+				interval, positions, training::add))
+				addSampledPixels(FastViews.collapse(features.apply(image)), features.count(),
+					positions, training::add);
+			if (autoFinish)
+				finish();
+			return;
+		}
+		if (SparseFeatureExtraction.addLabeledPixels(features, Views.extendBorder(image), interval,
+			regionsPerClass(classNames, labeling), training::add))
+		{
+			if (autoFinish)
+				finish();
+			return;
+		}
 		RandomAccessible<Composite<FloatType>> featureStack = FastViews
 			.collapse(features.apply(image));
 		trainLabeledFeatures(featureStack, labeling);
 	}
 
-	public <L> void trainLabeledFeatures(
-		RandomAccessible<? extends Composite<? extends RealType<?>>> features, LabelRegions<L> regions)
+	private boolean isSampling() {
+		return maxSamplesPerClass < Integer.MAX_VALUE || maxSamples < Integer.MAX_VALUE;
+	}
+
+	private LabelSampling sampling() {
+		return new LabelSampling(maxSamplesPerClass, maxSamples, samplingSeed);
+	}
+
+	/**
+	 * Adds the pixels at the given positions of each class to the sink, see
+	 * {@link LabelSampling#sample}.
+	 */
+	static void addSampledPixels(
+		RandomAccessible<? extends Composite<? extends RealType<?>>> features,
+		int numberOfFeatures, List<long[]> positions, SampleSink sink)
 	{
+		int n = features.numDimensions();
 		RandomAccess<? extends Composite<? extends RealType<?>>> ra = features.randomAccess();
+		float[] vector = new float[numberOfFeatures];
+		for (int classIndex = 0; classIndex < positions.size(); classIndex++) {
+			long[] classPositions = positions.get(classIndex);
+			for (int i = 0; i < classPositions.length; i += n) {
+				for (int d = 0; d < n; d++)
+					ra.setPosition(classPositions[i + d], d);
+				Composite<? extends RealType<?>> featureVector = ra.get();
+				for (int f = 0; f < numberOfFeatures; f++)
+					vector[f] = featureVector.get(f).getRealFloat();
+				sink.add(vector, 0, classIndex);
+			}
+		}
+	}
+
+	/**
+	 * Returns the label region of each class, or null if there are no labels for
+	 * a class.
+	 */
+	static <L> List<LabelRegion<L>> regionsPerClass(List<String> classNames,
+		LabelRegions<L> regions)
+	{
 		Map<String, L> kayMap = createKeyMap(regions);
+		List<LabelRegion<L>> result = new ArrayList<>();
+		for (String className : classNames) {
+			L label = kayMap.get(className);
+			result.add(label == null ? null : regions.getLabelRegion(label));
+		}
+		return result;
+	}
+
+	public <L> void trainLabeledFeatures(
+		RandomAccessible<? extends Composite<? extends RealType<?>>> features, LabelRegions<L> regions)
+	{
+		List<LabelRegion<L>> regionsPerClass = regionsPerClass(classNames, regions);
+		if (isSampling()) {
+			addSampledPixels(features, this.features.count(), sampling().sample(regionsPerClass),
+				training::add);
+			if (autoFinish)
+				finish();
+			return;
+		}
+		TaskExecutor executor = Parallelization.getTaskExecutor();
+		List<Runnable> tasks = new ArrayList<>();
 		for (int classIndex = 0; classIndex < classNames.size(); classIndex++) {
-			L label = kayMap.get(classNames.get(classIndex));
-			if (label == null)
+			LabelRegion<L> region = regionsPerClass.get(classIndex);
+			if (region == null)
 				continue;
-			LabelRegion<L> region = regions.getLabelRegion(label);
-			Cursor<Void> cursor = region.cursor();
-			while (cursor.hasNext()) {
-				cursor.next();
-				ra.setPosition(cursor);
-				training.add(ra.get(), classIndex);
+			long size = region.size();
+			long chunkSize = Math.max(MIN_SAMPLES_PER_TASK, (size - 1) / executor
+				.suggestNumberOfTasks() + 1);
+			for (long start = 0; start < size; start += chunkSize) {
+				// NB: The buffers and cursors are created in the order of the samples.
+				Training.Buffer buffer = training.newBuffer();
+				Cursor<Void> cursor = region.cursor();
+				long skip = start;
+				long count = Math.min(chunkSize, size - start);
+				int c = classIndex;
+				tasks.add(() -> {
+					RandomAccess<? extends Composite<? extends RealType<?>>> ra = features
+						.randomAccess();
+					cursor.jumpFwd(skip);
+					for (long i = 0; i < count; i++) {
+						cursor.fwd();
+						ra.setPosition(cursor);
+						buffer.add(ra.get(), c);
+					}
+				});
 			}
 		}
+		executor.runAll(tasks);
 		if (autoFinish)
 			finish();
 	}
 
-	private <L> Map<String, L> createKeyMap(LabelRegions<L> regions) {
+	private static <L> Map<String, L> createKeyMap(LabelRegions<L> regions) {
 		Map<String, L> map = new HashMap<>();
 		regions.getExistingLabels().forEach(label -> map.put(label.toString(), label));
 		return map;
@@ -114,6 +273,23 @@ public class Trainer {
 		return segmenter;
 	}
 
+	/**
+	 * Trains a new segmenter, that only calculates the feature ops of the k most
+	 * important features of the given segmenter, see
+	 * {@link Segmenter#mostImportantFeatureSettings(int)}. The classifier is a
+	 * copy of the given segmenter's classifier.
+	 */
+	public static Segmenter trainWithMostImportantFeatures(Context context,
+		RandomAccessibleInterval<?> image, LabelRegions<?> labeling, Segmenter segmenter, int k)
+	{
+		FeatureSettings features = segmenter.mostImportantFeatureSettings(k);
+		Classifier classifier = RevampUtils.wrapException(() -> AbstractClassifier.makeCopy(
+			segmenter.getClassifier()));
+		Segmenter result = new Segmenter(context, segmenter.classNames(), features, classifier);
+		Trainer.of(result).trainLabeledImage(image, labeling);
+		return result;
+	}
+
 	public static AbstractClassifier initRandomForest() {
 		FastRandomForest rf = new FastRandomForest();
 		int numOfTrees = 200;
@@ -125,8 +301,22 @@ public class Trainer {
 		rf.setNumFeatures(randomFeatures);
 		// Random seed
 		rf.setSeed(1);
-		// Set number of threads
+		// Set number of threads, the Segmenter replaces it by the parallelism of
+		// the caller's Parallelization context, when training
 		rf.setNumThreads(Prefs.getThreads());
 		return rf;
 	}
+
+	/**
+	 * Returns a {@link NativeRandomForest} with the same parameters as
+	 * {@link #initRandomForest()}. It trains directly on float columns, and uses
+	 * the threads of the caller's {@link Parallelization} context.
+	 */
+	public static NativeRandomForest initNativeRandomForest() {
+		NativeRandomForest rf = new NativeRandomForest();
+		rf.setNumTrees(200);
+		rf.setNumFeatures(2);
+		rf.setSeed(1);
+		return rf;
+	}
 }
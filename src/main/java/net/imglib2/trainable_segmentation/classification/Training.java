@@ -1,7 +1,7 @@
-
 package net.imglib2.trainable_segmentation.classification;
 
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.composite.Composite;
 
 /**
@@ -12,4 +12,34 @@ public interface Training {
 	void add(Composite<? extends RealType<?>> featureVector, int classIndex);
 
 	void train();
+
+	/**
+	 * Adds a sample, whose feature values are stored in
+	 * {@code featureVector[offset ... offset + numberOfFeatures - 1]}.
+	 */
+	default void add(float[] featureVector, int offset, int classIndex) {
+		add(i -> new FloatType(featureVector[offset + (int) i]), classIndex);
+	}
+
+	/**
+	 * Returns a buffer, that can be used to add samples from another thread. Each
+	 * buffer must only be used by one thread at a time. The samples of the
+	 * buffers should be used in the order the buffers were created, such that
+	 * the training result doesn't depend on the thread scheduling.
+	 * <p>
+	 * The default implementation adds the samples immediately, synchronized on
+	 * this {@link Training}, and therefore doesn't keep this order.
+	 */
+	default Buffer newBuffer() {
+		return (featureVector, classIndex) -> {
+			synchronized (this) {
+				add(featureVector, classIndex);
+			}
+		};
+	}
+
+	interface Buffer {
+
+		void add(Composite<? extends RealType<?>> featureVector, int classIndex);
+	}
 }
@@ -0,0 +1,241 @@
+package net.imglib2.trainable_segmentation.classification;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.roi.labeling.LabelRegion;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSettings;
+import net.imglib2.trainable_segmentation.random_forest.ChunkedTrainingMatrix;
+import net.imglib2.trainable_segmentation.utils.views.FastViews;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the feature vectors of the labeled pixels between trainings, such
+ * that retraining after the user added a few labels doesn't calculate the
+ * features of all the labeled pixels again.
+ * <p>
+ * The session remembers, for each image, which pixels were labeled with which
+ * class, and the feature vectors of these pixels. {@link #update} compares the
+ * new labeling with the remembered one: The features are only calculated for
+ * pixels, that are newly labeled or got a different class, see
+ * {@link SparseFeatureExtraction}. The samples of pixels, whose label was
+ * erased, are dropped. The feature vectors are only valid for the
+ * {@link FeatureSettings} of the session's segmenter, and for unchanged image
+ * content. Call {@link #remove} if the pixels of an image change.
+ * <p>
+ * The samples are ordered by image, pixel index and class. The training
+ * result therefore only depends on the current labels, not on the order in
+ * which they were added. A {@link TrainingSession} is not thread safe.
+ */
+public class TrainingSession {
+
+	private final Segmenter segmenter;
+
+	private final FeatureCalculator features;
+
+	private final List<String> classNames;
+
+	private final List<ImageSamples> images = new ArrayList<>();
+
+	public TrainingSession(Segmenter segmenter) {
+		this(segmenter, segmenter.features());
+	}
+
+	/**
+	 * Calculates the features with the given {@link FeatureCalculator}, which
+	 * must have the same {@link FeatureSettings} as the segmenter.
+	 */
+	TrainingSession(Segmenter segmenter, FeatureCalculator features) {
+		if (!features.settings().equals(segmenter.features().settings()))
+			throw new IllegalArgumentException(
+				"Feature settings of the calculator differ from the segmenter.");
+		this.segmenter = segmenter;
+		this.features = features;
+		this.classNames = segmenter.classNames();
+	}
+
+	/**
+	 * Updates the samples of the image, such that they match the given labeling.
+	 * Images are identified by reference.
+	 */
+	public void update(RandomAccessibleInterval<?> image, LabelRegions<?> labeling) {
+		ImageSamples samples = samplesOf(image);
+		if (samples == null) {
+			samples = new ImageSamples(image);
+			images.add(samples);
+		}
+		samples.update(Trainer.regionsPerClass(classNames, labeling));
+	}
+
+	/**
+	 * Forgets the samples of the image.
+	 */
+	public void remove(RandomAccessibleInterval<?> image) {
+		images.remove(samplesOf(image));
+	}
+
+	public int numberOfSamples() {
+		return images.stream().mapToInt(samples -> samples.rows.numberOfSamples()).sum();
+	}
+
+	/**
+	 * Trains the segmenter of this session on the samples of all images.
+	 */
+	public void train() {
+		train(segmenter);
+	}
+
+	/**
+	 * Trains the given segmenter on the samples of all images. It must use the
+	 * same {@link FeatureSettings} and classes as the segmenter of this session,
+	 * but may use a different classifier.
+	 */
+	public void train(Segmenter segmenter) {
+		if (!segmenter.features().settings().equals(features.settings()) || !segmenter
+			.classNames().equals(classNames))
+			throw new IllegalArgumentException(
+				"Feature settings or classes of the segmenter differ from the training session.");
+		segmenter.train(data());
+	}
+
+	/**
+	 * Returns the samples of all images.
+	 */
+	ChunkedTrainingMatrix data() {
+		if (images.size() == 1)
+			return images.get(0).rows;
+		ChunkedTrainingMatrix data = new ChunkedTrainingMatrix(features.count(), classNames.size());
+		for (ImageSamples samples : images)
+			data.addAll(samples.rows);
+		return data;
+	}
+
+	private ImageSamples samplesOf(RandomAccessibleInterval<?> image) {
+		for (ImageSamples samples : images)
+			if (samples.image == image)
+				return samples;
+		return null;
+	}
+
+	/**
+	 * The samples of one image. Each labeled pixel and class is encoded as
+	 * {@code pixelIndex * numberOfClasses + classIndex}. The codes are sorted,
+	 * and the rows of the matrix are in the same order.
+	 */
+	private class ImageSamples {
+
+		private final RandomAccessibleInterval<?> image;
+
+		private final Interval interval;
+
+		private final long[] min;
+
+		private final long[] dimensions;
+
+		private long[] codes = new long[0];
+
+		private ChunkedTrainingMatrix rows = new ChunkedTrainingMatrix(features.count(), classNames
+			.size());
+
+		private ImageSamples(RandomAccessibleInterval<?> image) {
+			this.image = image;
+			this.interval = features.outputIntervalFromInput(image);
+			this.min = Intervals.minAsLongArray(interval);
+			this.dimensions = Intervals.dimensionsAsLongArray(interval);
+		}
+
+		private void update(List<? extends LabelRegion<?>> regions) {
+			int numberOfClasses = classNames.size();
+			long[] newCodes = codes(regions);
+			// NB: Row of each new code: an existing row, or -1 if the features are missing.
+			int[] source = new int[newCodes.length];
+			int[] missingPerClass = new int[numberOfClasses];
+			int kept = 0;
+			for (int i = 0, j = 0; i < newCodes.length; i++) {
+				while (j < codes.length && codes[j] < newCodes[i])
+					j++;
+				if (j < codes.length && codes[j] == newCodes[i]) {
+					source[i] = j;
+					kept++;
+				}
+				else {
+					source[i] = -1;
+					missingPerClass[(int) (newCodes[i] % numberOfClasses)]++;
+				}
+			}
+			if (kept == codes.length && kept == newCodes.length)
+				return;
+			if (kept < newCodes.length)
+				addMissingRows(newCodes, source, missingPerClass);
+			rows = rows.select(source);
+			codes = newCodes;
+		}
+
+		/**
+		 * Calculates the features of the pixels, whose source row is -1, and appends
+		 * them to the rows, grouped by class. Sets the source to the appended row.
+		 */
+		private void addMissingRows(long[] newCodes, int[] source, int[] missingPerClass) {
+			int numberOfClasses = classNames.size();
+			int n = interval.numDimensions();
+			List<long[]> positions = new ArrayList<>(numberOfClasses);
+			int[] firstRow = new int[numberOfClasses];
+			int row = rows.numberOfSamples();
+			for (int c = 0; c < numberOfClasses; c++) {
+				positions.add(new long[Math.multiplyExact(missingPerClass[c], n)]);
+				firstRow[c] = row;
+				row += missingPerClass[c];
+			}
+			int[] count = new int[numberOfClasses];
+			long[] position = new long[n];
+			for (int i = 0; i < newCodes.length; i++) {
+				if (source[i] >= 0)
+					continue;
+				int c = (int) (newCodes[i] % numberOfClasses);
+				IntervalIndexer.indexToPositionWithOffset(newCodes[i] / numberOfClasses, dimensions,
+					min, position);
+				System.arraycopy(position, 0, positions.get(c), count[c] * n, n);
+				source[i] = firstRow[c] + count[c]++;
+			}
+			if (!SparseFeatureExtraction.addSampledPixels(features, Views.extendBorder(image),
+				interval, positions, rows::add))
+				Trainer.addSampledPixels(FastViews.collapse(features.apply(image)), features.count(),
+					positions, rows::add);
+		}
+
+		private long[] codes(List<? extends LabelRegion<?>> regions) {
+			int numberOfClasses = classNames.size();
+			long size = 0;
+			for (LabelRegion<?> region : regions)
+				if (region != null)
+					size += region.size();
+			long[] result = new long[Math.toIntExact(size)];
+			long[] position = new long[interval.numDimensions()];
+			int i = 0;
+			for (int c = 0; c < numberOfClasses; c++) {
+				LabelRegion<?> region = regions.get(c);
+				if (region == null)
+					continue;
+				Cursor<Void> cursor = region.cursor();
+				while (cursor.hasNext()) {
+					cursor.fwd();
+					cursor.localize(position);
+					if (!Intervals.contains(interval, cursor))
+						throw new IllegalArgumentException("Labeled pixel outside of the image.");
+					result[i++] = IntervalIndexer.positionWithOffsetToIndex(position, dimensions, min) *
+						numberOfClasses + c;
+				}
+			}
+			Arrays.sort(result);
+			return result;
+		}
+	}
+}
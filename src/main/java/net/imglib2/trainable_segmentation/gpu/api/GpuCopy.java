@@ -145,6 +145,8 @@ public class GpuCopy {
 			return NativeTypeEnum.Float;
 		if (type instanceof UnsignedShortType)
 			return NativeTypeEnum.UnsignedShort;
+		if (type instanceof UnsignedByteType)
+			return NativeTypeEnum.UnsignedByte;
 		throw new UnsupportedOperationException();
 	}
 }
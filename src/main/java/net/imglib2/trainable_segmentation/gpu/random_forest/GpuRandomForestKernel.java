@@ -1,10 +1,13 @@
 
 package net.imglib2.trainable_segmentation.gpu.random_forest;
 
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.imglib2.trainable_segmentation.gpu.api.GpuApi;
 import net.imglib2.trainable_segmentation.gpu.api.GpuImage;
+import net.imglib2.trainable_segmentation.random_forest.PredictionStatistic;
 import net.imglib2.util.Intervals;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 public class GpuRandomForestKernel {
@@ -32,10 +35,29 @@ public class GpuRandomForestKernel {
 		constants.put("NUMBER_OF_FEATURES", numberOfFeatures);
 		constants.put("INDICES_SIZE", Intervals.numElements(indices.getDimensions()));
 		constants.put("CONSTANT_OR_GLOBAL", appropriateMemory(thresholds, indices));
+		constants.put("OUTPUT_SCALE", probabilityScale(distributions.getNativeType()));
+		constants.put("OUTPUT_ROUNDING", distributions.getNativeType() == NativeTypeEnum.Float
+			? "0.0f" : "0.5f");
 		gpu.execute(GpuRandomForestKernel.class, "random_forest.cl", "random_forest", globalSizes, null,
 			parameters, constants);
 	}
 
+	/**
+	 * Probabilities written into an integer image are scaled to the range of the
+	 * pixel type.
+	 */
+	private static String probabilityScale(NativeTypeEnum type) {
+		switch (type) {
+			case Float:
+				return "1.0f";
+			case UnsignedByte:
+				return "255.0f";
+			case UnsignedShort:
+				return "65535.0f";
+		}
+		throw new UnsupportedOperationException("Unsupported pixel type for probabilities: " + type);
+	}
+
 	private static String appropriateMemory(GpuImage thresholds, GpuImage indices) {
 		long requiredConstantMemory = thresholds.clearCLBuffer().getSizeInBytes() + indices
 			.clearCLBuffer().getSizeInBytes();
@@ -55,4 +77,29 @@ public class GpuRandomForestKernel {
 		gpu.execute(GpuRandomForestKernel.class, "find_max.cl", "find_max", globalSizes, null,
 			parameters, null);
 	}
+
+	/**
+	 * Computes the given statistics from the class probabilities. Channel i of
+	 * dst holds statistics[i]. Each statistic must only be listed once.
+	 */
+	public static void statistics(GpuApi gpu,
+		GpuImage distributions,
+		GpuImage dst,
+		PredictionStatistic... statistics)
+	{
+		// NB: The kernel writes only one channel per statistic.
+		if (Arrays.stream(statistics).distinct().count() != statistics.length)
+			throw new IllegalArgumentException("Each statistic can only be computed once.");
+		long[] globalSizes = { dst.getWidth(), dst.getHeight(), dst.getDepth() };
+		HashMap<String, Object> parameters = new HashMap<>();
+		parameters.put("dst", dst);
+		parameters.put("src", distributions);
+		parameters.put("num_classes", (int) distributions.getNumberOfChannels());
+		HashMap<String, Object> constants = new HashMap<>();
+		for (PredictionStatistic statistic : PredictionStatistic.values())
+			constants.put(statistic.name() + "_CHANNEL", Arrays.asList(statistics).indexOf(
+				statistic));
+		gpu.execute(GpuRandomForestKernel.class, "statistics.cl", "statistics", globalSizes, null,
+			parameters, constants);
+	}
 }
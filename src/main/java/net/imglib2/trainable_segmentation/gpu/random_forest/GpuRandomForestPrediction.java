@@ -7,13 +7,18 @@ import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.trainable_segmentation.gpu.api.GpuApi;
 import net.imglib2.trainable_segmentation.gpu.api.GpuImage;
+import net.imglib2.trainable_segmentation.random_forest.FlattenedRandomForest;
+import net.imglib2.trainable_segmentation.random_forest.PredictionStatistic;
 import net.imglib2.trainable_segmentation.random_forest.TransparentRandomForest;
+import net.imglib2.trainable_segmentation.random_forest.TransparentRandomTree;
 import net.imglib2.trainable_segmentation.utils.ArrayUtils;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
@@ -44,11 +49,40 @@ public class GpuRandomForestPrediction {
 
 	private final float[] leafProbabilities;
 
+	/**
+	 * The trees of the random forest, and their flattened representation. Used
+	 * to avoid flattening the same tree twice, see
+	 * {@link #GpuRandomForestPrediction(TransparentRandomForest, int, GpuRandomForestPrediction)}.
+	 */
+	private final Map<TransparentRandomTree, GpuRandomTreePrediction> flattenedTrees =
+		new IdentityHashMap<>();
+
 	public GpuRandomForestPrediction(FastRandomForest classifier, int numberOfFeatures) {
-		TransparentRandomForest forest =
-			TransparentRandomForest.forFastRandomForest(classifier);
-		List<GpuRandomTreePrediction> trees = forest.trees().stream().map(
-			GpuRandomTreePrediction::new)
+		this(TransparentRandomForest.forFastRandomForest(classifier), numberOfFeatures);
+	}
+
+	public GpuRandomForestPrediction(TransparentRandomForest forest, int numberOfFeatures) {
+		this(forest, numberOfFeatures, null);
+	}
+
+	/**
+	 * Same as {@link #GpuRandomForestPrediction(TransparentRandomForest, int)},
+	 * but trees that are also part of the previous prediction are not flattened
+	 * again. This makes updating the prediction cheap, if only a few trees of
+	 * the random forest have changed, see
+	 * {@link net.imglib2.trainable_segmentation.random_forest.RandomForestTrainer#update}.
+	 *
+	 * @param previous Previous prediction, or null.
+	 */
+	public GpuRandomForestPrediction(TransparentRandomForest forest, int numberOfFeatures,
+		GpuRandomForestPrediction previous)
+	{
+		for (TransparentRandomTree tree : forest.trees()) {
+			GpuRandomTreePrediction flattened = previous == null ? null : previous.flattenedTrees.get(
+				tree);
+			flattenedTrees.put(tree, flattened != null ? flattened : new GpuRandomTreePrediction(tree));
+		}
+		List<GpuRandomTreePrediction> trees = forest.trees().stream().map(flattenedTrees::get)
 			.collect(Collectors.toList());
 		this.numberOfClasses = forest.numberOfClasses();
 		this.numberOfFeatures = numberOfFeatures;
@@ -73,6 +107,38 @@ public class GpuRandomForestPrediction {
 		}
 	}
 
+	/**
+	 * Creates the prediction from node arrays, without reconstructing the trees.
+	 * The arrays are used as is, see
+	 * {@link FlattenedRandomForest#toNodeArrays} for their layout.
+	 */
+	public GpuRandomForestPrediction(int numberOfClasses, int numberOfFeatures, int numberOfNodes,
+		int numberOfLeafs, short[] nodeIndices, float[] nodeThresholds, float[] leafProbabilities)
+	{
+		this.numberOfClasses = numberOfClasses;
+		this.numberOfFeatures = numberOfFeatures;
+		this.numberOfTrees = numberOfNodes == 0 ? 0 : nodeThresholds.length / numberOfNodes;
+		this.numberOfNodes = numberOfNodes;
+		this.numberOfLeafs = numberOfLeafs;
+		this.nodeIndices = nodeIndices;
+		this.nodeThresholds = nodeThresholds;
+		this.leafProbabilities = leafProbabilities;
+	}
+
+	/**
+	 * Same as
+	 * {@link #GpuRandomForestPrediction(int, int, int, int, short[], float[], float[])},
+	 * for a flattened random forest.
+	 */
+	public static GpuRandomForestPrediction forFlattenedRandomForest(FlattenedRandomForest forest,
+		int numberOfFeatures)
+	{
+		return forest.toNodeArrays((numberOfClasses, numberOfNodes, numberOfLeafs, nodeIndices,
+			nodeThresholds, leafProbabilities) -> new GpuRandomForestPrediction(numberOfClasses,
+				numberOfFeatures, numberOfNodes, numberOfLeafs, nodeIndices, nodeThresholds,
+				leafProbabilities));
+	}
+
 	public int numberOfClasses() {
 		return numberOfClasses;
 	}
@@ -89,7 +155,8 @@ public class GpuRandomForestPrediction {
 	 * @param featureStack Input image. Number of channels must equal
 	 *          {@link #numberOfFeatures()}.
 	 * @param distribution Output image. Number of channels must equal
-	 *          {@link #numberOfClasses()}.
+	 *          {@link #numberOfClasses()}. For unsigned byte and unsigned short
+	 *          images the probabilities are scaled to the range of the type.
 	 */
 	public void distribution(GpuApi gpu, GpuImage featureStack, GpuImage distribution) {
 		try (GpuApi scope = gpu.subScope()) {
@@ -126,6 +193,28 @@ public class GpuRandomForestPrediction {
 		}
 	}
 
+	/**
+	 * Applies the random forest to each pixel in the feature stack. Returns an
+	 * image with one channel per given statistic, see {@link PredictionStatistic}.
+	 *
+	 * @param gpu
+	 * @param featureStack Input image. Number of channels must equal
+	 *          {@link #numberOfFeatures()}.
+	 */
+	public GpuImage statistics(GpuApi gpu, GpuImage featureStack,
+		PredictionStatistic... statistics)
+	{
+		try (GpuApi scope = gpu.subScope()) {
+			GpuImage distribution = scope.create(featureStack.getDimensions(), numberOfClasses,
+				NativeTypeEnum.Float);
+			distribution(scope, featureStack, distribution);
+			GpuImage output = gpu.create(distribution.getDimensions(), statistics.length,
+				NativeTypeEnum.Float);
+			GpuRandomForestKernel.statistics(scope, distribution, output, statistics);
+			return output;
+		}
+	}
+
 	/**
 	 * Applies the random forest to the given instance. Writes the class
 	 * probabilities to the parameter called distribution.
@@ -25,14 +25,19 @@ import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSettings
 import net.imglib2.trainable_segmentation.pixel_feature.settings.GlobalSettings;
 import net.imglib2.trainable_segmentation.utils.SingletonContext;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.ConstantUtils;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 import org.scijava.Context;
+import preview.net.imglib2.loops.LoopBuilder;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.function.IntPredicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -131,6 +136,101 @@ public class FeatureCalculator {
 		}
 	}
 
+	/**
+	 * Calculates only the features listed in {@code featureIndices}. Channel i of
+	 * the returned feature stack holds the feature with index
+	 * {@code featureIndices[i]}. Feature ops, whose outputs are not needed, are
+	 * skipped. The result equals to the corresponding channels of
+	 * {@link #apply(RandomAccessible, Interval)}.
+	 */
+	public RandomAccessibleInterval<FloatType> apply(RandomAccessible<?> extendedImage,
+		Interval interval, int[] featureIndices)
+	{
+		// NB: No feature selected, Views.stack(...) would fail for an empty list.
+		if (featureIndices.length == 0)
+			return Views.interval(ConstantUtils.constantRandomAccessible(new FloatType(), interval
+				.numDimensions() + 1), Intervals.addDimension(interval, 0, -1));
+		if (useGpu) {
+			RandomAccessibleInterval<FloatType> all = apply(extendedImage, interval);
+			int d = all.numDimensions() - 1;
+			List<RandomAccessibleInterval<FloatType>> slices = Arrays.stream(featureIndices)
+				.mapToObj(i -> Views.hyperSlice(all, d, i)).collect(Collectors.toList());
+			return Views.translate(Views.stack(slices), Intervals.minAsLongArray(
+				Intervals.addDimension(interval, 0, 0)));
+		}
+		FinalInterval fullInterval = Intervals.addDimension(interval, 0, featureIndices.length - 1);
+		Img<FloatType> image = ArrayImgs.floats(Intervals.dimensionsAsLongArray(fullInterval));
+		IntervalView<FloatType> rai = Views.translate(image, Intervals.minAsLongArray(fullInterval));
+		apply(extendedImage, rai, featureIndices);
+		return rai;
+	}
+
+	/**
+	 * Same as {@link #apply(RandomAccessible, Interval, int[])}, but writes the
+	 * selected features into the given output image. The channel axis of the
+	 * output must start at zero and have length {@code featureIndices.length}.
+	 */
+	public void apply(RandomAccessible<?> input, RandomAccessibleInterval<FloatType> output,
+		int[] featureIndices)
+	{
+		if (useGpu) {
+			Interval interval = RevampUtils.removeLastDimension(output);
+			RandomAccessibleInterval<FloatType> selected = apply(input, interval, featureIndices);
+			LoopBuilder.setImages(selected, output).forEachPixel((i, o) -> o.set(i));
+			return;
+		}
+		List<RandomAccessibleInterval<FloatType>> slices = RevampUtils.slices(output);
+		List<RandomAccessibleInterval<FloatType>> outputs = new ArrayList<>(Collections.nCopies(
+			count(), null));
+		for (int i = 0; i < featureIndices.length; i++)
+			outputs.set(featureIndices[i], slices.get(i));
+		applySparseUseCpu(input, outputs);
+	}
+
+	/**
+	 * Same as {@link #apply(RandomAccessible, Interval, int[])}, but the feature
+	 * values are written pixel interleaved into the given float array. The axis
+	 * order is CXYZ: feature {@code i} of the pixel with flat index {@code p} (X
+	 * fastest, then Y, Z) is stored at {@code buffer[p * featureIndices.length + i]}.
+	 * The feature vector of each pixel is therefore contiguous in memory, see
+	 * {@link net.imglib2.trainable_segmentation.random_forest.CpuRandomForestPrediction#segment(float[], RandomAccessibleInterval)}.
+	 *
+	 * @param buffer Output array, length must be at least
+	 *          {@code Intervals.numElements(interval) * featureIndices.length}.
+	 *          The array can be reused for many calls.
+	 */
+	public void applyInterleaved(RandomAccessible<?> input, Interval interval,
+		int[] featureIndices, float[] buffer)
+	{
+		int n = interval.numDimensions();
+		long[] dimensions = new long[n + 1];
+		dimensions[0] = featureIndices.length;
+		for (int d = 0; d < n; d++)
+			dimensions[d + 1] = interval.dimension(d);
+		if (Intervals.numElements(dimensions) > buffer.length)
+			throw new IllegalArgumentException("Buffer is too small for the given interval.");
+		Img<FloatType> image = ArrayImgs.floats(buffer, dimensions);
+		RandomAccessibleInterval<FloatType> xyzc = Views.translate(Views.moveAxis(image, 0, n),
+			Intervals.minAsLongArray(Intervals.addDimension(interval, 0, 0)));
+		apply(input, xyzc, featureIndices);
+	}
+
+	private void applySparseUseCpu(RandomAccessible<?> input,
+		List<RandomAccessibleInterval<FloatType>> output)
+	{
+		List<RandomAccessible<FloatType>> channels = preprocessor.getChannels(input);
+		List<List<RandomAccessibleInterval<FloatType>>> outputs = split(output, channels.size());
+		double[] pixelSize = settings.globals().pixelSizeAsDoubleArray();
+		for (int i = 0; i < channels.size(); i++) {
+			Optional<RandomAccessibleInterval<FloatType>> first = outputs.get(i).stream()
+				.filter(Objects::nonNull).findFirst();
+			if (!first.isPresent())
+				continue;
+			FeatureInput in = new FeatureInput(channels.get(i), first.get(), pixelSize);
+			joiner.applySparse(in, outputs.get(i));
+		}
+	}
+
 	private void applyUseCpu(RandomAccessible<?> input, RandomAccessibleInterval<FloatType> output) {
 		List<RandomAccessible<FloatType>> channels = preprocessor.getChannels(input);
 		List<List<RandomAccessibleInterval<FloatType>>> outputs = split(RevampUtils.slices(output),
@@ -44,6 +44,11 @@ public abstract class AbstractGroupFeatureOp extends AbstractFeatureOp {
 		featureGroup.apply(input, output);
 	}
 
+	@Override
+	public void applySparse(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output) {
+		featureGroup.applySparse(input, output);
+	}
+
 	@Override
 	public void prefetch(GpuFeatureInput input) {
 		featureGroup.prefetch(input);
@@ -53,6 +53,15 @@ public class FeatureJoiner {
 		genericApply(output, (featureOp, o) -> featureOp.apply(input, o));
 	}
 
+	/**
+	 * Same as {@link #apply(FeatureInput, List)}, but only calculates the features
+	 * for the non null entries of the output list. See
+	 * {@link FeatureOp#applySparse}.
+	 */
+	public void applySparse(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output) {
+		genericApply(output, (featureOp, o) -> featureOp.applySparse(input, o));
+	}
+
 	public void prefetch(GpuFeatureInput input) {
 		for (FeatureOp feature : features)
 			feature.prefetch(input);
@@ -3,8 +3,10 @@ package net.imglib2.trainable_segmentation.pixel_feature.filter;
 
 import net.imagej.ops.Op;
 import net.imagej.ops.special.function.UnaryFunctionOp;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.trainable_segmentation.RevampUtils;
 import net.imglib2.trainable_segmentation.gpu.GpuFeatureInput;
 import net.imglib2.trainable_segmentation.gpu.api.GpuView;
 import net.imglib2.trainable_segmentation.pixel_feature.settings.GlobalSettings;
@@ -12,6 +14,8 @@ import net.imglib2.type.numeric.real.FloatType;
 import org.scijava.plugin.SciJavaPlugin;
 
 import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
 
 /**
  * @author Matthias Arzt
@@ -33,6 +37,21 @@ public interface FeatureOp extends SciJavaPlugin, Op,
 
 	void apply(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output);
 
+	/**
+	 * Same as {@link #apply(FeatureInput, List)}, but the output list may contain
+	 * null entries. The features at these positions are not needed. The
+	 * calculation is skipped completely, if no output is needed.
+	 */
+	default void applySparse(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output) {
+		Interval interval = output.stream().filter(Objects::nonNull).findFirst().orElse(null);
+		if (interval == null)
+			return;
+		List<RandomAccessibleInterval<FloatType>> filled = output.stream()
+			.map(o -> o != null ? o : RevampUtils.createImage(interval, new FloatType()))
+			.collect(Collectors.toList());
+		apply(input, filled);
+	}
+
 	default void prefetch(GpuFeatureInput input) {
 		throw new UnsupportedOperationException("CLIJ is not supported for: " + this.getClass()
 			.getName());
@@ -0,0 +1,75 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import net.imglib2.trainable_segmentation.utils.ArrayUtils;
+
+/**
+ * Compares the class probabilities computed by two random forest engines, for
+ * example a quantized forest against the float engine. See
+ * {@link CpuRandomForestPrediction#accuracy}.
+ */
+public class AccuracyReport {
+
+	private final int numberOfClasses;
+
+	private long numberOfPixels;
+
+	private long agreements;
+
+	private double maxAbsoluteError;
+
+	private double sumAbsoluteError;
+
+	AccuracyReport(int numberOfClasses) {
+		this.numberOfClasses = numberOfClasses;
+	}
+
+	void add(float[] expected, float[] actual, int numInstances) {
+		for (int i = 0; i < numInstances; i++) {
+			int offset = i * numberOfClasses;
+			for (int k = 0; k < numberOfClasses; k++) {
+				double error = Math.abs(expected[offset + k] - actual[offset + k]);
+				maxAbsoluteError = Math.max(maxAbsoluteError, error);
+				sumAbsoluteError += error;
+			}
+			if (ArrayUtils.findMax(expected, offset, numberOfClasses) == ArrayUtils.findMax(actual,
+				offset, numberOfClasses))
+				agreements++;
+		}
+		numberOfPixels += numInstances;
+	}
+
+	public long numberOfPixels() {
+		return numberOfPixels;
+	}
+
+	/**
+	 * Fraction of the pixels, where both engines agree on the class with the
+	 * highest probability.
+	 */
+	public double agreement() {
+		return numberOfPixels == 0 ? 1 : (double) agreements / numberOfPixels;
+	}
+
+	/**
+	 * Maximal absolute difference of a class probability.
+	 */
+	public double maxAbsoluteError() {
+		return maxAbsoluteError;
+	}
+
+	/**
+	 * Mean absolute difference of the class probabilities, over all pixels and
+	 * classes.
+	 */
+	public double meanAbsoluteError() {
+		long count = numberOfPixels * numberOfClasses;
+		return count == 0 ? 0 : sumAbsoluteError / count;
+	}
+
+	@Override
+	public String toString() {
+		return "AccuracyReport{pixels=" + numberOfPixels + ", agreement=" + agreement() +
+			", maxAbsoluteError=" + maxAbsoluteError + ", meanAbsoluteError=" +
+			meanAbsoluteError() + "}";
+	}
+}
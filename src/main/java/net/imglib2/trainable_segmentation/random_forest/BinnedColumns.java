@@ -0,0 +1,121 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import preview.net.imglib2.parallel.Parallelization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The columns of a {@link TrainingMatrix}, where each feature value is
+ * replaced by the index of its quantile bin. There are at most
+ * {@link #MAX_BINS} bins per feature, the bin indices are stored as bytes.
+ * <p>
+ * The bins are separated by edges, which are feature values that occur in the
+ * training data. A value is in bin b, if exactly b edges are smaller or equal
+ * to the value. A split between bin b and b + 1 is therefore the same as the
+ * threshold {@code edges[b]}, see {@link #threshold(int, int)}.
+ */
+class BinnedColumns {
+
+	static final int MAX_BINS = 256;
+
+	/**
+	 * The edges are computed from a regular subsample of the column, if the
+	 * column is longer.
+	 */
+	private static final int MAX_QUANTILE_SAMPLES = 100_000;
+
+	private final byte[][] bins;
+
+	private final float[][] edges;
+
+	private BinnedColumns(byte[][] bins, float[][] edges) {
+		this.bins = bins;
+		this.edges = edges;
+	}
+
+	static BinnedColumns compute(TrainingMatrix data, int numberOfBins) {
+		if (numberOfBins < 2 || numberOfBins > MAX_BINS)
+			throw new IllegalArgumentException("Number of bins must be between 2 and " + MAX_BINS +
+				".");
+		int numberOfFeatures = data.numberOfFeatures();
+		int n = data.numberOfSamples();
+		int[] samples = new int[n];
+		for (int i = 0; i < n; i++)
+			samples[i] = i;
+		byte[][] bins = new byte[numberOfFeatures][];
+		float[][] edges = new float[numberOfFeatures][];
+		List<Integer> features = new ArrayList<>(numberOfFeatures);
+		for (int f = 0; f < numberOfFeatures; f++)
+			features.add(f);
+		Parallelization.getTaskExecutor().forEach(features, feature -> {
+			float[] values = new float[n];
+			data.gather(feature, samples, 0, n, values);
+			float[] featureEdges = quantileEdges(values, numberOfBins);
+			byte[] featureBins = new byte[n];
+			for (int i = 0; i < n; i++)
+				featureBins[i] = (byte) bin(featureEdges, values[i]);
+			edges[feature] = featureEdges;
+			bins[feature] = featureBins;
+		});
+		return new BinnedColumns(bins, edges);
+	}
+
+	/**
+	 * Returns up to {@code numberOfBins - 1} strictly increasing edges, that are
+	 * bigger than the smallest value.
+	 */
+	private static float[] quantileEdges(float[] values, int numberOfBins) {
+		int stride = Math.max(1, values.length / MAX_QUANTILE_SAMPLES);
+		float[] sorted = new float[(values.length + stride - 1) / stride];
+		for (int i = 0; i < sorted.length; i++)
+			sorted[i] = values[i * stride];
+		Arrays.sort(sorted);
+		int m = sorted.length;
+		float[] edges = new float[numberOfBins - 1];
+		int count = 0;
+		float previous = m == 0 ? 0 : sorted[0];
+		for (int b = 1; b < numberOfBins; b++) {
+			float candidate = sorted[(int) ((long) b * m / numberOfBins)];
+			if (candidate > previous) {
+				edges[count++] = candidate;
+				previous = candidate;
+			}
+		}
+		return Arrays.copyOf(edges, count);
+	}
+
+	/**
+	 * Returns the number of edges that are smaller or equal to the value.
+	 */
+	private static int bin(float[] edges, float value) {
+		int low = 0;
+		int high = edges.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (edges[middle] <= value)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	int numberOfBins(int feature) {
+		return edges[feature].length + 1;
+	}
+
+	int bin(int feature, int sample) {
+		return bins[feature][sample] & 0xff;
+	}
+
+	/**
+	 * Returns the threshold, that separates the bins {@code 0 ... bin} from the
+	 * remaining bins. A feature value is in one of the lower bins if and only if
+	 * it is smaller than the threshold.
+	 */
+	float threshold(int feature, int bin) {
+		return edges[feature][bin];
+	}
+}
@@ -0,0 +1,166 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import java.util.Arrays;
+
+/**
+ * Growable {@link TrainingMatrix}. The samples are stored in chunks of
+ * {@link #CHUNK_SIZE} samples. A chunk holds one block of values per feature,
+ * and the class indices as shorts. A sample therefore needs
+ * {@code 4 * numberOfFeatures + 2} bytes.
+ * <p>
+ * Adding samples is not thread safe. To collect samples on several threads,
+ * use one {@link ChunkedTrainingMatrix} per thread, and combine them with
+ * {@link #addAll(ChunkedTrainingMatrix)}.
+ */
+public class ChunkedTrainingMatrix implements TrainingMatrix {
+
+	private static final int CHUNK_BITS = 12;
+
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final int numberOfFeatures;
+
+	private final int numberOfClasses;
+
+	private float[][] values = new float[0][];
+
+	private short[][] classes = new short[0][];
+
+	private int size = 0;
+
+	public ChunkedTrainingMatrix(int numberOfFeatures, int numberOfClasses) {
+		if (numberOfClasses > 1 << 16)
+			throw new IllegalArgumentException("Too many classes.");
+		this.numberOfFeatures = numberOfFeatures;
+		this.numberOfClasses = numberOfClasses;
+	}
+
+	@Override
+	public int numberOfFeatures() {
+		return numberOfFeatures;
+	}
+
+	@Override
+	public int numberOfSamples() {
+		return size;
+	}
+
+	@Override
+	public int numberOfClasses() {
+		return numberOfClasses;
+	}
+
+	@Override
+	public int classIndex(int sample) {
+		return classes[sample >>> CHUNK_BITS][sample & CHUNK_MASK] & 0xffff;
+	}
+
+	@Override
+	public void gather(int feature, int[] samples, int from, int to, float[] values) {
+		int featureOffset = feature << CHUNK_BITS;
+		for (int i = from; i < to; i++) {
+			int sample = samples[i];
+			values[i - from] = this.values[sample >>> CHUNK_BITS][featureOffset + (sample &
+				CHUNK_MASK)];
+		}
+	}
+
+	/**
+	 * Adds a sample. The feature values are read from
+	 * {@code features[offset ... offset + numberOfFeatures - 1]}.
+	 */
+	public void add(float[] features, int offset, int classIndex) {
+		if (size == Integer.MAX_VALUE)
+			throw new IllegalStateException("Too many samples.");
+		int chunk = size >>> CHUNK_BITS;
+		int index = size & CHUNK_MASK;
+		if (index == 0)
+			allocateChunk(chunk);
+		float[] chunkValues = values[chunk];
+		for (int f = 0; f < numberOfFeatures; f++)
+			chunkValues[(f << CHUNK_BITS) + index] = features[offset + f];
+		classes[chunk][index] = (short) classIndex;
+		size++;
+	}
+
+	/**
+	 * Appends all samples of the other matrix. Full chunks are shared between
+	 * both matrices if possible, instead of being copied. This is safe, because
+	 * full chunks are never modified.
+	 */
+	public void addAll(ChunkedTrainingMatrix other) {
+		if (other.numberOfFeatures != numberOfFeatures)
+			throw new IllegalArgumentException("Number of features differs.");
+		if ((long) size + other.size > Integer.MAX_VALUE)
+			throw new IllegalStateException("Too many samples.");
+		for (int chunk = 0; chunk << CHUNK_BITS < other.size; chunk++) {
+			int count = Math.min(CHUNK_SIZE, other.size - (chunk << CHUNK_BITS));
+			addChunk(other.values[chunk], other.classes[chunk], count);
+		}
+	}
+
+	/**
+	 * Returns a new matrix, that contains the given samples of this matrix, in
+	 * the given order.
+	 */
+	public ChunkedTrainingMatrix select(int[] samples) {
+		ChunkedTrainingMatrix result = new ChunkedTrainingMatrix(numberOfFeatures, numberOfClasses);
+		for (int from = 0; from < samples.length; from += CHUNK_SIZE) {
+			int to = Math.min(samples.length, from + CHUNK_SIZE);
+			int chunk = from >>> CHUNK_BITS;
+			result.allocateChunk(chunk);
+			float[] chunkValues = result.values[chunk];
+			float[] column = new float[to - from];
+			for (int f = 0; f < numberOfFeatures; f++) {
+				gather(f, samples, from, to, column);
+				System.arraycopy(column, 0, chunkValues, f << CHUNK_BITS, to - from);
+			}
+			for (int i = from; i < to; i++)
+				result.classes[chunk][i - from] = classes[samples[i] >>> CHUNK_BITS][samples[i] &
+					CHUNK_MASK];
+			result.size = to;
+		}
+		return result;
+	}
+
+	private void addChunk(float[] chunkValues, short[] chunkClasses, int count) {
+		if ((size & CHUNK_MASK) == 0 && count == CHUNK_SIZE) {
+			int chunk = size >>> CHUNK_BITS;
+			ensureCapacity(chunk + 1);
+			values[chunk] = chunkValues;
+			classes[chunk] = chunkClasses;
+			size += count;
+			return;
+		}
+		int copied = 0;
+		while (copied < count) {
+			int chunk = size >>> CHUNK_BITS;
+			int index = size & CHUNK_MASK;
+			if (index == 0)
+				allocateChunk(chunk);
+			int length = Math.min(count - copied, CHUNK_SIZE - index);
+			for (int f = 0; f < numberOfFeatures; f++)
+				System.arraycopy(chunkValues, (f << CHUNK_BITS) + copied, values[chunk],
+					(f << CHUNK_BITS) + index, length);
+			System.arraycopy(chunkClasses, copied, classes[chunk], index, length);
+			copied += length;
+			size += length;
+		}
+	}
+
+	private void allocateChunk(int chunk) {
+		ensureCapacity(chunk + 1);
+		values[chunk] = new float[numberOfFeatures << CHUNK_BITS];
+		classes[chunk] = new short[CHUNK_SIZE];
+	}
+
+	private void ensureCapacity(int numberOfChunks) {
+		if (values.length >= numberOfChunks)
+			return;
+		int capacity = Math.max(numberOfChunks, 2 * values.length);
+		values = Arrays.copyOf(values, capacity);
+		classes = Arrays.copyOf(classes, capacity);
+	}
+}
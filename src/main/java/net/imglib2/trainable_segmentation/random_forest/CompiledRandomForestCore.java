@@ -0,0 +1,167 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Random forest evaluation by generated byte code.
+ * <p>
+ * The trees of the random forest are compiled into classes that implement
+ * {@link CompiledTreeGroup}, see {@link TreeGroupClassWriter}. The attribute
+ * indices and thresholds become constants in the byte code. This allows the
+ * JIT compiler to generate straight-line code with constant operands, and the
+ * CPU to predict branches per tree node.
+ * <p>
+ * Trees are ordered and leaf probabilities are accumulated exactly like in
+ * {@link CpuRandomForestCore}, the results are therefore bit-identical. Use
+ * {@link #compileOrInterpret} to fall back to {@link CpuRandomForestCore}, if a
+ * single tree exceeds the size limit of a JIT compiled method.
+ */
+class CompiledRandomForestCore implements CpuRandomForestEngine {
+
+	private final int numClasses;
+
+	private final float[] prior;
+
+	private final int numTrees;
+
+	private final float[] leafProbabilities;
+
+	private final CompiledTreeGroup[] groups;
+
+	/**
+	 * Sizes of the byte code of the generated methods, one per group.
+	 */
+	private final int[] codeSizes;
+
+	private CompiledRandomForestCore(final TransparentRandomForest forest) {
+		numClasses = forest.numberOfClasses();
+		final SortedTrees sortedTrees = new SortedTrees(forest);
+		prior = sortedTrees.prior(numClasses);
+		final List<TransparentRandomTree> nonLeafTrees = sortedTrees.nonLeafTrees();
+		numTrees = nonLeafTrees.size();
+		leafProbabilities = new float[sortedTrees.numberOfLeafs() * numClasses];
+		final GroupClassLoader classLoader = new GroupClassLoader(getClass().getClassLoader());
+		final List<CompiledTreeGroup> groups = new ArrayList<>();
+		final List<Integer> codeSizes = new ArrayList<>();
+		TreeGroupClassWriter writer = new TreeGroupClassWriter();
+		int probabilitiesBase = 0;
+		for (int t = 0; t < numTrees; t++) {
+			final TransparentRandomTree tree = nonLeafTrees.get(t);
+			if (writer.codeSize() + TreeGroupClassWriter.estimateCodeSize(tree) >=
+				TreeGroupClassWriter.MAX_CODE_SIZE)
+			{
+				groups.add(classLoader.newInstance(writer, groups.size()));
+				codeSizes.add(writer.codeSize());
+				writer = new TreeGroupClassWriter();
+			}
+			final int[] leafOffsets = new int[tree.numberOfLeafs()];
+			probabilitiesBase = writeLeafs(tree, leafOffsets, new int[1], probabilitiesBase);
+			writer.addTree(tree, t, leafOffsets);
+		}
+		if (writer.codeSize() > 0) {
+			groups.add(classLoader.newInstance(writer, groups.size()));
+			codeSizes.add(writer.codeSize());
+		}
+		this.groups = groups.toArray(new CompiledTreeGroup[0]);
+		this.codeSizes = codeSizes.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * Returns a {@link CompiledRandomForestCore} for the given random forest. Or a
+	 * flattened forest, see {@link ShardedRandomForestCore#flatten}, if the forest
+	 * can not be compiled, because a tree is too big. A tree is too big, if its
+	 * method would exceed {@link TreeGroupClassWriter#MAX_CODE_SIZE}, and
+	 * therefore would not be JIT compiled.
+	 */
+	static CpuRandomForestEngine compileOrInterpret(final TransparentRandomForest forest) {
+		boolean compilable = forest.trees().stream().allMatch(
+			tree -> TreeGroupClassWriter.estimateCodeSize(tree) < TreeGroupClassWriter.MAX_CODE_SIZE);
+		return compilable ? new CompiledRandomForestCore(forest)
+			: ShardedRandomForestCore.flatten(forest);
+	}
+
+	/**
+	 * Copies the leaf probabilities of the given tree into leafProbabilities[],
+	 * and stores their offsets in leafOffsets[], in depth first order.
+	 */
+	private int writeLeafs(final TransparentRandomTree node, final int[] leafOffsets,
+		final int[] nextLeaf, int probabilitiesBase)
+	{
+		if (node.isLeaf()) {
+			leafOffsets[nextLeaf[0]++] = probabilitiesBase;
+			for (int i = 0; i < numClasses; ++i)
+				leafProbabilities[probabilitiesBase + i] = (float) node.classProbabilities()[i];
+			return probabilitiesBase + numClasses;
+		}
+		probabilitiesBase = writeLeafs(node.smallerChild(), leafOffsets, nextLeaf,
+			probabilitiesBase);
+		return writeLeafs(node.biggerChild(), leafOffsets, nextLeaf, probabilitiesBase);
+	}
+
+	/**
+	 * Returns the sizes of the byte code of the generated methods, one per
+	 * group of trees.
+	 */
+	int[] codeSizes() {
+		return codeSizes.clone();
+	}
+
+	@Override
+	public int numberOfClasses() {
+		return numClasses;
+	}
+
+	@Override
+	public void distributionForInstance(final float[] instance, final float[] distribution) {
+		evaluate(instance, 0, new int[numTrees], distribution, 0);
+	}
+
+	@Override
+	public void distributionForInstances(final float[] instances, final int instancesOffset,
+		final int instanceStride, final int numInstances, final float[] distributions)
+	{
+		final int[] leafs = new int[numTrees];
+		for (int i = 0; i < numInstances; i++)
+			evaluate(instances, instancesOffset + i * instanceStride, leafs, distributions,
+				i * numClasses);
+	}
+
+	private void evaluate(final float[] instances, final int instanceBase, final int[] leafs,
+		final float[] distributions, final int distributionBase)
+	{
+		for (final CompiledTreeGroup group : groups)
+			group.evaluate(instances, instanceBase, leafs);
+		System.arraycopy(prior, 0, distributions, distributionBase, numClasses);
+		for (int t = 0; t < numTrees; t++) {
+			final int o = leafs[t];
+			for (int k = 0; k < numClasses; k++)
+				distributions[distributionBase + k] += leafProbabilities[o + k];
+		}
+		CpuRandomForestCore.normalize(distributions, distributionBase, numClasses);
+	}
+
+	/**
+	 * Class loader for the generated classes of one random forest. The classes
+	 * can be garbage collected together with the forest.
+	 */
+	private static class GroupClassLoader extends ClassLoader {
+
+		private GroupClassLoader(final ClassLoader parent) {
+			super(parent);
+		}
+
+		private CompiledTreeGroup newInstance(final TreeGroupClassWriter writer, final int index) {
+			final String className = CompiledTreeGroup.class.getName() + "$Generated" + index;
+			final byte[] bytes = writer.toClassFile(className);
+			final Class<?> clazz = defineClass(className, bytes, 0, bytes.length);
+			resolveClass(clazz);
+			try {
+				return (CompiledTreeGroup) clazz.getConstructor().newInstance();
+			}
+			catch (final ReflectiveOperationException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
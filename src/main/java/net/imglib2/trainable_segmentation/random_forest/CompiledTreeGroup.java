@@ -0,0 +1,23 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+/**
+ * Interface of the classes generated by {@link TreeGroupClassWriter}. Each
+ * generated class evaluates a group of trees of a random forest.
+ * <p>
+ * NB: This interface needs to be public, because the generated classes are
+ * defined by a different class loader, and therefore belong to a different
+ * runtime package.
+ */
+public interface CompiledTreeGroup {
+
+	/**
+	 * Applies the trees of the group to the given instance. For each tree t of the
+	 * group, the offset of the resulting leaf probabilities is written to
+	 * {@code leafs[t]}.
+	 *
+	 * @param instances Array that contains the feature vector.
+	 * @param instanceBase Offset into instances[] where the feature vector starts.
+	 * @param leafs Output buffer, indexed by the tree index within the forest.
+	 */
+	void evaluate(float[] instances, int instanceBase, int[] leafs);
+}
@@ -1,21 +1,46 @@
 
 package net.imglib2.trainable_segmentation.random_forest;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 
 import hr.irb.fastRandomForest.FastRandomForest;
 import net.imglib2.trainable_segmentation.utils.ArrayUtils;
 
-class CpuRandomForestCore {
+class CpuRandomForestCore implements CpuRandomForestEngine {
 
 	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
 
 	private static final int COMPACT_STORAGE_MIN_HEIGHT = 4;
 
+	/**
+	 * Trees of height {@code >= COMPACT_STORAGE_MIN_HEIGHT} are stored
+	 * "expanded", if this needs at most this factor times the memory of the
+	 * "compact" storage. See {@link #isExpanded}.
+	 */
+	private static final double MAX_EXPANSION_FACTOR = 1.5;
+
+	private static final int MAX_EXPANDED_HEIGHT = 24;
+
+	/**
+	 * Marks a tree of height {@code >= COMPACT_STORAGE_MIN_HEIGHT}, that is stored
+	 * "expanded", in the first header entry.
+	 */
+	private static final int EXPANDED_TREE = -1;
+
 	/*
 	The random forest is encoded in the following attributes[], thresholds[],
 	and probabilities[] arrays.
@@ -42,10 +67,13 @@ class CpuRandomForestCore {
 	At the leafs at maximum depth of the tree, no attributes[] and thresholds[]
 	space is required, instead probabilities[] contains the leaf probabilities.
 	
-	A value attribute[i] < 0 signifies that this branch of the tree terminates
-	at node i (early, i is not at full depth). In this case, the leaf
-	probabilities are stored at the position we would reach by always going to
-	the left child until we reach full depth.
+	If a branch of the tree terminates early, at a leaf node i that is not at
+	full depth, the leaf is padded: node i and all the nodes below it get
+	attribute index 0 and threshold 0, and the leaf probabilities are copied
+	into all the leaf slots below node i. Every path from the root therefore
+	has exactly h comparisons, and trees can be evaluated without checking for
+	early leafs. See distributionForInstances() which evaluates the trees of a
+	block of instances depth by depth, in a branch free manner.
 	
 	Trees are ordered by height. So first all trees of height 1 are put into the
 	arrays, then height 2, etc.
@@ -84,6 +112,20 @@ class CpuRandomForestCore {
 	
 	For accumulating leaf probabilities there are again special case
 	implementations for 2 classes and 3 classes.
+	
+	Expanded Storage for Tall Trees:
+	--------------------------------
+	
+	The storage mode of trees with COMPACT_STORAGE_MIN_HEIGHT or more is
+	chosen per tree. A tree that is close to a full binary tree wastes little
+	memory when expanded, and evaluating it is faster. Such trees are stored
+	"expanded" (see isExpanded()), but they keep the two entries before their
+	attributes[]: the first one is EXPANDED_TREE, the second one is the number
+	of leaf probabilities slots. Unlike for short trees, the thresholds[] of
+	these trees don't start at the same offset as their attributes[].
+	
+	The order of the trees doesn't depend on the storage mode, and the class
+	probabilities are accumulated in the same order as in all other engines.
 	*/
 
 	private final int[] attributes;
@@ -128,23 +170,11 @@ class CpuRandomForestCore {
 			final List<TransparentRandomTree> trees =
 				treesByHeight.getOrDefault(height, Collections.emptyList());
 			numTreesOfHeight[height] = trees.size();
-			if (height < COMPACT_STORAGE_MIN_HEIGHT) {
-				final long numTrees = trees.size();
-				final int numLeafs = 1 << height;
-				final int numNonLeafs = numLeafs - 1;
-				attributesSize += numNonLeafs * numTrees;
-				thresholdsSize += numNonLeafs * numTrees;
-				probabilitiesSize += numLeafs * numClasses * numTrees;
-			}
-			else {
-				for (final TransparentRandomTree tree : trees) {
-					final int numNodes = tree.numberOfNodes();
-					final int numLeafs = tree.numberOfLeafs();
-					final int numNonLeafs = numNodes - numLeafs;
-					attributesSize += 2 + 3 * numNonLeafs;
-					thresholdsSize += numNonLeafs;
-					probabilitiesSize += numLeafs * numClasses;
-				}
+			for (final TransparentRandomTree tree : trees) {
+				final long[] size = storageSize(tree, numClasses);
+				attributesSize += size[0];
+				thresholdsSize += size[1];
+				probabilitiesSize += size[2];
 			}
 		}
 
@@ -176,7 +206,7 @@ class CpuRandomForestCore {
 				final int dataSize = numNonLeafs;
 				final int probSize = numLeafs * numClasses;
 				for (final TransparentRandomTree tree : trees) {
-					write(tree, 0, 0, 0, height, attributesBase,
+					write(tree, 0, 0, 0, height, attributesBase, thresholdsBase,
 						probabilitiesBase);
 					attributesBase += dataSize;
 					thresholdsBase += dataSize;
@@ -185,6 +215,18 @@ class CpuRandomForestCore {
 			}
 			else {
 				for (final TransparentRandomTree tree : trees) {
+					if (isExpanded(tree, numClasses)) {
+						final int numLeafs = 1 << height;
+						final int dataSize = numLeafs - 1;
+						write(tree, 0, 0, 0, height, attributesBase + 2, thresholdsBase,
+							probabilitiesBase);
+						attributes[attributesBase] = EXPANDED_TREE;
+						attributes[attributesBase + 1] = numLeafs * numClasses;
+						attributesBase += 2 + dataSize;
+						thresholdsBase += dataSize;
+						probabilitiesBase += numLeafs * numClasses;
+						continue;
+					}
 					j[0] = 0;
 					final int size =
 						write_compact(tree, 0, j, attributesBase + 2,
@@ -199,6 +241,18 @@ class CpuRandomForestCore {
 		}
 	}
 
+	private CpuRandomForestCore(final int numClasses, final int[] numTreesOfHeight,
+		final float[] prior, final int[] attributes, final float[] thresholds,
+		final float[] probabilities)
+	{
+		this.numClasses = numClasses;
+		this.numTreesOfHeight = numTreesOfHeight;
+		this.prior = prior;
+		this.attributes = attributes;
+		this.thresholds = thresholds;
+		this.probabilities = probabilities;
+	}
+
 	/**
 	 * Serialize a node into the attributes, thresholds, and probabilities arrays.
 	 * This implements the "Expanded Storage" scheme.
@@ -211,40 +265,45 @@ class CpuRandomForestCore {
 	 *          go left, then right, then left.)
 	 * @param depth depth of {@code node}.
 	 * @param height height of the tree.
-	 * @param treeDataBase offset into attributes[], thresholds[] where the current
-	 *          tree is placed.
+	 * @param treeAttributesBase offset into attributes[] where the current tree is
+	 *          placed.
+	 * @param treeThresholdsBase offset into thresholds[] where the current tree is
+	 *          placed.
 	 * @param treeProbBase offset into probabilities[] where the current tree is
 	 *          placed.
 	 */
 	private void write(final TransparentRandomTree node, final int nodeIndex,
 		final int branchBits, final int depth, final int height,
-		final int treeDataBase, final int treeProbBase)
-	{
-		if (node.isLeaf()) {
-			final int b;
-			if (depth < height) {
-				// mark as leaf by setting attribute index to -1
-				final int o = treeDataBase + nodeIndex;
-				attributes[o] = -1;
-				b = branchBits << (height - depth);
-			}
-			else b = branchBits;
-			final int o = treeProbBase + b * numClasses;
+		final int treeAttributesBase, final int treeThresholdsBase,
+		final int treeProbBase)
+	{
+		if (depth == height) {
+			final int o = treeProbBase + branchBits * numClasses;
 			for (int i = 0; i < numClasses; ++i)
 				probabilities[o + i] = (float) node.classProbabilities()[i];
 		}
+		else if (node.isLeaf()) {
+			// pad the early leaf with a dummy comparison, and replicate it
+			attributes[treeAttributesBase + nodeIndex] = 0;
+			thresholds[treeThresholdsBase + nodeIndex] = 0;
+			write(node, 2 * nodeIndex + 1, (branchBits << 1), depth + 1, height,
+				treeAttributesBase, treeThresholdsBase, treeProbBase);
+			write(node, 2 * nodeIndex + 2, (branchBits << 1) + 1, depth + 1,
+				height, treeAttributesBase, treeThresholdsBase, treeProbBase);
+		}
 		else // not a leaf
 		{
 			// write feature index and threshold
-			final int o = treeDataBase + nodeIndex;
-			attributes[o] = node.attributeIndex();
-			thresholds[o] = (float) node.threshold();
+			attributes[treeAttributesBase + nodeIndex] = node.attributeIndex();
+			thresholds[treeThresholdsBase + nodeIndex] = (float) node.threshold();
 
 			// recursively write children
 			write(node.smallerChild(), 2 * nodeIndex + 1, (branchBits << 1),
-				depth + 1, height, treeDataBase, treeProbBase);
+				depth + 1, height, treeAttributesBase, treeThresholdsBase,
+				treeProbBase);
 			write(node.biggerChild(), 2 * nodeIndex + 2, (branchBits << 1) + 1,
-				depth + 1, height, treeDataBase, treeProbBase);
+				depth + 1, height, treeAttributesBase, treeThresholdsBase,
+				treeProbBase);
 		}
 	}
 
@@ -307,6 +366,67 @@ class CpuRandomForestCore {
 		return 1 + lsize + rsize;
 	}
 
+	/**
+	 * Returns the number of attributes[], thresholds[] and probabilities[]
+	 * entries, that are needed to store the given tree.
+	 */
+	static long[] storageSize(final TransparentRandomTree tree,
+		final int numClasses)
+	{
+		final int height = tree.height();
+		if (height == 0)
+			return new long[3];
+		if (height < COMPACT_STORAGE_MIN_HEIGHT || isExpanded(tree, numClasses)) {
+			final long numLeafs = 1L << height;
+			final long header = height < COMPACT_STORAGE_MIN_HEIGHT ? 0 : 2;
+			return new long[] { header + numLeafs - 1, numLeafs - 1, numLeafs *
+				numClasses };
+		}
+		final long numLeafs = tree.numberOfLeafs();
+		final long numNonLeafs = tree.numberOfNodes() - numLeafs;
+		return new long[] { 2 + 3 * numNonLeafs, numNonLeafs, numLeafs *
+			numClasses };
+	}
+
+	/**
+	 * Returns true if a tree of height {@code >= COMPACT_STORAGE_MIN_HEIGHT}
+	 * should be stored "expanded". This is the case for trees that are almost
+	 * full binary trees, where the padding needs at most
+	 * {@link #MAX_EXPANSION_FACTOR} times the memory of the "compact" storage.
+	 */
+	private static boolean isExpanded(final TransparentRandomTree tree,
+		final int numClasses)
+	{
+		final int height = tree.height();
+		if (height > MAX_EXPANDED_HEIGHT)
+			return false;
+		final long numLeafs = tree.numberOfLeafs();
+		final long numNonLeafs = tree.numberOfNodes() - numLeafs;
+		final long expandedSize = 2 + 2 * ((1L << height) - 1) + (1L << height) *
+			numClasses;
+		final long compactSize = 2 + 4 * numNonLeafs + numLeafs * numClasses;
+		return expandedSize <= MAX_EXPANSION_FACTOR * compactSize;
+	}
+
+	/**
+	 * Number of attributes[] entries used by the tree, that starts at the given
+	 * offset. Only for trees of height {@code >= COMPACT_STORAGE_MIN_HEIGHT},
+	 * including the two header entries.
+	 */
+	private int attributesSize(final int attributesBase, final int height) {
+		final int size = attributes[attributesBase];
+		return 2 + (size == EXPANDED_TREE ? (1 << height) - 1 : 3 * size);
+	}
+
+	/**
+	 * Number of thresholds[] entries used by the tree, that starts at the given
+	 * offset in attributes[]. See {@link #attributesSize}.
+	 */
+	private int thresholdsSize(final int attributesBase, final int height) {
+		final int size = attributes[attributesBase];
+		return size == EXPANDED_TREE ? (1 << height) - 1 : size;
+	}
+
 	/**
 	 * Applies the random forest to the given instance. Writes the class
 	 * probabilities to {@code distribution}. Depending on the number of classes,
@@ -319,7 +439,8 @@ class CpuRandomForestCore {
 	 * @param distribution This is the output buffer, array length must equal number
 	 *          of classes.
 	 */
-	void distributionForInstance(final float[] instance,
+	@Override
+	public void distributionForInstance(final float[] instance,
 		final float[] distribution)
 	{
 		switch (numClasses) {
@@ -360,7 +481,7 @@ class CpuRandomForestCore {
 				final int probSize = 2 * numClasses;
 				for (int tree = 0; tree < nh; ++tree) {
 					final int branchBits =
-						evaluateTree_h1(instance, attributesBase);
+						evaluateTree_h1(instance, 0, attributesBase);
 					acc(distribution, numClasses, probabilitiesBase,
 						branchBits * numClasses);
 					attributesBase += dataSize;
@@ -373,7 +494,7 @@ class CpuRandomForestCore {
 				final int probSize = 4 * numClasses;
 				for (int tree = 0; tree < nh; ++tree) {
 					final int branchBits =
-						evaluateTree_h2(instance, attributesBase);
+						evaluateTree_h2(instance, 0, attributesBase);
 					acc(distribution, numClasses, probabilitiesBase,
 						branchBits * numClasses);
 					attributesBase += dataSize;
@@ -386,7 +507,7 @@ class CpuRandomForestCore {
 				final int probSize = 8 * numClasses;
 				for (int tree = 0; tree < nh; ++tree) {
 					final int branchBits =
-						evaluateTree_h3(instance, attributesBase);
+						evaluateTree_h3(instance, 0, attributesBase);
 					acc(distribution, numClasses, probabilitiesBase,
 						branchBits * numClasses);
 					attributesBase += dataSize;
@@ -400,7 +521,8 @@ class CpuRandomForestCore {
 				final int probSize = numLeafs * numClasses;
 				for (int tree = 0; tree < nh; ++tree) {
 					final int branchBits =
-						evaluateTree(instance, attributesBase, height);
+						evaluateTree(instance, 0, attributesBase, attributesBase,
+							height);
 					acc(distribution, numClasses, probabilitiesBase,
 						branchBits * numClasses);
 					attributesBase += dataSize;
@@ -415,21 +537,14 @@ class CpuRandomForestCore {
 			if (nh == 0) continue;
 
 			for (int tree = 0; tree < nh; ++tree) {
-				final int attrSize = attributes[attributesBase];
 				final int probSize = attributes[attributesBase + 1];
-				int node = 0;
-				while (node >= 0) {
-					final int attributeIndex =
-						attributes[attributesBase + 2 + 3 * node];
-					final float attributeValue = instance[attributeIndex];
-					final float threshold = thresholds[thresholdsBase + node];
-					node = (attributeValue < threshold) ? attributes[attributesBase + 2 + 3 * node + 1]
-						: attributes[attributesBase + 2 + 3 * node + 2];
-				}
-				final int j = node - Integer.MIN_VALUE;
+				final int j = attributes[attributesBase] == EXPANDED_TREE
+					? evaluateTree(instance, 0, attributesBase + 2, thresholdsBase, height) *
+						numClasses : evaluateTree_compact(instance, 0, attributesBase,
+							thresholdsBase);
 				acc(distribution, numClasses, probabilitiesBase, j);
-				attributesBase += 2 + 3 * attrSize;
-				thresholdsBase += attrSize;
+				thresholdsBase += thresholdsSize(attributesBase, height);
+				attributesBase += attributesSize(attributesBase, height);
 				probabilitiesBase += probSize;
 			}
 		}
@@ -467,7 +582,7 @@ class CpuRandomForestCore {
 				final int probSize = 2 * numClasses;
 				for (int tree = 0; tree < nh; ++tree) {
 					final int branchBits =
-						evaluateTree_h1(instance, attributesBase);
+						evaluateTree_h1(instance, 0, attributesBase);
 					c0 += probabilities[probabilitiesBase +
 						branchBits * numClasses];
 					c1 += probabilities[probabilitiesBase +
@@ -482,7 +597,7 @@ class CpuRandomForestCore {
 				final int probSize = 4 * numClasses;
 				for (int tree = 0; tree < nh; ++tree) {
 					final int branchBits =
-						evaluateTree_h2(instance, attributesBase);
+						evaluateTree_h2(instance, 0, attributesBase);
 					c0 += probabilities[probabilitiesBase +
 						branchBits * numClasses];
 					c1 += probabilities[probabilitiesBase +
@@ -497,7 +612,7 @@ class CpuRandomForestCore {
 				final int probSize = 8 * numClasses;
 				for (int tree = 0; tree < nh; ++tree) {
 					final int branchBits =
-						evaluateTree_h3(instance, attributesBase);
+						evaluateTree_h3(instance, 0, attributesBase);
 					c0 += probabilities[probabilitiesBase +
 						branchBits * numClasses];
 					c1 += probabilities[probabilitiesBase +
@@ -513,7 +628,8 @@ class CpuRandomForestCore {
 				final int probSize = numLeafs * numClasses;
 				for (int tree = 0; tree < nh; ++tree) {
 					final int branchBits =
-						evaluateTree(instance, attributesBase, height);
+						evaluateTree(instance, 0, attributesBase, attributesBase,
+							height);
 					c0 += probabilities[probabilitiesBase +
 						branchBits * numClasses];
 					c1 += probabilities[probabilitiesBase +
@@ -530,22 +646,15 @@ class CpuRandomForestCore {
 			if (nh == 0) continue;
 
 			for (int tree = 0; tree < nh; ++tree) {
-				final int attrSize = attributes[attributesBase];
 				final int probSize = attributes[attributesBase + 1];
-				int node = 0;
-				while (node >= 0) {
-					final int attributeIndex =
-						attributes[attributesBase + 2 + 3 * node];
-					final float attributeValue = instance[attributeIndex];
-					final float threshold = thresholds[thresholdsBase + node];
-					node = (attributeValue < threshold) ? attributes[attributesBase + 2 + 3 * node + 1]
-						: attributes[attributesBase + 2 + 3 * node + 2];
-				}
-				final int j = node - Integer.MIN_VALUE;
+				final int j = attributes[attributesBase] == EXPANDED_TREE
+					? evaluateTree(instance, 0, attributesBase + 2, thresholdsBase, height) *
+						numClasses : evaluateTree_compact(instance, 0, attributesBase,
+							thresholdsBase);
 				c0 += probabilities[probabilitiesBase + j];
 				c1 += probabilities[probabilitiesBase + j + 1];
-				attributesBase += 2 + 3 * attrSize;
-				thresholdsBase += attrSize;
+				thresholdsBase += thresholdsSize(attributesBase, height);
+				attributesBase += attributesSize(attributesBase, height);
 				probabilitiesBase += probSize;
 			}
 		}
@@ -579,7 +688,7 @@ class CpuRandomForestCore {
 				final int probSize = 2 * numClasses;
 				for (int tree = 0; tree < nh; ++tree) {
 					final int branchBits =
-						evaluateTree_h1(instance, attributesBase);
+						evaluateTree_h1(instance, 0, attributesBase);
 					c0 += probabilities[probabilitiesBase +
 						branchBits * numClasses];
 					c1 += probabilities[probabilitiesBase +
@@ -596,7 +705,7 @@ class CpuRandomForestCore {
 				final int probSize = 4 * numClasses;
 				for (int tree = 0; tree < nh; ++tree) {
 					final int branchBits =
-						evaluateTree_h2(instance, attributesBase);
+						evaluateTree_h2(instance, 0, attributesBase);
 					c0 += probabilities[probabilitiesBase +
 						branchBits * numClasses];
 					c1 += probabilities[probabilitiesBase +
@@ -613,7 +722,7 @@ class CpuRandomForestCore {
 				final int probSize = 8 * numClasses;
 				for (int tree = 0; tree < nh; ++tree) {
 					final int branchBits =
-						evaluateTree_h3(instance, attributesBase);
+						evaluateTree_h3(instance, 0, attributesBase);
 					c0 += probabilities[probabilitiesBase +
 						branchBits * numClasses];
 					c1 += probabilities[probabilitiesBase +
@@ -631,7 +740,8 @@ class CpuRandomForestCore {
 				final int probSize = numLeafs * numClasses;
 				for (int tree = 0; tree < nh; ++tree) {
 					final int branchBits =
-						evaluateTree(instance, attributesBase, height);
+						evaluateTree(instance, 0, attributesBase, attributesBase,
+							height);
 					c0 += probabilities[probabilitiesBase +
 						branchBits * numClasses];
 					c1 += probabilities[probabilitiesBase +
@@ -650,23 +760,16 @@ class CpuRandomForestCore {
 			if (nh == 0) continue;
 
 			for (int tree = 0; tree < nh; ++tree) {
-				final int attrSize = attributes[attributesBase];
 				final int probSize = attributes[attributesBase + 1];
-				int node = 0;
-				while (node >= 0) {
-					final int attributeIndex =
-						attributes[attributesBase + 2 + 3 * node];
-					final float attributeValue = instance[attributeIndex];
-					final float threshold = thresholds[thresholdsBase + node];
-					node = (attributeValue < threshold) ? attributes[attributesBase + 2 + 3 * node + 1]
-						: attributes[attributesBase + 2 + 3 * node + 2];
-				}
-				final int j = node - Integer.MIN_VALUE;
+				final int j = attributes[attributesBase] == EXPANDED_TREE
+					? evaluateTree(instance, 0, attributesBase + 2, thresholdsBase, height) *
+						numClasses : evaluateTree_compact(instance, 0, attributesBase,
+							thresholdsBase);
 				c0 += probabilities[probabilitiesBase + j];
 				c1 += probabilities[probabilitiesBase + j + 1];
 				c2 += probabilities[probabilitiesBase + j + 2];
-				attributesBase += 2 + 3 * attrSize;
-				thresholdsBase += attrSize;
+				thresholdsBase += thresholdsSize(attributesBase, height);
+				attributesBase += attributesSize(attributesBase, height);
 				probabilitiesBase += probSize;
 			}
 		}
@@ -677,47 +780,230 @@ class CpuRandomForestCore {
 		distribution[2] = c2 * invsum;
 	}
 
+	/**
+	 * Applies the random forest to a block of instances. Writes the class
+	 * probabilities of instance i to {@code distributions[i * numClasses ...]}.
+	 * <p>
+	 * The forest is evaluated tree by tree: each tree is applied to all instances
+	 * of the block before moving on to the next tree. The nodes of a tree
+	 * therefore stay in the CPU cache while the instances are streamed through.
+	 * The results are bit-identical to {@link #distributionForInstance}.
+	 *
+	 * @param instances Contiguous block of feature vectors. Feature vector i starts
+	 *          at {@code instancesOffset + i * instanceStride}.
+	 * @param instancesOffset Start of the first feature vector in instances[].
+	 * @param instanceStride Distance between two feature vectors in instances[].
+	 *          Must be at least the number of features.
+	 * @param numInstances Number of feature vectors in the block.
+	 * @param distributions Output buffer, length must be at least
+	 *          {@code numInstances * numberOfClasses()}.
+	 */
+	@Override
+	public void distributionForInstances(final float[] instances,
+		final int instancesOffset, final int instanceStride, final int numInstances,
+		final float[] distributions)
+	{
+		Arrays.fill(distributions, 0, numInstances * numClasses, 0);
+		addDistributionForInstances(instances, instancesOffset, instanceStride,
+			numInstances, distributions);
+		for (int i = 0; i < numInstances; i++)
+			normalize(distributions, i * numClasses, numClasses);
+	}
+
+	/**
+	 * Same as {@link #distributionForInstances}, but the prior and the leaf
+	 * probabilities are added to the given distributions, which are not
+	 * normalized afterwards. This allows to split a forest into several
+	 * {@link CpuRandomForestCore}s, see {@link ShardedRandomForestCore}.
+	 */
+	void addDistributionForInstances(final float[] instances,
+		final int instancesOffset, final int instanceStride, final int numInstances,
+		final float[] distributions)
+	{
+		final int numClasses = this.numClasses;
+		for (int i = 0; i < numInstances; i++)
+			for (int k = 0; k < numClasses; k++)
+				distributions[i * numClasses + k] += prior[k];
+		final int[] branchBits = new int[numInstances];
+		int attributesBase = 0;
+		int probabilitiesBase = 0;
+		int height = 1;
+		for (; height < numTreesOfHeight.length &&
+			height < COMPACT_STORAGE_MIN_HEIGHT; height++)
+		{
+			final int nh = numTreesOfHeight[height];
+			if (nh == 0) continue;
+
+			final int numLeafs = 1 << height;
+			final int dataSize = numLeafs - 1;
+			final int probSize = numLeafs * numClasses;
+			for (int tree = 0; tree < nh; ++tree) {
+				evaluateTree(instances, instancesOffset, instanceStride, numInstances,
+					attributesBase, attributesBase, height, branchBits);
+				for (int i = 0; i < numInstances; i++)
+					accumulate(distributions, i * numClasses, numClasses,
+						probabilitiesBase + branchBits[i] * numClasses);
+				attributesBase += dataSize;
+				probabilitiesBase += probSize;
+			}
+		}
+
+		int thresholdsBase = attributesBase;
+		for (; height < numTreesOfHeight.length; height++) {
+			final int nh = numTreesOfHeight[height];
+			if (nh == 0) continue;
+
+			for (int tree = 0; tree < nh; ++tree) {
+				final int probSize = attributes[attributesBase + 1];
+				if (attributes[attributesBase] == EXPANDED_TREE) {
+					evaluateTree(instances, instancesOffset, instanceStride, numInstances,
+						attributesBase + 2, thresholdsBase, height, branchBits);
+					for (int i = 0; i < numInstances; i++)
+						accumulate(distributions, i * numClasses, numClasses,
+							probabilitiesBase + branchBits[i] * numClasses);
+				}
+				else {
+					for (int i = 0; i < numInstances; i++) {
+						final int j = evaluateTree_compact(instances, instancesOffset + i *
+							instanceStride, attributesBase, thresholdsBase);
+						accumulate(distributions, i * numClasses, numClasses,
+							probabilitiesBase + j);
+					}
+				}
+				thresholdsBase += thresholdsSize(attributesBase, height);
+				attributesBase += attributesSize(attributesBase, height);
+				probabilitiesBase += probSize;
+			}
+		}
+	}
+
+	/**
+	 * Applies a tree in "expanded" storage to a block of instances. Writes the leaf
+	 * index of instance i into {@code branchBits[i]}. See {@link #evaluateTree}.
+	 * <p>
+	 * The instances are processed like lanes of a SIMD register: the tree is
+	 * descended one level at a time for all instances of the block. Due to the
+	 * padding of early leafs, every instance takes exactly {@code height} steps,
+	 * and there are no data dependent branches, apart from the comparison itself,
+	 * which the JIT compiler turns into a conditional move. The computations for
+	 * the different instances are independent, and can be executed in parallel by
+	 * the CPU.
+	 */
+	private void evaluateTree(final float[] instances, final int instancesOffset,
+		final int instanceStride, final int numInstances, final int attributesBase,
+		final int thresholdsBase, final int height, final int[] branchBits)
+	{
+		// NB: During the descent branchBits[i] holds the node index of instance i.
+		Arrays.fill(branchBits, 0, numInstances, 0);
+		for (int depth = 0; depth < height; ++depth) {
+			for (int i = 0; i < numInstances; i++) {
+				final int nodeIndex = branchBits[i];
+				final int instanceBase = instancesOffset + i * instanceStride;
+				final float attributeValue = instances[instanceBase +
+					attributes[attributesBase + nodeIndex]];
+				final int branch = attributeValue < thresholds[thresholdsBase +
+					nodeIndex] ? 1 : 2;
+				branchBits[i] = (nodeIndex << 1) + branch;
+			}
+		}
+		final int numNonLeafs = (1 << height) - 1;
+		for (int i = 0; i < numInstances; i++)
+			branchBits[i] -= numNonLeafs;
+	}
+
+	private void accumulate(final float[] distributions, final int distributionBase,
+		final int numClasses, final int probOffset)
+	{
+		for (int k = 0; k < numClasses; k++)
+			distributions[distributionBase + k] += probabilities[probOffset + k];
+	}
+
+	/**
+	 * Normalizes the distribution that starts at the given offset. The rounding
+	 * matches {@link #distributionForInstance_c2},
+	 * {@link #distributionForInstance_c3} and {@link #distributionForInstance_ck}
+	 * respectively.
+	 */
+	static void normalize(final float[] distributions, final int offset,
+		final int numClasses)
+	{
+		float sum = 0;
+		for (int k = 0; k < numClasses; k++)
+			sum += distributions[offset + k];
+		if (numClasses == 2 || numClasses == 3) {
+			final float invsum = 1f / sum;
+			for (int k = 0; k < numClasses; k++)
+				distributions[offset + k] *= invsum;
+		}
+		else {
+			for (int k = 0; k < numClasses; k++)
+				distributions[offset + k] /= sum;
+		}
+	}
+
 	/**
 	 * Apply the random forest to the given instance, and return the leaf index for
 	 * the resulting leaf probabilities.
 	 *
-	 * @param instance feature vector to evaluate the tree on.
-	 * @param dataBase offset into attributes[], thresholds[] where the tree is
-	 *          placed.
+	 * @param instances array that contains the feature vector to evaluate the tree
+	 *          on.
+	 * @param instanceBase offset into instances[] where the feature vector starts.
+	 * @param attributesBase offset into attributes[] where the tree is placed.
+	 * @param thresholdsBase offset into thresholds[] where the tree is placed.
+	 *          (Equal to {@code attributesBase} for trees of height
+	 *          {@code < COMPACT_STORAGE_MIN_HEIGHT}.)
 	 * @param height height of the tree.
 	 * @return leaf index at maxDepth after evaluating the instance. (This can be
 	 *         multiplied by {@code numClasses} to get the index into leaf
 	 *         probabilities[] relative to start offset of the tree.)
 	 */
-	private int evaluateTree(final float[] instance, final int dataBase,
-		final int height)
+	private int evaluateTree(final float[] instances, final int instanceBase,
+		final int attributesBase, final int thresholdsBase, final int height)
 	{
 		int branchBits = 0;
 		for (int nodeIndex = 0, depth = 0; depth < height; ++depth) {
-			final int o = dataBase + nodeIndex;
-			final int attributeIndex = attributes[o];
-			if (attributeIndex < 0) {
-				branchBits = branchBits << (height - depth);
-				break;
-			}
-			else {
-				final float attributeValue = instance[attributeIndex];
-				final float threshold = thresholds[o];
-				final int branch = attributeValue < threshold ? 0 : 1;
-				nodeIndex = (nodeIndex << 1) + branch + 1;
-				branchBits = (branchBits << 1) + branch;
-			}
+			final int attributeIndex = attributes[attributesBase + nodeIndex];
+			final float attributeValue = instances[instanceBase + attributeIndex];
+			final float threshold = thresholds[thresholdsBase + nodeIndex];
+			final int branch = attributeValue < threshold ? 0 : 1;
+			nodeIndex = (nodeIndex << 1) + branch + 1;
+			branchBits = (branchBits << 1) + branch;
 		}
 		return branchBits;
 	}
 
+	/**
+	 * Apply a tree in "compact" storage to the given instance, and return the
+	 * index of the resulting leaf probabilities, relative to the start offset of
+	 * the tree in probabilities[].
+	 *
+	 * @param attributesBase offset into attributes[] where the tree, including
+	 *          its two header entries, is placed.
+	 * @param thresholdsBase offset into thresholds[] where the tree is placed.
+	 */
+	private int evaluateTree_compact(final float[] instances,
+		final int instanceBase, final int attributesBase, final int thresholdsBase)
+	{
+		int node = 0;
+		while (node >= 0) {
+			final int attributeIndex = attributes[attributesBase + 2 + 3 * node];
+			final float attributeValue = instances[instanceBase + attributeIndex];
+			final float threshold = thresholds[thresholdsBase + node];
+			node = (attributeValue < threshold) ? attributes[attributesBase + 2 + 3 * node + 1]
+				: attributes[attributesBase + 2 + 3 * node + 2];
+		}
+		return node - Integer.MIN_VALUE;
+	}
+
 	/**
 	 * See {@link #evaluateTree}. This is a special case implementation for trees of
 	 * height 1.
 	 */
-	private int evaluateTree_h1(final float[] instance, final int dataBase) {
+	private int evaluateTree_h1(final float[] instances, final int instanceBase,
+		final int dataBase)
+	{
 		final int attributeIndex = attributes[dataBase];
-		final float attributeValue = instance[attributeIndex];
+		final float attributeValue = instances[instanceBase + attributeIndex];
 		final float threshold = thresholds[dataBase];
 		final int branchBits = attributeValue < threshold ? 0 : 1;
 		return branchBits;
@@ -727,9 +1013,11 @@ class CpuRandomForestCore {
 	 * See {@link #evaluateTree}. This is a special case implementation for trees of
 	 * height 2.
 	 */
-	private int evaluateTree_h2(final float[] instance, final int dataBase) {
+	private int evaluateTree_h2(final float[] instances, final int instanceBase,
+		final int dataBase)
+	{
 		final int attributeIndex0 = attributes[dataBase];
-		final float attributeValue0 = instance[attributeIndex0];
+		final float attributeValue0 = instances[instanceBase + attributeIndex0];
 		final float threshold0 = thresholds[dataBase];
 
 		int branchBits;
@@ -745,8 +1033,7 @@ class CpuRandomForestCore {
 		final int dataBase1 = dataBase + o;
 
 		final int attributeIndex1 = attributes[dataBase1];
-		if (attributeIndex1 < 0) return branchBits;
-		final float attributeValue1 = instance[attributeIndex1];
+		final float attributeValue1 = instances[instanceBase + attributeIndex1];
 		final float threshold1 = thresholds[dataBase1];
 		if (attributeValue1 >= threshold1) branchBits += 1;
 
@@ -757,9 +1044,11 @@ class CpuRandomForestCore {
 	 * See {@link #evaluateTree}. This is a special case implementation for trees of
 	 * height 3.
 	 */
-	private int evaluateTree_h3(final float[] instance, final int dataBase) {
+	private int evaluateTree_h3(final float[] instances, final int instanceBase,
+		final int dataBase)
+	{
 		final int attributeIndex0 = attributes[dataBase];
-		final float attributeValue0 = instance[attributeIndex0];
+		final float attributeValue0 = instances[instanceBase + attributeIndex0];
 		final float threshold0 = thresholds[dataBase];
 
 		int branchBits;
@@ -775,8 +1064,7 @@ class CpuRandomForestCore {
 		final int dataBase1 = dataBase + o;
 
 		final int attributeIndex1 = attributes[dataBase1];
-		if (attributeIndex1 < 0) return branchBits;
-		final float attributeValue1 = instance[attributeIndex1];
+		final float attributeValue1 = instances[instanceBase + attributeIndex1];
 		final float threshold1 = thresholds[dataBase1];
 		if (attributeValue1 < threshold1) {
 			o = o * 2 + 1;
@@ -788,8 +1076,7 @@ class CpuRandomForestCore {
 		final int dataBase2 = dataBase + o;
 
 		final int attributeIndex2 = attributes[dataBase2];
-		if (attributeIndex2 < 0) return branchBits;
-		final float attributeValue2 = instance[attributeIndex2];
+		final float attributeValue2 = instances[instanceBase + attributeIndex2];
 		final float threshold2 = thresholds[dataBase2];
 
 		if (attributeValue2 >= threshold2) branchBits += 1;
@@ -829,7 +1116,8 @@ class CpuRandomForestCore {
 			final int probSize = numLeafs * numClasses;
 			for (int tree = 0; tree < nh; ++tree) {
 				final int branchBits =
-					evaluateTree(instance, attributesBase, height);
+					evaluateTree(instance, 0, attributesBase, attributesBase,
+							height);
 				for (int k = 0; k < numClasses; k++)
 					distribution[k] += probabilities[probabilitiesBase +
 						branchBits * numClasses + k];
@@ -843,29 +1131,700 @@ class CpuRandomForestCore {
 			if (nh == 0) continue;
 
 			for (int tree = 0; tree < nh; ++tree) {
-				final int attrSize = attributes[attributesBase];
 				final int probSize = attributes[attributesBase + 1];
-				int node = 0;
-				while (node >= 0) {
-					final int attributeIndex =
-						attributes[attributesBase + 2 + 3 * node];
-					final float attributeValue = instance[attributeIndex];
-					final float threshold = thresholds[thresholdsBase + node];
-					node = (attributeValue < threshold) ? attributes[attributesBase + 2 + 3 * node + 1]
-						: attributes[attributesBase + 2 + 3 * node + 2];
-				}
-				final int j = node - Integer.MIN_VALUE;
+				final int j = attributes[attributesBase] == EXPANDED_TREE
+					? evaluateTree(instance, 0, attributesBase + 2, thresholdsBase, height) *
+						numClasses : evaluateTree_compact(instance, 0, attributesBase,
+							thresholdsBase);
 				for (int k = 0; k < numClasses; k++)
 					distribution[k] += probabilities[probabilitiesBase + j + k];
-				attributesBase += 2 + 3 * attrSize;
-				thresholdsBase += attrSize;
+				thresholdsBase += thresholdsSize(attributesBase, height);
+				attributesBase += attributesSize(attributesBase, height);
 				probabilitiesBase += probSize;
 			}
 		}
 		ArrayUtils.normalize(distribution);
 	}
 
+	@Override
 	public int numberOfClasses() {
 		return numClasses;
 	}
+
+	/**
+	 * Reconstructs the trees from the flattened arrays. Early leafs, that have
+	 * been padded in "expanded" storage, are restored. All leaf-only trees are
+	 * merged into a single leaf-only tree, that holds the prior.
+	 */
+	public TransparentRandomForest toTransparentRandomForest() {
+		final List<TransparentRandomTree> trees = new ArrayList<>();
+		boolean hasPrior = false;
+		for (final float p : prior)
+			hasPrior |= p != 0;
+		if (hasPrior || attributes.length == 0)
+			trees.add(TransparentRandomTree.leaf(leafProbabilities(prior, 0)));
+		int attributesBase = 0;
+		int probabilitiesBase = 0;
+		int height = 1;
+		for (; height < numTreesOfHeight.length &&
+			height < COMPACT_STORAGE_MIN_HEIGHT; height++)
+		{
+			for (int tree = 0; tree < numTreesOfHeight[height]; ++tree) {
+				trees.add(readExpanded(attributesBase, attributesBase,
+					probabilitiesBase, 0, 0, 0, height));
+				attributesBase += (1 << height) - 1;
+				probabilitiesBase += (1 << height) * numClasses;
+			}
+		}
+		int thresholdsBase = attributesBase;
+		for (; height < numTreesOfHeight.length; height++) {
+			for (int tree = 0; tree < numTreesOfHeight[height]; ++tree) {
+				final int probSize = attributes[attributesBase + 1];
+				if (attributes[attributesBase] == EXPANDED_TREE)
+					trees.add(readExpanded(attributesBase + 2, thresholdsBase,
+						probabilitiesBase, 0, 0, 0, height));
+				else
+					trees.add(readCompact(attributesBase + 2, thresholdsBase,
+						probabilitiesBase, 0));
+				thresholdsBase += thresholdsSize(attributesBase, height);
+				attributesBase += attributesSize(attributesBase, height);
+				probabilitiesBase += probSize;
+			}
+		}
+		return new TransparentRandomForest(Collections.unmodifiableList(trees));
+	}
+
+	/**
+	 * Inverse of {@link #write}.
+	 */
+	private TransparentRandomTree readExpanded(final int treeAttributesBase,
+		final int treeThresholdsBase, final int treeProbBase, final int nodeIndex,
+		final int branchBits, final int depth, final int height)
+	{
+		if (depth == height)
+			return TransparentRandomTree.leaf(leafProbabilities(probabilities,
+				treeProbBase + branchBits * numClasses));
+		final TransparentRandomTree smaller = readExpanded(treeAttributesBase,
+			treeThresholdsBase, treeProbBase, 2 * nodeIndex + 1, branchBits << 1,
+			depth + 1, height);
+		final TransparentRandomTree bigger = readExpanded(treeAttributesBase,
+			treeThresholdsBase, treeProbBase, 2 * nodeIndex + 2, (branchBits << 1) +
+				1, depth + 1, height);
+		final int attribute = attributes[treeAttributesBase + nodeIndex];
+		final float threshold = thresholds[treeThresholdsBase + nodeIndex];
+		final boolean padding = attribute == 0 && threshold == 0 &&
+			smaller.isLeaf() && bigger.isLeaf() && Arrays.equals(smaller
+				.classProbabilities(), bigger.classProbabilities());
+		return padding ? smaller : TransparentRandomTree.node(attribute,
+			threshold, smaller, bigger);
+	}
+
+	/**
+	 * Inverse of {@link #write_compact}.
+	 */
+	private TransparentRandomTree readCompact(final int attributesBase,
+		final int thresholdsBase, final int probabilitiesBase, final int i)
+	{
+		return TransparentRandomTree.node(attributes[attributesBase + 3 * i],
+			thresholds[thresholdsBase + i],
+			readCompactChild(attributesBase, thresholdsBase, probabilitiesBase,
+				attributes[attributesBase + 3 * i + 1]),
+			readCompactChild(attributesBase, thresholdsBase, probabilitiesBase,
+				attributes[attributesBase + 3 * i + 2]));
+	}
+
+	private TransparentRandomTree readCompactChild(final int attributesBase,
+		final int thresholdsBase, final int probabilitiesBase, final int child)
+	{
+		if (child < 0)
+			return TransparentRandomTree.leaf(leafProbabilities(probabilities,
+				probabilitiesBase + child - Integer.MIN_VALUE));
+		return readCompact(attributesBase, thresholdsBase, probabilitiesBase,
+			child);
+	}
+
+	private double[] leafProbabilities(final float[] array, final int offset) {
+		final double[] result = new double[numClasses];
+		for (int k = 0; k < numClasses; k++)
+			result[k] = array[offset + k];
+		return result;
+	}
+
+	// -- Tree traversal --
+
+	/**
+	 * Receives the nodes of the trees in pre-order, see {@link #visitTrees}.
+	 */
+	interface TreeVisitor {
+
+		/**
+		 * Called before the first node of each tree.
+		 */
+		void startTree();
+
+		/**
+		 * Internal node. It is followed by the nodes of its smaller child, and then
+		 * by the nodes of its bigger child.
+		 */
+		void node(int attribute, float threshold);
+
+		/**
+		 * Leaf with the class probabilities
+		 * {@code array[offset ... offset + numberOfClasses - 1]}.
+		 */
+		void leaf(float[] array, int offset);
+	}
+
+	/**
+	 * Passes the nodes of all trees to the visitor, directly from the flattened
+	 * arrays. The trees and nodes are the same as in
+	 * {@link #toTransparentRandomForest()}, but no {@link TransparentRandomTree}
+	 * objects are created.
+	 */
+	void visitTrees(final TreeVisitor visitor) {
+		boolean hasPrior = false;
+		for (final float p : prior)
+			hasPrior |= p != 0;
+		if (hasPrior || attributes.length == 0) {
+			visitor.startTree();
+			visitor.leaf(prior, 0);
+		}
+		int attributesBase = 0;
+		int probabilitiesBase = 0;
+		int height = 1;
+		for (; height < numTreesOfHeight.length &&
+			height < COMPACT_STORAGE_MIN_HEIGHT; height++)
+		{
+			for (int tree = 0; tree < numTreesOfHeight[height]; ++tree) {
+				visitor.startTree();
+				visitExpanded(visitor, attributesBase, attributesBase, probabilitiesBase, 0,
+					0, 0, height);
+				attributesBase += (1 << height) - 1;
+				probabilitiesBase += (1 << height) * numClasses;
+			}
+		}
+		int thresholdsBase = attributesBase;
+		for (; height < numTreesOfHeight.length; height++) {
+			for (int tree = 0; tree < numTreesOfHeight[height]; ++tree) {
+				final int probSize = attributes[attributesBase + 1];
+				visitor.startTree();
+				if (attributes[attributesBase] == EXPANDED_TREE)
+					visitExpanded(visitor, attributesBase + 2, thresholdsBase,
+						probabilitiesBase, 0, 0, 0, height);
+				else
+					visitCompact(visitor, attributesBase + 2, thresholdsBase,
+						probabilitiesBase, 0);
+				thresholdsBase += thresholdsSize(attributesBase, height);
+				attributesBase += attributesSize(attributesBase, height);
+				probabilitiesBase += probSize;
+			}
+		}
+	}
+
+	private void visitExpanded(final TreeVisitor visitor,
+		final int treeAttributesBase, final int treeThresholdsBase,
+		final int treeProbBase, final int nodeIndex, final int branchBits,
+		final int depth, final int height)
+	{
+		final int leaf = expandedLeaf(treeAttributesBase, treeThresholdsBase,
+			treeProbBase, nodeIndex, branchBits, depth, height);
+		if (leaf >= 0) {
+			visitor.leaf(probabilities, leaf);
+			return;
+		}
+		visitor.node(attributes[treeAttributesBase + nodeIndex],
+			thresholds[treeThresholdsBase + nodeIndex]);
+		visitExpanded(visitor, treeAttributesBase, treeThresholdsBase, treeProbBase,
+			2 * nodeIndex + 1, branchBits << 1, depth + 1, height);
+		visitExpanded(visitor, treeAttributesBase, treeThresholdsBase, treeProbBase,
+			2 * nodeIndex + 2, (branchBits << 1) + 1, depth + 1, height);
+	}
+
+	/**
+	 * Returns the offset of the leaf probabilities, if the node of a tree in
+	 * "expanded" storage is a leaf, or an early leaf that has been padded.
+	 * Returns -1 otherwise. Padding is detected as in {@link #readExpanded}.
+	 */
+	private int expandedLeaf(final int treeAttributesBase,
+		final int treeThresholdsBase, final int treeProbBase, final int nodeIndex,
+		final int branchBits, final int depth, final int height)
+	{
+		if (depth == height)
+			return treeProbBase + branchBits * numClasses;
+		if (attributes[treeAttributesBase + nodeIndex] != 0 ||
+			thresholds[treeThresholdsBase + nodeIndex] != 0)
+			return -1;
+		final int smaller = expandedLeaf(treeAttributesBase, treeThresholdsBase,
+			treeProbBase, 2 * nodeIndex + 1, branchBits << 1, depth + 1, height);
+		if (smaller < 0)
+			return -1;
+		final int bigger = expandedLeaf(treeAttributesBase, treeThresholdsBase,
+			treeProbBase, 2 * nodeIndex + 2, (branchBits << 1) + 1, depth + 1,
+			height);
+		if (bigger < 0)
+			return -1;
+		for (int k = 0; k < numClasses; k++)
+			if (Float.floatToIntBits(probabilities[smaller + k]) != Float
+				.floatToIntBits(probabilities[bigger + k]))
+				return -1;
+		return smaller;
+	}
+
+	private void visitCompact(final TreeVisitor visitor, final int attributesBase,
+		final int thresholdsBase, final int probabilitiesBase, final int i)
+	{
+		visitor.node(attributes[attributesBase + 3 * i], thresholds[thresholdsBase +
+			i]);
+		for (int side = 1; side <= 2; side++) {
+			final int child = attributes[attributesBase + 3 * i + side];
+			if (child < 0)
+				visitor.leaf(probabilities, probabilitiesBase + child -
+					Integer.MIN_VALUE);
+			else
+				visitCompact(visitor, attributesBase, thresholdsBase,
+					probabilitiesBase, child);
+		}
+	}
+
+	/**
+	 * Adds the attributes, that are used by at least one node, to the bit set.
+	 * Nodes, that only pad an early leaf, are ignored.
+	 */
+	void usedAttributes(final BitSet bits) {
+		visitTrees(new TreeVisitor() {
+
+			@Override
+			public void startTree() {}
+
+			@Override
+			public void node(final int attribute, final float threshold) {
+				bits.set(attribute);
+			}
+
+			@Override
+			public void leaf(final float[] array, final int offset) {}
+		});
+	}
+
+	/**
+	 * Returns a copy, that expects only the given attributes. Attribute
+	 * {@code attributes[i]} becomes attribute {@code i}, like in
+	 * {@link TransparentRandomForest#selectAttributes}. Only the attributes[]
+	 * array is copied, thresholds[] and probabilities[] are shared.
+	 *
+	 * @throws IllegalArgumentException if an attribute used by the forest is not
+	 *           listed.
+	 */
+	CpuRandomForestCore selectAttributes(final int[] selected) {
+		final BitSet used = new BitSet();
+		usedAttributes(used);
+		final int[] mapping = new int[Math.max(used.length(), Arrays.stream(selected).max()
+			.orElse(-1) + 1)];
+		for (int i = 0; i < selected.length; i++)
+			mapping[selected[i]] = i;
+		for (int attribute = used.nextSetBit(0); attribute >= 0; attribute = used
+			.nextSetBit(attribute + 1))
+			if (selected.length == 0 || selected[mapping[attribute]] != attribute)
+				throw new IllegalArgumentException("Attribute " + attribute +
+					" is used by the random forest, but missing in the list of selected attributes.");
+		// NB: Attributes of padding nodes, that are not selected, become 0.
+		final int[] result = attributes.clone();
+		int attributesBase = 0;
+		int height = 1;
+		for (; height < numTreesOfHeight.length &&
+			height < COMPACT_STORAGE_MIN_HEIGHT; height++)
+		{
+			final int size = numTreesOfHeight[height] * ((1 << height) - 1);
+			for (int i = attributesBase; i < attributesBase + size; i++)
+				result[i] = mappedAttribute(mapping, selected, attributes[i]);
+			attributesBase += size;
+		}
+		for (; height < numTreesOfHeight.length; height++) {
+			for (int tree = 0; tree < numTreesOfHeight[height]; ++tree) {
+				final int size = attributes[attributesBase];
+				if (size == EXPANDED_TREE)
+					for (int i = 0; i < (1 << height) - 1; i++)
+						result[attributesBase + 2 + i] = mappedAttribute(mapping, selected,
+							attributes[attributesBase + 2 + i]);
+				else
+					for (int i = 0; i < size; i++)
+						result[attributesBase + 2 + 3 * i] = mappedAttribute(mapping, selected,
+							attributes[attributesBase + 2 + 3 * i]);
+				attributesBase += attributesSize(attributesBase, height);
+			}
+		}
+		return new CpuRandomForestCore(numClasses, numTreesOfHeight, prior, result,
+			thresholds, probabilities);
+	}
+
+	private static int mappedAttribute(final int[] mapping, final int[] selected,
+		final int attribute)
+	{
+		final int index = mapping[attribute];
+		return index < selected.length && selected[index] == attribute ? index : 0;
+	}
+
+	// -- Profile guided layout --
+
+	/**
+	 * Returns an empty {@link NodeProfile}, that can be used to count how often
+	 * the nodes of the trees in "compact" storage are visited.
+	 */
+	NodeProfile newNodeProfile() {
+		return new NodeProfile();
+	}
+
+	/**
+	 * Visit counts for the nodes of the trees in "compact" storage. The global
+	 * index of a compact node is its index in thresholds[].
+	 */
+	class NodeProfile {
+
+		private final long[] visits = new long[thresholds.length];
+
+		/**
+		 * Number of visits, that continued with the smaller child.
+		 */
+		private final long[] smallerVisits = new long[thresholds.length];
+
+		private NodeProfile() {
+			// NB: use newNodeProfile()
+		}
+
+		/**
+		 * Applies the trees in "compact" storage to the given block of instances and
+		 * counts the node visits. See {@link #distributionForInstances} for the
+		 * parameters.
+		 */
+		void add(final float[] instances, final int instancesOffset,
+			final int instanceStride, final int numInstances)
+		{
+			forEachCompactTree((attributesBase, thresholdsBase, probabilitiesBase) -> {
+				for (int i = 0; i < numInstances; i++) {
+					final int instanceBase = instancesOffset + i * instanceStride;
+					int node = 0;
+					while (node >= 0) {
+						final int o = attributesBase + 3 * node;
+						final float attributeValue = instances[instanceBase + attributes[o]];
+						final int g = thresholdsBase + node;
+						visits[g]++;
+						if (attributeValue < thresholds[g]) {
+							smallerVisits[g]++;
+							node = attributes[o + 1];
+						}
+						else node = attributes[o + 2];
+					}
+				}
+			});
+		}
+
+		/**
+		 * Returns a copy of the random forest, where the nodes of the trees in
+		 * "compact" storage are reordered according to the visit counts. Starting
+		 * at the root, a node is always followed by its more frequently visited
+		 * child, such that the hot path through a tree is stored contiguously. The
+		 * other children are queued, and their sub trees are laid out afterwards,
+		 * most frequently visited first. Rarely visited sub trees therefore end up
+		 * at the end of the tree. Leaf probabilities are reordered the same way.
+		 * <p>
+		 * The evaluation is not changed, the results are bit-identical. For an
+		 * empty profile, the nodes keep their depth first order.
+		 */
+		CpuRandomForestCore relayout() {
+			final int[] newAttributes = attributes.clone();
+			final float[] newThresholds = thresholds.clone();
+			final float[] newProbabilities = probabilities.clone();
+			forEachCompactTree((attributesBase, thresholdsBase, probabilitiesBase) -> {
+				final int size = attributes[attributesBase - 2];
+				final int[] order = hotPathOrder(attributesBase, thresholdsBase, size);
+				final int[] newIndex = new int[size];
+				for (int k = 0; k < size; k++)
+					newIndex[order[k]] = k;
+				int j = 0;
+				for (int k = 0; k < size; k++) {
+					final int node = order[k];
+					final int o = attributesBase + 3 * node;
+					final int n = attributesBase + 3 * k;
+					newAttributes[n] = attributes[o];
+					newThresholds[thresholdsBase + k] = thresholds[thresholdsBase + node];
+					final int hot = isSmallerChildHot(thresholdsBase + node) ? 1 : 2;
+					for (final int c : new int[] { hot, 3 - hot }) {
+						final int child = attributes[o + c];
+						if (child >= 0)
+							newAttributes[n + c] = newIndex[child];
+						else {
+							System.arraycopy(probabilities, probabilitiesBase + child -
+								Integer.MIN_VALUE, newProbabilities, probabilitiesBase + j,
+								numClasses);
+							newAttributes[n + c] = j + Integer.MIN_VALUE;
+							j += numClasses;
+						}
+					}
+				}
+			});
+			return new CpuRandomForestCore(numClasses, numTreesOfHeight, prior,
+				newAttributes, newThresholds, newProbabilities);
+		}
+
+		/**
+		 * Returns the old node indices of a tree, in the order in which they are
+		 * placed by {@link #relayout()}.
+		 */
+		private int[] hotPathOrder(final int attributesBase, final int thresholdsBase,
+			final int size)
+		{
+			final int[] order = new int[size];
+			final int[] sequence = new int[size];
+			// NB: Ties are broken in favour of the last queued sub tree. For an empty
+			// profile this results in pre order, like write_compact().
+			final PriorityQueue<Integer> queue = new PriorityQueue<>(Comparator
+				.comparingLong((Integer node) -> -visits[thresholdsBase + node])
+				.thenComparingInt(node -> -sequence[node]));
+			queue.add(0);
+			int count = 0;
+			int queued = 1;
+			while (!queue.isEmpty()) {
+				int node = queue.poll();
+				while (node >= 0) {
+					order[count++] = node;
+					final int o = attributesBase + 3 * node;
+					final boolean smallerHot = isSmallerChildHot(thresholdsBase + node);
+					final int hot = attributes[o + (smallerHot ? 1 : 2)];
+					final int cold = attributes[o + (smallerHot ? 2 : 1)];
+					if (cold >= 0) {
+						sequence[cold] = queued++;
+						queue.add(cold);
+					}
+					node = hot;
+				}
+			}
+			return order;
+		}
+
+		private boolean isSmallerChildHot(final int g) {
+			return 2 * smallerVisits[g] >= visits[g];
+		}
+	}
+
+	private interface CompactTreeAction {
+
+		void accept(int attributesBase, int thresholdsBase, int probabilitiesBase);
+	}
+
+	/**
+	 * Calls the action for each tree in "compact" storage. The attributes base
+	 * passed to the action points to the first node, behind the two size
+	 * entries. Trees of height {@code >= COMPACT_STORAGE_MIN_HEIGHT}, that are
+	 * stored "expanded", are skipped.
+	 */
+	private void forEachCompactTree(final CompactTreeAction action) {
+		int attributesBase = 0;
+		int height = 1;
+		for (; height < numTreesOfHeight.length &&
+			height < COMPACT_STORAGE_MIN_HEIGHT; height++)
+			attributesBase += numTreesOfHeight[height] * ((1 << height) - 1);
+		int thresholdsBase = attributesBase;
+		int probabilitiesBase = 0;
+		for (int h = 1; h < height; h++)
+			probabilitiesBase += numTreesOfHeight[h] * (1 << h) * numClasses;
+		for (; height < numTreesOfHeight.length; height++) {
+			for (int tree = 0; tree < numTreesOfHeight[height]; ++tree) {
+				final int probSize = attributes[attributesBase + 1];
+				if (attributes[attributesBase] != EXPANDED_TREE)
+					action.accept(attributesBase + 2, thresholdsBase, probabilitiesBase);
+				thresholdsBase += thresholdsSize(attributesBase, height);
+				attributesBase += attributesSize(attributesBase, height);
+				probabilitiesBase += probSize;
+			}
+		}
+	}
+
+	// -- Binary format --
+
+	/**
+	 * Number of array elements that are copied at once, when writing or reading
+	 * the binary format.
+	 */
+	private static final int IO_CHUNK_SIZE = 1 << 24;
+
+	/**
+	 * Writes the flattened arrays to the given channel. All values are stored as
+	 * 32 bit little endian, in the following order:
+	 * <ul>
+	 * <li>int numClasses</li>
+	 * <li>int n, int[n] numTreesOfHeight</li>
+	 * <li>float[numClasses] prior</li>
+	 * <li>int a, int t, int p: the lengths of the following arrays</li>
+	 * <li>int[a] attributes, float[t] thresholds, float[p] probabilities</li>
+	 * </ul>
+	 */
+	void write(final WritableByteChannel channel) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(4 * (5 +
+			numTreesOfHeight.length + numClasses)).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(numClasses);
+		header.putInt(numTreesOfHeight.length);
+		for (final int n : numTreesOfHeight)
+			header.putInt(n);
+		for (final float p : prior)
+			header.putFloat(p);
+		header.putInt(attributes.length);
+		header.putInt(thresholds.length);
+		header.putInt(probabilities.length);
+		header.flip();
+		writeFully(channel, header);
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(4 * Math.min(
+			IO_CHUNK_SIZE, Math.max(1, Math.max(attributes.length, Math.max(
+				thresholds.length, probabilities.length))))).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < attributes.length; i += IO_CHUNK_SIZE) {
+			final int length = Math.min(IO_CHUNK_SIZE, attributes.length - i);
+			buffer.clear();
+			buffer.asIntBuffer().put(attributes, i, length);
+			buffer.limit(4 * length);
+			writeFully(channel, buffer);
+		}
+		for (final float[] array : new float[][] { thresholds, probabilities })
+			for (int i = 0; i < array.length; i += IO_CHUNK_SIZE) {
+				final int length = Math.min(IO_CHUNK_SIZE, array.length - i);
+				buffer.clear();
+				buffer.asFloatBuffer().put(array, i, length);
+				buffer.limit(4 * length);
+				writeFully(channel, buffer);
+			}
+	}
+
+	/**
+	 * Reads the format written by {@link #write}, starting at the current
+	 * position of the channel. The arrays are read in chunks into a reused
+	 * buffer, and copied with bulk operations. The position of the channel is
+	 * moved to the end of the data.
+	 */
+	static CpuRandomForestCore read(final FileChannel channel)
+		throws IOException
+	{
+		final ByteBuffer start = readFully(channel, 8);
+		final int numClasses = start.getInt();
+		final int heights = start.getInt();
+		// NB: Tree heights are not limited, only the header must fit in the file.
+		final long headerSize = 4L * ((long) heights + numClasses + 3);
+		if (numClasses < 0 || heights < 0 || headerSize > MAX_ARRAY_SIZE ||
+			channel.size() - channel.position() < headerSize)
+			throw new IOException("Invalid random forest data.");
+		final ByteBuffer header = readFully(channel, (int) headerSize);
+		final int[] numTreesOfHeight = new int[heights];
+		for (int i = 0; i < heights; i++)
+			numTreesOfHeight[i] = header.getInt();
+		final float[] prior = new float[numClasses];
+		for (int i = 0; i < numClasses; i++)
+			prior[i] = header.getFloat();
+		final int attributesSize = header.getInt();
+		final int thresholdsSize = header.getInt();
+		final int probabilitiesSize = header.getInt();
+		if (attributesSize < 0 || thresholdsSize < 0 || probabilitiesSize < 0 ||
+			channel.size() - channel.position() < 4L * attributesSize + 4L *
+				thresholdsSize + 4L * probabilitiesSize)
+			throw new IOException("Invalid random forest data.");
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(4 * Math.min(
+			IO_CHUNK_SIZE, Math.max(1, Math.max(attributesSize, Math.max(
+				thresholdsSize, probabilitiesSize))))).order(ByteOrder.LITTLE_ENDIAN);
+		final int[] attributes = new int[attributesSize];
+		for (int i = 0; i < attributesSize; i += IO_CHUNK_SIZE) {
+			final int length = Math.min(IO_CHUNK_SIZE, attributesSize - i);
+			readFully(channel, buffer, length).asIntBuffer().get(attributes, i, length);
+		}
+		final float[] thresholds = new float[thresholdsSize];
+		final float[] probabilities = new float[probabilitiesSize];
+		for (final float[] array : new float[][] { thresholds, probabilities })
+			for (int i = 0; i < array.length; i += IO_CHUNK_SIZE) {
+				final int length = Math.min(IO_CHUNK_SIZE, array.length - i);
+				readFully(channel, buffer, length).asFloatBuffer().get(array, i, length);
+			}
+		if (!hasValidLayout(numClasses, numTreesOfHeight, attributes,
+			thresholdsSize, probabilitiesSize))
+			throw new IOException("Invalid random forest data.");
+		return new CpuRandomForestCore(numClasses, numTreesOfHeight, prior,
+			attributes, thresholds, probabilities);
+	}
+
+	/**
+	 * Returns true, if the sizes of the arrays match the sizes expected for the
+	 * given number of classes and trees per height. The expected sizes are
+	 * calculated by walking over the trees, like {@link #forEachCompactTree}, but
+	 * each header entry is checked before it is used.
+	 */
+	private static boolean hasValidLayout(final int numClasses,
+		final int[] numTreesOfHeight, final int[] attributes,
+		final int thresholdsSize, final int probabilitiesSize)
+	{
+		long attributesBase = 0;
+		long thresholdsBase = 0;
+		long probabilitiesBase = 0;
+		for (int height = 1; height < numTreesOfHeight.length; height++) {
+			final long numTrees = numTreesOfHeight[height];
+			if (numTrees < 0)
+				return false;
+			if (height < COMPACT_STORAGE_MIN_HEIGHT) {
+				// NB: Check the number of trees first, to avoid overflows below.
+				if (numTrees * ((1 << height) - 1) > attributes.length - attributesBase)
+					return false;
+				attributesBase += numTrees * ((1 << height) - 1);
+				thresholdsBase += numTrees * ((1 << height) - 1);
+				probabilitiesBase += numTrees * (1 << height) * numClasses;
+				continue;
+			}
+			for (long tree = 0; tree < numTrees; tree++) {
+				if (attributesBase + 2 > attributes.length)
+					return false;
+				final int size = attributes[(int) attributesBase];
+				final int probSize = attributes[(int) attributesBase + 1];
+				if (size == EXPANDED_TREE) {
+					if (height > MAX_EXPANDED_HEIGHT ||
+						probSize != (1 << height) * numClasses)
+						return false;
+					attributesBase += 2 + (1 << height) - 1;
+					thresholdsBase += (1 << height) - 1;
+				}
+				else {
+					if (size < 1 || probSize < 0)
+						return false;
+					attributesBase += 2 + 3L * size;
+					thresholdsBase += size;
+				}
+				probabilitiesBase += probSize;
+			}
+		}
+		return attributesBase == attributes.length &&
+			thresholdsBase == thresholdsSize &&
+			probabilitiesBase == probabilitiesSize;
+	}
+
+	private static void writeFully(final WritableByteChannel channel,
+		final ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static ByteBuffer readFully(final FileChannel channel,
+		final int numBytes) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate(numBytes).order(
+			ByteOrder.LITTLE_ENDIAN);
+		return readFully(channel, buffer, numBytes / 4);
+	}
+
+	/**
+	 * Reads the next {@code length} 32 bit values of the channel into the given
+	 * buffer, and returns it, ready to be read from.
+	 */
+	private static ByteBuffer readFully(final FileChannel channel,
+		final ByteBuffer buffer, final int length) throws IOException
+	{
+		buffer.clear();
+		buffer.limit(4 * length);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0)
+				throw new EOFException();
+		buffer.flip();
+		return buffer;
+	}
 }
@@ -0,0 +1,57 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import net.imglib2.trainable_segmentation.utils.ArrayUtils;
+
+/**
+ * Flattened representation of a random forest, that can be applied to feature
+ * vectors stored in float arrays. Implementations are immutable and thread
+ * safe.
+ */
+interface CpuRandomForestEngine {
+
+	int numberOfClasses();
+
+	/**
+	 * Applies the random forest to the given instance. Writes the class
+	 * probabilities to {@code distribution}.
+	 *
+	 * @param instance Instance / feature vector, array length must equal
+	 *          {@code numberOfFeatures}.
+	 * @param distribution This is the output buffer, array length must equal number
+	 *          of classes.
+	 */
+	void distributionForInstance(float[] instance, float[] distribution);
+
+	/**
+	 * Applies the random forest to a block of instances. Writes the class
+	 * probabilities of instance i to {@code distributions[i * numClasses ...]}.
+	 *
+	 * @param instances Contiguous block of feature vectors. Feature vector i starts
+	 *          at {@code instancesOffset + i * instanceStride}.
+	 * @param instancesOffset Start of the first feature vector in instances[].
+	 * @param instanceStride Distance between two feature vectors in instances[].
+	 * @param numInstances Number of feature vectors in the block.
+	 * @param distributions Output buffer, length must be at least
+	 *          {@code numInstances * numberOfClasses()}.
+	 */
+	void distributionForInstances(float[] instances, int instancesOffset, int instanceStride,
+		int numInstances, float[] distributions);
+
+	/**
+	 * Applies the random forest to a block of instances. Writes the index of the
+	 * class with the highest probability of instance i to {@code classes[i]}. In
+	 * case of ties the lower class index is used. The parameters are the same as
+	 * for {@link #distributionForInstances}, {@code distributions} is only used as
+	 * a work buffer. The caller should allocate it once and reuse it for all
+	 * blocks.
+	 */
+	default void classifyInstances(float[] instances, int instancesOffset, int instanceStride,
+		int numInstances, float[] distributions, int[] classes)
+	{
+		int numClasses = numberOfClasses();
+		distributionForInstances(instances, instancesOffset, instanceStride, numInstances,
+			distributions);
+		for (int i = 0; i < numInstances; i++)
+			classes[i] = ArrayUtils.findMax(distributions, i * numClasses, numClasses);
+	}
+}
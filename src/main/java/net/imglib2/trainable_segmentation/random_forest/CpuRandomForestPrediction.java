@@ -2,24 +2,70 @@
 package net.imglib2.trainable_segmentation.random_forest;
 
 import hr.irb.fastRandomForest.FastRandomForest;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.trainable_segmentation.utils.ArrayUtils;
-import net.imglib2.trainable_segmentation.utils.views.FastViews;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.trainable_segmentation.RevampUtils;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.composite.Composite;
-import preview.net.imglib2.loops.LoopBuilder;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 
+/**
+ * Wraps around a {@link FastRandomForest}. Allows fast pixel wise application
+ * of the random forest on a feature stack.
+ * <p>
+ * The random forest is flattened once, when the object is created. The object
+ * is immutable afterwards, and can be shared between threads.
+ */
 public class CpuRandomForestPrediction {
 
-	private final CpuRandomForestCore core;
+	/**
+	 * Maximal number of pixels that are evaluated together by
+	 * {@link CpuRandomForestEngine#distributionForInstances}.
+	 */
+	private static final int BLOCK_SIZE = 256;
+
+	private final CpuRandomForestEngine core;
 
 	private final int numberOfFeatures;
 
 	public CpuRandomForestPrediction(FastRandomForest forest, int numberOfFeatures) {
+		this(forest, numberOfFeatures, Engine.ARRAYS);
+	}
+
+	public CpuRandomForestPrediction(FastRandomForest forest, int numberOfFeatures,
+		Engine engine)
+	{
+		this(TransparentRandomForest.forFastRandomForest(forest), numberOfFeatures, engine);
+	}
+
+	public CpuRandomForestPrediction(TransparentRandomForest forest, int numberOfFeatures,
+		Engine engine)
+	{
+		this(engine.create(forest), numberOfFeatures);
+	}
+
+	/**
+	 * {@link Engine#ARRAYS} uses the flattened forest as is. The other engines
+	 * reconstruct the trees first, see
+	 * {@link FlattenedRandomForest#toTransparentRandomForest()}.
+	 */
+	public CpuRandomForestPrediction(FlattenedRandomForest forest, int numberOfFeatures,
+		Engine engine)
+	{
+		this(engine == Engine.ARRAYS ? forest.engine() : engine.create(forest
+			.toTransparentRandomForest()), numberOfFeatures);
+	}
+
+	private CpuRandomForestPrediction(CpuRandomForestEngine core, int numberOfFeatures) {
 		this.numberOfFeatures = numberOfFeatures;
-		this.core = new CpuRandomForestCore(forest);
+		this.core = core;
 	}
 
 	/**
@@ -34,16 +80,33 @@ public class CpuRandomForestPrediction {
 	public void segment(RandomAccessibleInterval<FloatType> featureStack,
 		RandomAccessibleInterval<? extends IntegerType<?>> out)
 	{
-		LoopBuilder.setImages(FastViews.collapse(featureStack), out).forEachChunk(chunk -> {
-			float[] features = new float[numberOfFeatures];
-			float[] probabilities = new float[numberOfClasses()];
-			chunk.forEachPixel((featureVector, classIndex) -> {
-				copyFromTo(featureVector, features);
-				core.distributionForInstance(features, probabilities);
-				classIndex.setInteger(ArrayUtils.findMax(probabilities));
-			});
-			return null;
-		});
+		forEachBlock(out, stackSource(featureStack, out), segmentAction(out));
+	}
+
+	/**
+	 * Same as {@link #segment(RandomAccessibleInterval, RandomAccessibleInterval)},
+	 * but the feature vectors are read from a pixel interleaved float array. The
+	 * feature vector of the pixel with flat index i (X fastest, then Y, Z) is
+	 * stored at {@code features[i * numberOfFeatures() ...]}. See
+	 * {@link net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator#applyInterleaved}.
+	 */
+	public void segment(float[] features, RandomAccessibleInterval<? extends IntegerType<?>> out) {
+		forEachBlock(out, interleavedSource(features, out), segmentAction(out));
+	}
+
+	private BlockAction segmentAction(RandomAccessibleInterval<? extends IntegerType<?>> out) {
+		RandomAccess<? extends IntegerType<?>> ra = Views.zeroMin(out).randomAccess();
+		int[] classes = new int[blockSize(out)];
+		float[] distributions = new float[classes.length * numberOfClasses()];
+		return (position, length, features, offset) -> {
+			core.classifyInstances(features, offset, numberOfFeatures, length, distributions,
+				classes);
+			setPosition(ra, position);
+			for (int i = 0; i < length; i++) {
+				ra.get().setInteger(classes[i]);
+				ra.fwd(0);
+			}
+		};
 	}
 
 	/**
@@ -53,32 +116,303 @@ public class CpuRandomForestPrediction {
 	 * @param featureStack Image with axis order XYZC or XYC. Where the channel axes
 	 *          length equals {@link #numberOfFeatures()}.
 	 * @param out Output image axis order must match the input image. Channel axes
-	 *          length must equal {@link #numberOfClasses()}.
+	 *          length must equal {@link #numberOfClasses()}. If the pixel type is
+	 *          an integer type, like {@link UnsignedByteType} or
+	 *          {@link UnsignedShortType}, the probabilities are scaled to the range
+	 *          of the type.
 	 */
 	public void distribution(RandomAccessibleInterval<FloatType> featureStack,
 		RandomAccessibleInterval<? extends RealType<?>> out)
 	{
-		LoopBuilder.setImages(FastViews.collapse(featureStack), FastViews.collapse(out)).forEachChunk(
-			chunk -> {
-				float[] features = new float[numberOfFeatures];
-				float[] probabilities = new float[numberOfClasses()];
-				chunk.forEachPixel((featureVector, probabilityVector) -> {
-					copyFromTo(featureVector, features);
-					core.distributionForInstance(features, probabilities);
-					copyFromTo(probabilities, probabilityVector);
-				});
-				return null;
-			});
+		Interval interval = RevampUtils.removeLastDimension(out);
+		forEachBlock(interval, stackSource(featureStack, interval), distributionAction(out));
+	}
+
+	/**
+	 * Same as
+	 * {@link #distribution(RandomAccessibleInterval, RandomAccessibleInterval)},
+	 * but the feature vectors are read from a pixel interleaved float array. See
+	 * {@link #segment(float[], RandomAccessibleInterval)}.
+	 */
+	public void distribution(float[] features, RandomAccessibleInterval<? extends RealType<?>> out) {
+		Interval interval = RevampUtils.removeLastDimension(out);
+		forEachBlock(interval, interleavedSource(features, interval), distributionAction(out));
+	}
+
+	private BlockAction distributionAction(RandomAccessibleInterval<? extends RealType<?>> out) {
+		RandomAccess<? extends RealType<?>> ra = Views.zeroMin(out).randomAccess();
+		int channelAxis = out.numDimensions() - 1;
+		int numberOfClasses = numberOfClasses();
+		float[] distributions = new float[blockSize(out) * numberOfClasses];
+		boolean integer = Util.getTypeFromInterval(out) instanceof IntegerType;
+		double scale = Util.getTypeFromInterval(out).getMaxValue();
+		return (position, length, features, offset) -> {
+			core.distributionForInstances(features, offset, numberOfFeatures, length,
+				distributions);
+			setPosition(ra, position);
+			for (int k = 0; k < numberOfClasses; k++) {
+				ra.setPosition(k, channelAxis);
+				ra.setPosition(position[0], 0);
+				for (int i = 0; i < length; i++) {
+					float probability = distributions[i * numberOfClasses + k];
+					if (integer)
+						ra.get().setReal(Math.round(probability * scale));
+					else
+						ra.get().setReal(probability);
+					ra.fwd(0);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Applies the random forest for each pixel in the feature stack. Instead of
+	 * the class probabilities, the given statistics are computed from them, and
+	 * written into the output image. This is much smaller than the full
+	 * probability map.
+	 *
+	 * @param featureStack Image with axis order XYZC or XYC. Where the channel axes
+	 *          length equals {@link #numberOfFeatures()}.
+	 * @param out Output image axis order must match the input image. Channel i
+	 *          holds statistics[i], the channel axes length must equal the
+	 *          number of statistics.
+	 * @param statistics Values to compute per pixel, see
+	 *          {@link PredictionStatistic}.
+	 */
+	public void statistics(RandomAccessibleInterval<FloatType> featureStack,
+		RandomAccessibleInterval<? extends RealType<?>> out, PredictionStatistic... statistics)
+	{
+		Interval interval = RevampUtils.removeLastDimension(out);
+		forEachBlock(interval, stackSource(featureStack, interval), statisticsAction(out,
+			statistics));
+	}
+
+	/**
+	 * Same as
+	 * {@link #statistics(RandomAccessibleInterval, RandomAccessibleInterval, PredictionStatistic...)},
+	 * but the feature vectors are read from a pixel interleaved float array. See
+	 * {@link #segment(float[], RandomAccessibleInterval)}.
+	 */
+	public void statistics(float[] features, RandomAccessibleInterval<? extends RealType<?>> out,
+		PredictionStatistic... statistics)
+	{
+		Interval interval = RevampUtils.removeLastDimension(out);
+		forEachBlock(interval, interleavedSource(features, interval), statisticsAction(out,
+			statistics));
+	}
+
+	private BlockAction statisticsAction(RandomAccessibleInterval<? extends RealType<?>> out,
+		PredictionStatistic[] statistics)
+	{
+		RandomAccess<? extends RealType<?>> ra = Views.zeroMin(out).randomAccess();
+		int channelAxis = out.numDimensions() - 1;
+		int numberOfClasses = numberOfClasses();
+		float[] distributions = new float[blockSize(out) * numberOfClasses];
+		return (position, length, features, offset) -> {
+			core.distributionForInstances(features, offset, numberOfFeatures, length,
+				distributions);
+			setPosition(ra, position);
+			for (int s = 0; s < statistics.length; s++) {
+				ra.setPosition(s, channelAxis);
+				ra.setPosition(position[0], 0);
+				for (int i = 0; i < length; i++) {
+					ra.get().setReal(statistics[s].compute(distributions, i * numberOfClasses,
+						numberOfClasses));
+					ra.fwd(0);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Applies this random forest and the given reference to each pixel of the
+	 * feature stack, and compares the class probabilities. This is useful to
+	 * measure the error of an approximate engine, like {@link Engine#QUANTIZED}.
+	 *
+	 * @param reference Typically the same forest with {@link Engine#ARRAYS}.
+	 * @param featureStack Image with axis order XYZC or XYC. Where the channel axes
+	 *          length equals {@link #numberOfFeatures()}.
+	 */
+	public AccuracyReport accuracy(CpuRandomForestPrediction reference,
+		RandomAccessibleInterval<FloatType> featureStack)
+	{
+		if (reference.numberOfFeatures() != numberOfFeatures ||
+			reference.numberOfClasses() != numberOfClasses())
+			throw new IllegalArgumentException("Random forests don't match.");
+		int numberOfClasses = numberOfClasses();
+		Interval interval = RevampUtils.removeLastDimension(featureStack);
+		AccuracyReport report = new AccuracyReport(numberOfClasses);
+		float[] expected = new float[blockSize(interval) * numberOfClasses];
+		float[] actual = new float[blockSize(interval) * numberOfClasses];
+		forEachBlock(interval, stackSource(featureStack, interval), (position, length, features,
+			offset) -> {
+			reference.core.distributionForInstances(features, offset, numberOfFeatures, length,
+				expected);
+			core.distributionForInstances(features, offset, numberOfFeatures, length, actual);
+			report.add(expected, actual, length);
+		});
+		return report;
+	}
+
+	/**
+	 * Returns a copy of this random forest, with a memory layout that is
+	 * optimized for feature vectors like the ones in the given sample. The forest
+	 * is applied to every pixel of the sample, and the node visits are counted.
+	 * The nodes of deep trees are then reordered, such that the frequently taken
+	 * paths are stored contiguously, and rarely visited sub trees are moved to
+	 * the end. This reduces the number of cache lines touched per pixel. The
+	 * results of the returned copy are bit-identical.
+	 * <p>
+	 * A few representative slices or tiles of the images to be segmented are
+	 * usually a sufficient sample.
+	 *
+	 * @param sampleFeatureStack Image with axis order XYZC or XYC. Where the
+	 *          channel axes length equals {@link #numberOfFeatures()}.
+	 * @throws UnsupportedOperationException if this random forest doesn't use
+	 *           {@link Engine#ARRAYS}, or is too big for a single set of arrays.
+	 */
+	public CpuRandomForestPrediction optimizeLayout(
+		RandomAccessibleInterval<FloatType> sampleFeatureStack)
+	{
+		if (!(core instanceof CpuRandomForestCore))
+			throw new UnsupportedOperationException(
+				"Layout optimization is only supported for Engine.ARRAYS.");
+		CpuRandomForestCore.NodeProfile profile = ((CpuRandomForestCore) core).newNodeProfile();
+		Interval interval = RevampUtils.removeLastDimension(sampleFeatureStack);
+		forEachBlock(interval, stackSource(sampleFeatureStack, interval), (position, length,
+			features, offset) -> profile.add(features, offset, numberOfFeatures, length));
+		return new CpuRandomForestPrediction(profile.relayout(), numberOfFeatures);
 	}
 
-	private static void copyFromTo(Composite<FloatType> input, float[] output) {
-		for (int i = 0, len = output.length; i < len; i++)
-			output[i] = input.get(i).getRealFloat();
+	/**
+	 * Splits the lines (along the X axis) of the given interval into blocks of up
+	 * to {@link #BLOCK_SIZE} pixels. The feature vectors of each block are
+	 * provided by the given source as a contiguous, pixel-major float array. They
+	 * are passed to the given action, together with the zero-min position of the
+	 * first pixel in the block. The action applies the random forest to the block
+	 * as a whole.
+	 */
+	private void forEachBlock(Interval interval, FeatureSource source, BlockAction action) {
+		int n = interval.numDimensions();
+		if (Intervals.numElements(interval) == 0)
+			return;
+		int blockSize = blockSize(interval);
+		long[] lineMax = new long[n];
+		for (int d = 1; d < n; d++)
+			lineMax[d] = interval.dimension(d) - 1;
+		LocalizingIntervalIterator lines = new LocalizingIntervalIterator(new long[n], lineMax);
+		long[] position = new long[n];
+		while (lines.hasNext()) {
+			lines.fwd();
+			for (int d = 1; d < n; d++)
+				position[d] = lines.getLongPosition(d);
+			for (long x = 0; x < interval.dimension(0); x += blockSize) {
+				position[0] = x;
+				int length = (int) Math.min(blockSize, interval.dimension(0) - x);
+				int offset = source.fetch(position, length);
+				action.accept(position, length, source.features(), offset);
+			}
+		}
+	}
+
+	private static int blockSize(Interval interval) {
+		return (int) Math.min(BLOCK_SIZE, interval.dimension(0));
 	}
 
-	private static void copyFromTo(float[] input, Composite<? extends RealType<?>> output) {
-		for (int i = 0, len = input.length; i < len; i++)
-			output.get(i).setReal(input[i]);
+	/**
+	 * Source for a feature stack with axis order XYZC. The feature vectors of a
+	 * block are gathered into a contiguous float array first.
+	 */
+	private FeatureSource stackSource(RandomAccessibleInterval<FloatType> featureStack,
+		Interval interval)
+	{
+		RandomAccess<FloatType> in = Views.zeroMin(featureStack).randomAccess();
+		float[] features = new float[blockSize(interval) * numberOfFeatures];
+		return new FeatureSource() {
+
+			@Override
+			public int fetch(long[] position, int length) {
+				copyFromTo(in, position, length, features);
+				return 0;
+			}
+
+			@Override
+			public float[] features() {
+				return features;
+			}
+		};
+	}
+
+	/**
+	 * Source for a pixel interleaved feature array. The feature vectors of a
+	 * block are already contiguous and read in place.
+	 */
+	private FeatureSource interleavedSource(float[] features, Interval interval) {
+		int n = interval.numDimensions();
+		long[] strides = new long[n];
+		long stride = numberOfFeatures;
+		for (int d = 0; d < n; d++) {
+			strides[d] = stride;
+			stride *= interval.dimension(d);
+		}
+		if (stride > features.length)
+			throw new IllegalArgumentException("Feature array is too small for the given interval.");
+		return new FeatureSource() {
+
+			@Override
+			public int fetch(long[] position, int length) {
+				long offset = 0;
+				for (int d = 0; d < n; d++)
+					offset += position[d] * strides[d];
+				return (int) offset;
+			}
+
+			@Override
+			public float[] features() {
+				return features;
+			}
+		};
+	}
+
+	/**
+	 * Copies the feature vectors of {@code length} pixels, starting at the given
+	 * position, into a contiguous pixel-major float array.
+	 */
+	private void copyFromTo(RandomAccess<FloatType> in, long[] position, int length,
+		float[] output)
+	{
+		int channelAxis = position.length;
+		setPosition(in, position);
+		for (int f = 0; f < numberOfFeatures; f++) {
+			in.setPosition(f, channelAxis);
+			in.setPosition(position[0], 0);
+			for (int i = 0; i < length; i++) {
+				output[i * numberOfFeatures + f] = in.get().getRealFloat();
+				in.fwd(0);
+			}
+		}
+	}
+
+	private static void setPosition(RandomAccess<?> ra, long[] position) {
+		for (int d = 0; d < position.length; d++)
+			ra.setPosition(position[d], d);
+	}
+
+	private interface FeatureSource {
+
+		/**
+		 * Provides the feature vectors of {@code length} pixels, starting at the
+		 * given position. Returns the index of the first feature vector in
+		 * {@link #features()}.
+		 */
+		int fetch(long[] position, int length);
+
+		float[] features();
+	}
+
+	private interface BlockAction {
+
+		void accept(long[] position, int length, float[] features, int offset);
 	}
 
 	public int numberOfFeatures() {
@@ -88,4 +422,91 @@ public class CpuRandomForestPrediction {
 	public int numberOfClasses() {
 		return core.numberOfClasses();
 	}
+
+	/**
+	 * Algorithms available to evaluate the random forest. All of them, except the
+	 * quantized ones, give the same class probabilities, but their performance
+	 * depends on the shape of the trees.
+	 */
+	public enum Engine {
+
+		/**
+		 * Trees are flattened into arrays and traversed node by node. See
+		 * {@link CpuRandomForestCore}. Forests that exceed the maximal array size
+		 * are split into several shards, see {@link ShardedRandomForestCore}.
+		 */
+		ARRAYS {
+
+			@Override
+			CpuRandomForestEngine create(TransparentRandomForest forest) {
+				return ShardedRandomForestCore.flatten(forest);
+			}
+		},
+
+		/**
+		 * Bit vector based evaluation, without tree traversal. Usually faster for
+		 * shallow trees. See {@link QuickScorerRandomForestCore}.
+		 */
+		QUICK_SCORER {
+
+			@Override
+			CpuRandomForestEngine create(TransparentRandomForest forest) {
+				return new QuickScorerRandomForestCore(forest);
+			}
+		},
+
+		/**
+		 * The trees are compiled to byte code. Falls back to {@link #ARRAYS} if a
+		 * tree is too big to be compiled. See {@link CompiledRandomForestCore}.
+		 */
+		COMPILED {
+
+			@Override
+			CpuRandomForestEngine create(TransparentRandomForest forest) {
+				return CompiledRandomForestCore.compileOrInterpret(forest);
+			}
+		},
+
+		/**
+		 * Segmentation skips the remaining trees of a pixel, as soon as they can't
+		 * change the class with the highest probability. Fast for pixels that are
+		 * classified with high confidence. See {@link EarlyExitRandomForestCore}.
+		 */
+		EARLY_EXIT {
+
+			@Override
+			CpuRandomForestEngine create(TransparentRandomForest forest) {
+				return new EarlyExitRandomForestCore(forest);
+			}
+		},
+
+		/**
+		 * Thresholds are replaced by per feature bin indices, and leaf
+		 * probabilities are quantized to 16 bit. Much smaller memory footprint, but
+		 * the class probabilities are only approximated, see
+		 * {@link CpuRandomForestPrediction#accuracy}. Falls back to {@link #ARRAYS}
+		 * if the forest is too big to be quantized. See
+		 * {@link QuantizedRandomForestCore}.
+		 */
+		QUANTIZED {
+
+			@Override
+			CpuRandomForestEngine create(TransparentRandomForest forest) {
+				return QuantizedRandomForestCore.quantizeOrInterpret(forest, 16);
+			}
+		},
+
+		/**
+		 * Same as {@link #QUANTIZED} but leaf probabilities are quantized to 8 bit.
+		 */
+		QUANTIZED_8BIT {
+
+			@Override
+			CpuRandomForestEngine create(TransparentRandomForest forest) {
+				return QuantizedRandomForestCore.quantizeOrInterpret(forest, 8);
+			}
+		};
+
+		abstract CpuRandomForestEngine create(TransparentRandomForest forest);
+	}
 }
@@ -0,0 +1,196 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import net.imglib2.trainable_segmentation.utils.ArrayUtils;
+
+import java.util.List;
+
+/**
+ * Random forest evaluation, that stops early when only the class with the
+ * highest probability is needed.
+ * <p>
+ * The leaf probabilities are accumulated tree by tree. For each tree and class
+ * the maximal leaf probability is known. After every
+ * {@link #CHECK_INTERVAL} trees, {@link #classifyInstances} checks whether the
+ * remaining trees can still change the winning class: if the lead of the
+ * current winner over any other class is bigger than the maximum probability
+ * that the remaining trees could add to that class, the remaining trees are
+ * skipped. The check includes a safety margin for float rounding errors, the
+ * result is therefore always equal to the argmax of the full forest.
+ * <p>
+ * Trees are evaluated in the same order as in {@link CpuRandomForestCore},
+ * which makes {@link #distributionForInstance} bit-identical.
+ */
+class EarlyExitRandomForestCore implements CpuRandomForestEngine {
+
+	private static final int CHECK_INTERVAL = 8;
+
+	private final int numClasses;
+
+	private final float[] prior;
+
+	private final int numTrees;
+
+	/**
+	 * Index of the root node of tree t.
+	 */
+	private final int[] treeRoots;
+
+	private final int[] attributes;
+
+	private final float[] thresholds;
+
+	/**
+	 * Children of the nodes, see {@link SortedTrees#writeNodes}. The probabilities
+	 * of a leaf start at leafIndex * numClasses in leafProbabilities[].
+	 */
+	private final int[] children;
+
+	private final float[] leafProbabilities;
+
+	/**
+	 * remaining[t * numClasses + k] is the maximal probability, that trees t to
+	 * numTrees - 1 together can add to class k.
+	 */
+	private final double[] remaining;
+
+	/**
+	 * Upper bound for the rounding errors of the float accumulation.
+	 */
+	private final double tolerance;
+
+	public EarlyExitRandomForestCore(final TransparentRandomForest forest) {
+		numClasses = forest.numberOfClasses();
+		final SortedTrees sortedTrees = new SortedTrees(forest);
+		prior = sortedTrees.prior(numClasses);
+		final List<TransparentRandomTree> nonLeafTrees = sortedTrees.nonLeafTrees();
+		numTrees = nonLeafTrees.size();
+		final int nodes = sortedTrees.numberOfNodes();
+		final int leafs = sortedTrees.numberOfLeafs();
+		treeRoots = new int[numTrees];
+		attributes = new int[nodes];
+		thresholds = new float[nodes];
+		children = new int[2 * nodes];
+		leafProbabilities = new float[leafs * numClasses];
+		remaining = new double[(numTrees + 1) * numClasses];
+		sortedTrees.writeNodes(treeRoots, children, (index, node) -> {
+			attributes[index] = node.attributeIndex();
+			thresholds[index] = (float) node.threshold();
+		}, (leaf, node) -> {
+			for (int k = 0; k < numClasses; k++)
+				leafProbabilities[leaf * numClasses + k] = (float) node.classProbabilities()[k];
+		});
+		for (int t = numTrees - 1; t >= 0; t--) {
+			final double[] max = maxLeafProbabilities(nonLeafTrees.get(t));
+			for (int k = 0; k < numClasses; k++)
+				remaining[t * numClasses + k] = remaining[(t + 1) * numClasses + k] + max[k];
+		}
+		double maxTotal = 0;
+		for (int k = 0; k < numClasses; k++)
+			maxTotal = Math.max(maxTotal, prior[k] + remaining[k]);
+		// NB: The rounding error of a float sum of n values is at most
+		// n * 2^-24 * sum. Two sums are compared, and a safety factor 2 is used.
+		tolerance = (numTrees + 1) * Math.scalb(maxTotal, -22);
+	}
+
+	private double[] maxLeafProbabilities(final TransparentRandomTree node) {
+		if (node.isLeaf()) {
+			final double[] result = new double[numClasses];
+			for (int k = 0; k < numClasses; k++)
+				result[k] = (float) node.classProbabilities()[k];
+			return result;
+		}
+		final double[] a = maxLeafProbabilities(node.smallerChild());
+		final double[] b = maxLeafProbabilities(node.biggerChild());
+		for (int k = 0; k < numClasses; k++)
+			a[k] = Math.max(a[k], b[k]);
+		return a;
+	}
+
+	@Override
+	public int numberOfClasses() {
+		return numClasses;
+	}
+
+	@Override
+	public void distributionForInstance(final float[] instance, final float[] distribution) {
+		System.arraycopy(prior, 0, distribution, 0, numClasses);
+		evaluate(instance, 0, distribution, 0, 0, numTrees);
+		CpuRandomForestCore.normalize(distribution, 0, numClasses);
+	}
+
+	@Override
+	public void distributionForInstances(final float[] instances, final int instancesOffset,
+		final int instanceStride, final int numInstances, final float[] distributions)
+	{
+		for (int i = 0; i < numInstances; i++) {
+			final int distributionBase = i * numClasses;
+			System.arraycopy(prior, 0, distributions, distributionBase, numClasses);
+			evaluate(instances, instancesOffset + i * instanceStride, distributions,
+				distributionBase, 0, numTrees);
+			CpuRandomForestCore.normalize(distributions, distributionBase, numClasses);
+		}
+	}
+
+	@Override
+	public void classifyInstances(final float[] instances, final int instancesOffset,
+		final int instanceStride, final int numInstances, final float[] distributions,
+		final int[] classes)
+	{
+		// NB: Only the first numClasses entries of the buffer are used.
+		for (int i = 0; i < numInstances; i++)
+			classes[i] = classify(instances, instancesOffset + i * instanceStride, distributions);
+	}
+
+	private int classify(final float[] instances, final int instanceBase,
+		final float[] distribution)
+	{
+		System.arraycopy(prior, 0, distribution, 0, numClasses);
+		int tree = 0;
+		while (tree < numTrees) {
+			final int end = Math.min(tree + CHECK_INTERVAL, numTrees);
+			evaluate(instances, instanceBase, distribution, 0, tree, end);
+			tree = end;
+			if (tree < numTrees) {
+				final int winner = ArrayUtils.findMax(distribution, 0, numClasses);
+				if (isDecided(distribution, winner, tree))
+					return winner;
+			}
+		}
+		CpuRandomForestCore.normalize(distribution, 0, numClasses);
+		return ArrayUtils.findMax(distribution, 0, numClasses);
+	}
+
+	/**
+	 * Returns true if trees {@code nextTree} to {@code numTrees - 1} can't change
+	 * the winning class.
+	 */
+	private boolean isDecided(final float[] distribution, final int winner, final int nextTree) {
+		final int remainingBase = nextTree * numClasses;
+		final double lead = distribution[winner] - tolerance;
+		for (int k = 0; k < numClasses; k++)
+			if (k != winner && !(lead > distribution[k] + remaining[remainingBase + k]))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Adds the leaf probabilities of trees {@code fromTree} to {@code toTree - 1}
+	 * to the distribution.
+	 */
+	private void evaluate(final float[] instances, final int instanceBase,
+		final float[] distributions, final int distributionBase, final int fromTree,
+		final int toTree)
+	{
+		for (int t = fromTree; t < toTree; t++) {
+			int node = treeRoots[t];
+			while (node >= 0) {
+				final float attributeValue = instances[instanceBase + attributes[node]];
+				node = attributeValue < thresholds[node] ? children[2 * node] : children[2 * node +
+					1];
+			}
+			final int o = (node - Integer.MIN_VALUE) * numClasses;
+			for (int k = 0; k < numClasses; k++)
+				distributions[distributionBase + k] += leafProbabilities[o + k];
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Random forest in the flattened representation of {@link CpuRandomForestCore},
+ * split into several shards if it exceeds the maximal array size, see
+ * {@link ShardedRandomForestCore}. This is the representation stored by
+ * {@link RandomForestBinaryFormat}.
+ * <p>
+ * A forest, that was read from a file, can be applied on the CPU and prepared
+ * for the GPU directly from the flattened arrays. The trees are not
+ * reconstructed as {@link TransparentRandomTree} objects, unless
+ * {@link #toTransparentRandomForest()} is called.
+ */
+public class FlattenedRandomForest {
+
+	private final List<CpuRandomForestCore> shards;
+
+	FlattenedRandomForest(List<CpuRandomForestCore> shards) {
+		if (shards.isEmpty())
+			throw new IllegalArgumentException("At least one shard is required.");
+		this.shards = Collections.unmodifiableList(shards);
+	}
+
+	public static FlattenedRandomForest flatten(TransparentRandomForest forest) {
+		return new FlattenedRandomForest(ShardedRandomForestCore.split(forest,
+			ShardedRandomForestCore.MAX_SHARD_SIZE));
+	}
+
+	List<CpuRandomForestCore> shards() {
+		return shards;
+	}
+
+	/**
+	 * Returns the engine for {@link CpuRandomForestPrediction.Engine#ARRAYS}.
+	 */
+	CpuRandomForestEngine engine() {
+		return shards.size() == 1 ? shards.get(0) : new ShardedRandomForestCore(shards);
+	}
+
+	public int numberOfClasses() {
+		return shards.get(0).numberOfClasses();
+	}
+
+	/**
+	 * Same as {@link TransparentRandomForest#usedAttributes()}.
+	 */
+	public int[] usedAttributes() {
+		BitSet bits = new BitSet();
+		for (CpuRandomForestCore shard : shards)
+			shard.usedAttributes(bits);
+		return bits.stream().toArray();
+	}
+
+	/**
+	 * Same as {@link TransparentRandomForest#selectAttributes(int[])}. The
+	 * thresholds and leaf probabilities are shared with this forest.
+	 */
+	public FlattenedRandomForest selectAttributes(int[] attributes) {
+		List<CpuRandomForestCore> result = new ArrayList<>(shards.size());
+		for (CpuRandomForestCore shard : shards)
+			result.add(shard.selectAttributes(attributes));
+		return new FlattenedRandomForest(result);
+	}
+
+	/**
+	 * Reconstructs the trees, see
+	 * {@link CpuRandomForestCore#toTransparentRandomForest()}.
+	 */
+	public TransparentRandomForest toTransparentRandomForest() {
+		return shards.size() == 1 ? shards.get(0).toTransparentRandomForest()
+			: new ShardedRandomForestCore(shards).toTransparentRandomForest();
+	}
+
+	/**
+	 * Converts the trees into node arrays, and passes them to the factory. Tree
+	 * {@code j} uses the {@code numberOfNodes} nodes starting at node
+	 * {@code j * numberOfNodes}, and the {@code numberOfLeafs} leafs starting at
+	 * leaf {@code j * numberOfLeafs}. Its root is the first node. Node {@code i}
+	 * stores the attribute index, the smaller child and the bigger child in
+	 * {@code nodeIndices[3 * i ... 3 * i + 2]}, and the threshold in
+	 * {@code nodeThresholds[i]}. A child is either the index of a node within
+	 * the tree, or the index of a leaf within the tree plus
+	 * {@link Short#MIN_VALUE}. The class probabilities of leaf {@code l} are
+	 * stored at {@code leafProbabilities[l * numberOfClasses ...]}. A tree, that
+	 * is a single leaf, gets a root node, whose children are both that leaf.
+	 * <p>
+	 * This is the layout of
+	 * {@link net.imglib2.trainable_segmentation.gpu.random_forest.GpuRandomForestPrediction}.
+	 */
+	public <T> T toNodeArrays(NodeArraysFactory<T> factory) {
+		int numberOfClasses = numberOfClasses();
+		NodeCounter counter = new NodeCounter();
+		for (CpuRandomForestCore shard : shards)
+			shard.visitTrees(counter);
+		counter.startTree();
+		int numberOfTrees = counter.numberOfTrees;
+		int numberOfNodes = counter.maxNodes;
+		int numberOfLeafs = counter.maxLeafs;
+		NodeArrays arrays = new NodeArrays(numberOfClasses, numberOfNodes, numberOfLeafs,
+			new short[numberOfTrees * numberOfNodes * 3], new float[numberOfTrees *
+				numberOfNodes], new float[numberOfTrees * numberOfLeafs * numberOfClasses]);
+		for (CpuRandomForestCore shard : shards)
+			shard.visitTrees(arrays);
+		return factory.create(numberOfClasses, numberOfNodes, numberOfLeafs, arrays.nodeIndices,
+			arrays.nodeThresholds, arrays.leafProbabilities);
+	}
+
+	/**
+	 * See {@link #toNodeArrays(NodeArraysFactory)}.
+	 */
+	public interface NodeArraysFactory<T> {
+
+		T create(int numberOfClasses, int numberOfNodes, int numberOfLeafs, short[] nodeIndices,
+			float[] nodeThresholds, float[] leafProbabilities);
+	}
+
+	/**
+	 * Counts the trees, and the maximal number of nodes and leafs per tree.
+	 */
+	private static class NodeCounter implements CpuRandomForestCore.TreeVisitor {
+
+		private int numberOfTrees = 0;
+
+		private int maxNodes = 0;
+
+		private int maxLeafs = 0;
+
+		private int nodes = -1;
+
+		private int leafs = 0;
+
+		@Override
+		public void startTree() {
+			if (nodes >= 0) {
+				numberOfTrees++;
+				// NB: A tree that is a single leaf needs a root node.
+				maxNodes = Math.max(maxNodes, Math.max(1, nodes));
+				maxLeafs = Math.max(maxLeafs, leafs);
+			}
+			nodes = 0;
+			leafs = 0;
+		}
+
+		@Override
+		public void node(int attribute, float threshold) {
+			nodes++;
+		}
+
+		@Override
+		public void leaf(float[] array, int offset) {
+			leafs++;
+		}
+	}
+
+	/**
+	 * Writes the trees into the node arrays. The children of the visited nodes,
+	 * that are not assigned yet, are kept on a stack.
+	 */
+	private static class NodeArrays implements CpuRandomForestCore.TreeVisitor {
+
+		private final int numberOfClasses;
+
+		private final int numberOfNodes;
+
+		private final int numberOfLeafs;
+
+		private final short[] nodeIndices;
+
+		private final float[] nodeThresholds;
+
+		private final float[] leafProbabilities;
+
+		private int tree = -1;
+
+		private int nodes;
+
+		private int leafs;
+
+		/**
+		 * Indices into nodeIndices[] of the children, that are not assigned yet.
+		 */
+		private int[] openChildren = new int[16];
+
+		private int numberOfOpenChildren;
+
+		private NodeArrays(int numberOfClasses, int numberOfNodes, int numberOfLeafs,
+			short[] nodeIndices, float[] nodeThresholds, float[] leafProbabilities)
+		{
+			this.numberOfClasses = numberOfClasses;
+			this.numberOfNodes = numberOfNodes;
+			this.numberOfLeafs = numberOfLeafs;
+			this.nodeIndices = nodeIndices;
+			this.nodeThresholds = nodeThresholds;
+			this.leafProbabilities = leafProbabilities;
+		}
+
+		@Override
+		public void startTree() {
+			tree++;
+			nodes = 0;
+			leafs = 0;
+			numberOfOpenChildren = 0;
+		}
+
+		@Override
+		public void node(int attribute, float threshold) {
+			int node = nodes++;
+			int offset = tree * numberOfNodes + node;
+			if (node > 0)
+				nodeIndices[openChildren[--numberOfOpenChildren]] = (short) node;
+			nodeIndices[offset * 3] = (short) attribute;
+			nodeThresholds[offset] = threshold;
+			if (numberOfOpenChildren + 2 > openChildren.length)
+				openChildren = Arrays.copyOf(openChildren, 2 * openChildren.length);
+			// NB: The smaller child is visited first, and therefore on top of the stack.
+			openChildren[numberOfOpenChildren++] = offset * 3 + 2;
+			openChildren[numberOfOpenChildren++] = offset * 3 + 1;
+		}
+
+		@Override
+		public void leaf(float[] array, int offset) {
+			int leaf = leafs++;
+			System.arraycopy(array, offset, leafProbabilities, (tree * numberOfLeafs + leaf) *
+				numberOfClasses, numberOfClasses);
+			short child = (short) (leaf + Short.MIN_VALUE);
+			if (nodes > 0) {
+				nodeIndices[openChildren[--numberOfOpenChildren]] = child;
+				return;
+			}
+			nodes = 1;
+			int node = tree * numberOfNodes;
+			nodeIndices[node * 3] = 0;
+			nodeIndices[node * 3 + 1] = child;
+			nodeIndices[node * 3 + 2] = child;
+			nodeThresholds[node] = 0;
+		}
+	}
+}
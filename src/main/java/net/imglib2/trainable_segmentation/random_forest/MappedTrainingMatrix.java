@@ -0,0 +1,238 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link TrainingMatrix} stored in a memory mapped file. The training data may
+ * therefore be much bigger than the Java heap. The samples are stored in
+ * chunks of {@link ChunkedTrainingMatrix#CHUNK_SIZE} samples, with the same
+ * layout as in {@link ChunkedTrainingMatrix}: one block of float values per
+ * feature, followed by the class indices as shorts.
+ * <p>
+ * The file starts with a header, that contains the number of features,
+ * classes and samples. An existing file can be opened with
+ * {@link #open(Path)}, to train again or to add more samples, without
+ * calculating the features again.
+ * <p>
+ * The file is mapped in segments of several chunks. Each segment is mapped
+ * when the first sample is added to it, which extends the file to the full
+ * size of the segment. Reading is thread safe, adding samples is not.
+ */
+public class MappedTrainingMatrix implements TrainingMatrix, Closeable {
+
+	private static final int MAGIC = 0x4c4b544d;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_BYTES = 32;
+
+	private static final int SIZE_OFFSET = 16;
+
+	private static final long MAX_SEGMENT_BYTES = 1L << 28;
+
+	private static final int CHUNK_BITS = Integer.numberOfTrailingZeros(
+		ChunkedTrainingMatrix.CHUNK_SIZE);
+
+	private static final int CHUNK_SIZE = ChunkedTrainingMatrix.CHUNK_SIZE;
+
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final FileChannel channel;
+
+	private final MappedByteBuffer header;
+
+	private final int numberOfFeatures;
+
+	private final int numberOfClasses;
+
+	private final long chunkBytes;
+
+	private final int chunksPerSegment;
+
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+	private final List<FloatBuffer> floatSegments = new ArrayList<>();
+
+	private final List<ShortBuffer> shortSegments = new ArrayList<>();
+
+	private int size;
+
+	private MappedTrainingMatrix(FileChannel channel, int numberOfFeatures, int numberOfClasses,
+		boolean create) throws IOException
+	{
+		if (numberOfFeatures < 1)
+			throw new IllegalArgumentException("Number of features must be positive.");
+		if (numberOfClasses > 1 << 16)
+			throw new IllegalArgumentException("Too many classes.");
+		this.channel = channel;
+		this.numberOfFeatures = numberOfFeatures;
+		this.numberOfClasses = numberOfClasses;
+		this.chunkBytes = (4L * numberOfFeatures + 2) * CHUNK_SIZE;
+		if (chunkBytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many features.");
+		this.chunksPerSegment = (int) Math.max(1, MAX_SEGMENT_BYTES / chunkBytes);
+		this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		if (create) {
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putInt(8, numberOfFeatures);
+			header.putInt(12, numberOfClasses);
+			header.putLong(SIZE_OFFSET, 0);
+			this.size = 0;
+		}
+		else {
+			this.size = (int) header.getLong(SIZE_OFFSET);
+			int chunks = (int) ((size + (long) CHUNK_MASK) >>> CHUNK_BITS);
+			while ((long) segments.size() * chunksPerSegment < chunks)
+				mapSegment();
+		}
+	}
+
+	/**
+	 * Creates a new file, an existing file is overwritten.
+	 */
+	public static MappedTrainingMatrix create(Path file, int numberOfFeatures,
+		int numberOfClasses) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		return new MappedTrainingMatrix(channel, numberOfFeatures, numberOfClasses, true);
+	}
+
+	/**
+	 * Opens a file, that was written by a {@link MappedTrainingMatrix}. More
+	 * samples can be added to it.
+	 */
+	public static MappedTrainingMatrix open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+			StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+			// NB: Read until the header is complete, or the end of the file.
+		}
+		if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+			channel.close();
+			throw new IOException("Not a training data file: " + file);
+		}
+		return new MappedTrainingMatrix(channel, header.getInt(8), header.getInt(12), false);
+	}
+
+	@Override
+	public int numberOfFeatures() {
+		return numberOfFeatures;
+	}
+
+	@Override
+	public int numberOfSamples() {
+		return size;
+	}
+
+	@Override
+	public int numberOfClasses() {
+		return numberOfClasses;
+	}
+
+	@Override
+	public int classIndex(int sample) {
+		int chunk = sample >>> CHUNK_BITS;
+		ShortBuffer classes = shortSegments.get(chunk / chunksPerSegment);
+		return classes.get(classesOffset(chunk) + (sample & CHUNK_MASK)) & 0xffff;
+	}
+
+	@Override
+	public void gather(int feature, int[] samples, int from, int to, float[] values) {
+		int featureOffset = feature << CHUNK_BITS;
+		for (int i = from; i < to; i++) {
+			int sample = samples[i];
+			int chunk = sample >>> CHUNK_BITS;
+			FloatBuffer segment = floatSegments.get(chunk / chunksPerSegment);
+			values[i - from] = segment.get(valuesOffset(chunk) + featureOffset + (sample &
+				CHUNK_MASK));
+		}
+	}
+
+	/**
+	 * Adds a sample. The feature values are read from
+	 * {@code features[offset ... offset + numberOfFeatures - 1]}.
+	 */
+	public void add(float[] features, int offset, int classIndex) {
+		if (size == Integer.MAX_VALUE)
+			throw new IllegalStateException("Too many samples.");
+		int chunk = size >>> CHUNK_BITS;
+		int index = size & CHUNK_MASK;
+		if (chunk / chunksPerSegment == segments.size())
+			mapSegment();
+		FloatBuffer values = floatSegments.get(chunk / chunksPerSegment);
+		int base = valuesOffset(chunk) + index;
+		for (int f = 0; f < numberOfFeatures; f++)
+			values.put(base + (f << CHUNK_BITS), features[offset + f]);
+		shortSegments.get(chunk / chunksPerSegment).put(classesOffset(chunk) + index,
+			(short) classIndex);
+		size++;
+		header.putLong(SIZE_OFFSET, size);
+	}
+
+	/**
+	 * Writes all changes to the file.
+	 */
+	public void flush() {
+		for (MappedByteBuffer segment : segments)
+			segment.force();
+		header.force();
+	}
+
+	/**
+	 * Writes all changes to the file and closes it. The mapped memory is released
+	 * by the garbage collector.
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+		channel.close();
+	}
+
+	private void mapSegment() {
+		long segmentBytes = chunksPerSegment * chunkBytes;
+		long position = HEADER_BYTES + segments.size() * segmentBytes;
+		MappedByteBuffer segment;
+		try {
+			segment = channel.map(FileChannel.MapMode.READ_WRITE, position, segmentBytes);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		segment.order(ByteOrder.LITTLE_ENDIAN);
+		segments.add(segment);
+		floatSegments.add(segment.asFloatBuffer());
+		shortSegments.add(segment.asShortBuffer());
+	}
+
+	/**
+	 * Index of the first feature value of the chunk, in floats, relative to the
+	 * start of the segment.
+	 */
+	private int valuesOffset(int chunk) {
+		return (int) ((chunk % chunksPerSegment) * chunkBytes / 4);
+	}
+
+	/**
+	 * Index of the first class index of the chunk, in shorts, relative to the
+	 * start of the segment.
+	 */
+	private int classesOffset(int chunk) {
+		return (int) (((chunk % chunksPerSegment) * chunkBytes + 4L * numberOfFeatures *
+			CHUNK_SIZE) / 2);
+	}
+}
@@ -0,0 +1,154 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import weka.classifiers.AbstractClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.Collections;
+
+/**
+ * Weka classifier, that is trained by the {@link RandomForestTrainer}. The
+ * hyperparameters have the same names as those of
+ * hr.irb.fastRandomForest.FastRandomForest, and it can be used in its place.
+ * <p>
+ * Use {@link #train(TrainingMatrix)} to train the classifier directly on float
+ * columns, without creating weka {@link Instances}, and
+ * {@link #update(TrainingMatrix, int, int)} to add trees for new samples to
+ * an already trained classifier.
+ */
+public class NativeRandomForest extends AbstractClassifier {
+
+	private static final long serialVersionUID = 1L;
+
+	private final RandomForestTrainer trainer = new RandomForestTrainer();
+
+	private TransparentRandomForest forest = new TransparentRandomForest(Collections
+		.emptyList());
+
+	private boolean computeOutOfBagStatistics = false;
+
+	private OutOfBagStatistics outOfBagStatistics = null;
+
+	public int getNumTrees() {
+		return trainer.getNumTrees();
+	}
+
+	public void setNumTrees(int numTrees) {
+		trainer.setNumTrees(numTrees);
+	}
+
+	public int getNumFeatures() {
+		return trainer.getNumFeatures();
+	}
+
+	public void setNumFeatures(int numFeatures) {
+		trainer.setNumFeatures(numFeatures);
+	}
+
+	public int getSeed() {
+		return trainer.getSeed();
+	}
+
+	public void setSeed(int seed) {
+		trainer.setSeed(seed);
+	}
+
+	public int getNumBins() {
+		return trainer.getNumBins();
+	}
+
+	/**
+	 * Enables the histogram based split finding, see
+	 * {@link RandomForestTrainer#setNumBins(int)}.
+	 */
+	public void setNumBins(int numBins) {
+		trainer.setNumBins(numBins);
+	}
+
+	public double getNewSampleFraction() {
+		return trainer.getNewSampleFraction();
+	}
+
+	/**
+	 * See {@link RandomForestTrainer#setNewSampleFraction(double)}.
+	 */
+	public void setNewSampleFraction(double newSampleFraction) {
+		trainer.setNewSampleFraction(newSampleFraction);
+	}
+
+	public boolean getComputeOutOfBagStatistics() {
+		return computeOutOfBagStatistics;
+	}
+
+	/**
+	 * Enables the calculation of the out of bag accuracy and feature importance
+	 * during training, see {@link #getOutOfBagStatistics()}.
+	 */
+	public void setComputeOutOfBagStatistics(boolean computeOutOfBagStatistics) {
+		this.computeOutOfBagStatistics = computeOutOfBagStatistics;
+	}
+
+	/**
+	 * Returns the out of bag statistics of the last training. Returns null, if
+	 * they were not calculated, see
+	 * {@link #setComputeOutOfBagStatistics(boolean)}, or if the forest was
+	 * updated by {@link #update} since.
+	 */
+	public OutOfBagStatistics getOutOfBagStatistics() {
+		return outOfBagStatistics;
+	}
+
+	/**
+	 * Returns the trained random forest. The forest is empty, if the classifier
+	 * was not trained yet.
+	 */
+	public TransparentRandomForest getForest() {
+		return forest;
+	}
+
+	public void train(TrainingMatrix data) {
+		outOfBagStatistics = null;
+		forest = computeOutOfBagStatistics ? trainer.train(data,
+			statistics -> outOfBagStatistics = statistics) : trainer.train(data);
+	}
+
+	/**
+	 * Warm start, replaces the oldest trees by {@code numNewTrees} new trees. See
+	 * {@link RandomForestTrainer#update}. Trains all trees, if the classifier
+	 * was not trained yet.
+	 */
+	public void update(TrainingMatrix data, int firstNewSample, int numNewTrees) {
+		if (forest.trees().isEmpty()) {
+			train(data);
+			return;
+		}
+		outOfBagStatistics = null;
+		forest = trainer.update(forest, data, firstNewSample, numNewTrees);
+	}
+
+	/**
+	 * Copies the instances into float columns and trains the classifier. The
+	 * class attribute must be the last attribute.
+	 */
+	@Override
+	public void buildClassifier(Instances instances) {
+		int numberOfFeatures = instances.numAttributes() - 1;
+		if (instances.classIndex() != numberOfFeatures)
+			throw new IllegalArgumentException("The class attribute must be the last attribute.");
+		int numberOfSamples = instances.numInstances();
+		float[][] columns = new float[numberOfFeatures][numberOfSamples];
+		int[] classIndices = new int[numberOfSamples];
+		for (int i = 0; i < numberOfSamples; i++) {
+			Instance instance = instances.instance(i);
+			for (int f = 0; f < numberOfFeatures; f++)
+				columns[f][i] = (float) instance.value(f);
+			classIndices[i] = (int) instance.classValue();
+		}
+		train(TrainingMatrix.of(columns, classIndices, instances.numClasses()));
+	}
+
+	@Override
+	public double[] distributionForInstance(Instance instance) {
+		return forest.distributionForInstance(instance, instance.numClasses());
+	}
+}
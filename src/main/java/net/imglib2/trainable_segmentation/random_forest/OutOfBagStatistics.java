@@ -0,0 +1,57 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * Accuracy and feature importance of a random forest, estimated on the out of
+ * bag samples: Each tree is only evaluated on the training samples, that are
+ * not part of its bootstrap sample. See
+ * {@link RandomForestTrainer#train(TrainingMatrix, java.util.function.Consumer)}.
+ * <p>
+ * The importance of a feature is the permutation importance: The decrease in
+ * out of bag accuracy of a tree, if the values of the feature are randomly
+ * permuted between the out of bag samples, averaged over all trees.
+ */
+public class OutOfBagStatistics implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final double accuracy;
+
+	private final double[] featureImportance;
+
+	OutOfBagStatistics(double accuracy, double[] featureImportance) {
+		this.accuracy = accuracy;
+		this.featureImportance = featureImportance;
+	}
+
+	/**
+	 * Fraction of the training samples, that are classified correctly by the
+	 * majority vote of the trees, for which the sample is out of bag. Samples
+	 * that are part of every bootstrap sample are ignored.
+	 */
+	public double accuracy() {
+		return accuracy;
+	}
+
+	/**
+	 * Returns the permutation importance of each feature. Features, that are not
+	 * used by the random forest, have an importance of zero. Features that are
+	 * used may have a slightly negative importance.
+	 */
+	public double[] featureImportance() {
+		return featureImportance.clone();
+	}
+
+	/**
+	 * Returns the indices of the k features with the highest importance, sorted
+	 * by decreasing importance.
+	 */
+	public int[] mostImportantFeatures(int k) {
+		return IntStream.range(0, featureImportance.length).boxed()
+			.sorted(Comparator.comparingDouble(f -> -featureImportance[f]))
+			.limit(k).mapToInt(Integer::intValue).toArray();
+	}
+}
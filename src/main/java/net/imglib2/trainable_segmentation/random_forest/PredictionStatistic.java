@@ -0,0 +1,86 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import net.imglib2.trainable_segmentation.utils.ArrayUtils;
+
+/**
+ * Per pixel values, that can be computed from the class probabilities while
+ * the random forest is applied. This avoids writing the full probability map.
+ * Useful for active learning, where the pixels with the highest uncertainty
+ * are suggested for labeling.
+ *
+ * @see CpuRandomForestPrediction#statistics
+ */
+public enum PredictionStatistic {
+
+	/**
+	 * Index of the class with the highest probability.
+	 */
+	CLASS_INDEX {
+
+		@Override
+		public float compute(float[] distributions, int offset, int numberOfClasses) {
+			return ArrayUtils.findMax(distributions, offset, numberOfClasses);
+		}
+	},
+
+	/**
+	 * Probability of the most likely class.
+	 */
+	MAX_PROBABILITY {
+
+		@Override
+		public float compute(float[] distributions, int offset, int numberOfClasses) {
+			return distributions[offset + ArrayUtils.findMax(distributions, offset, numberOfClasses)];
+		}
+	},
+
+	/**
+	 * Difference between the probabilities of the most likely and the second
+	 * most likely class. A small margin indicates high uncertainty.
+	 */
+	MARGIN {
+
+		@Override
+		public float compute(float[] distributions, int offset, int numberOfClasses) {
+			float first = Float.NEGATIVE_INFINITY;
+			float second = Float.NEGATIVE_INFINITY;
+			for (int k = 0; k < numberOfClasses; k++) {
+				float value = distributions[offset + k];
+				if (value > first) {
+					second = first;
+					first = value;
+				}
+				else if (value > second)
+					second = value;
+			}
+			return numberOfClasses < 2 ? first : first - second;
+		}
+	},
+
+	/**
+	 * Shannon entropy of the class probabilities, divided by the logarithm of the
+	 * number of classes. The values are between 0 (certain) and 1 (all classes
+	 * equally likely).
+	 */
+	ENTROPY {
+
+		@Override
+		public float compute(float[] distributions, int offset, int numberOfClasses) {
+			if (numberOfClasses < 2)
+				return 0;
+			double sum = 0;
+			for (int k = 0; k < numberOfClasses; k++) {
+				double p = distributions[offset + k];
+				if (p > 0)
+					sum -= p * Math.log(p);
+			}
+			return (float) (sum / Math.log(numberOfClasses));
+		}
+	};
+
+	/**
+	 * Computes the statistic for the class probabilities stored at
+	 * {@code distributions[offset ... offset + numberOfClasses - 1]}.
+	 */
+	public abstract float compute(float[] distributions, int offset, int numberOfClasses);
+}
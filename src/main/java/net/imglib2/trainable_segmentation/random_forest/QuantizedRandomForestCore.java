@@ -0,0 +1,240 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Quantized representation of a random forest. Only the leaf probabilities
+ * and the thresholds are quantized, the memory is therefore mostly saved in
+ * the leaf tables.
+ * <p>
+ * The thresholds used for a feature are collected in a sorted table. A feature
+ * value is converted once per instance to a bin index: the number of table
+ * entries that are smaller or equal to the value. "value &lt; threshold" then
+ * becomes "bin &lt;= index of threshold in the table", which is exact. The tree
+ * nodes store 16 bit attribute and threshold indices. The children of a node
+ * are not quantized, they are two 32 bit indices, see
+ * {@link SortedTrees#writeNodes}. A node therefore takes 12 bytes.
+ * <p>
+ * Leaf probabilities are quantized to 8 or 16 bit unsigned integers, and
+ * accumulated as integers. This introduces a small error in the class
+ * probabilities, see {@link AccuracyReport}.
+ */
+class QuantizedRandomForestCore implements CpuRandomForestEngine {
+
+	private static final int MAX_INDEX = 0xffff;
+
+	private final int numClasses;
+
+	private final int numFeatures;
+
+	/**
+	 * Quantized leaf probability that corresponds to 1.0.
+	 */
+	private final int scale;
+
+	private final int[] prior;
+
+	private final int numTrees;
+
+	/**
+	 * Indices of the features, that are used by the forest.
+	 */
+	private final int[] usedFeatures;
+
+	/**
+	 * The thresholds of feature f are stored from thresholdsOffsets[f] to
+	 * thresholdsOffsets[f + 1] - 1, in ascending order.
+	 */
+	private final int[] thresholdsOffsets;
+
+	private final float[] thresholdTable;
+
+	private final int[] treeRoots;
+
+	private final char[] nodeAttributes;
+
+	/**
+	 * Index of the node's threshold in the table of the node's attribute.
+	 */
+	private final char[] nodeThresholds;
+
+	/**
+	 * Children of the nodes, see {@link SortedTrees#writeNodes}.
+	 */
+	private final int[] children;
+
+	/**
+	 * Quantized leaf probabilities. Exactly one of the two arrays is used,
+	 * depending on the number of bits.
+	 */
+	private final byte[] leafBytes;
+
+	private final char[] leafChars;
+
+	/**
+	 * @param bits Number of bits used to store a leaf probability, 8 or 16.
+	 * @throws IllegalArgumentException if the forest has more than 65535
+	 *           features or thresholds per feature, or too many trees.
+	 */
+	public QuantizedRandomForestCore(final TransparentRandomForest forest, final int bits) {
+		if (bits != 8 && bits != 16)
+			throw new IllegalArgumentException("Only 8 or 16 bits are supported.");
+		numClasses = forest.numberOfClasses();
+		scale = (1 << bits) - 1;
+		if ((long) forest.trees().size() * scale > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many trees to be quantized.");
+		final SortedTrees sortedTrees = new SortedTrees(forest);
+		prior = new int[numClasses];
+		for (final TransparentRandomTree tree : sortedTrees.leafTrees())
+			for (int k = 0; k < numClasses; k++)
+				prior[k] += quantize(tree.classProbabilities()[k]);
+		final List<TransparentRandomTree> nonLeafTrees = sortedTrees.nonLeafTrees();
+		numTrees = nonLeafTrees.size();
+		usedFeatures = forest.usedAttributes();
+		numFeatures = usedFeatures.length == 0 ? 0 : usedFeatures[usedFeatures.length - 1] + 1;
+		if (numFeatures > MAX_INDEX)
+			throw new IllegalArgumentException("Too many features to be quantized.");
+		final List<TreeSet<Float>> tables = new ArrayList<>();
+		for (int f = 0; f < numFeatures; f++)
+			tables.add(new TreeSet<>());
+		for (final TransparentRandomTree tree : nonLeafTrees)
+			collectThresholds(tree, tables);
+		final int nodes = sortedTrees.numberOfNodes();
+		final int leafs = sortedTrees.numberOfLeafs();
+		thresholdsOffsets = new int[numFeatures + 1];
+		for (int f = 0; f < numFeatures; f++) {
+			if (tables.get(f).size() > MAX_INDEX)
+				throw new IllegalArgumentException("Too many thresholds to be quantized.");
+			thresholdsOffsets[f + 1] = thresholdsOffsets[f] + tables.get(f).size();
+		}
+		thresholdTable = new float[thresholdsOffsets[numFeatures]];
+		for (int f = 0; f < numFeatures; f++) {
+			int i = thresholdsOffsets[f];
+			for (final float threshold : tables.get(f))
+				thresholdTable[i++] = threshold;
+		}
+		treeRoots = new int[numTrees];
+		nodeAttributes = new char[nodes];
+		nodeThresholds = new char[nodes];
+		children = new int[2 * nodes];
+		leafBytes = bits == 8 ? new byte[leafs * numClasses] : null;
+		leafChars = bits == 16 ? new char[leafs * numClasses] : null;
+		sortedTrees.writeNodes(treeRoots, children, this::writeNode, this::writeLeaf);
+	}
+
+	/**
+	 * Returns the quantized forest, or {@link CpuRandomForestCore} if the forest
+	 * is too big to be quantized.
+	 */
+	static CpuRandomForestEngine quantizeOrInterpret(final TransparentRandomForest forest,
+		final int bits)
+	{
+		try {
+			return new QuantizedRandomForestCore(forest, bits);
+		}
+		catch (final IllegalArgumentException e) {
+			return ShardedRandomForestCore.flatten(forest);
+		}
+	}
+
+	private int quantize(final double probability) {
+		return (int) Math.max(0, Math.min(scale, Math.round(probability * scale)));
+	}
+
+	private static void collectThresholds(final TransparentRandomTree node,
+		final List<TreeSet<Float>> tables)
+	{
+		if (node.isLeaf())
+			return;
+		tables.get(node.attributeIndex()).add((float) node.threshold());
+		collectThresholds(node.smallerChild(), tables);
+		collectThresholds(node.biggerChild(), tables);
+	}
+
+	private void writeNode(final int index, final TransparentRandomTree node) {
+		final int attribute = node.attributeIndex();
+		final int from = thresholdsOffsets[attribute];
+		final int to = thresholdsOffsets[attribute + 1];
+		nodeAttributes[index] = (char) attribute;
+		nodeThresholds[index] = (char) (Arrays.binarySearch(thresholdTable, from, to,
+			(float) node.threshold()) - from);
+	}
+
+	private void writeLeaf(final int leaf, final TransparentRandomTree node) {
+		for (int k = 0; k < numClasses; k++) {
+			final int value = quantize(node.classProbabilities()[k]);
+			if (leafBytes != null)
+				leafBytes[leaf * numClasses + k] = (byte) value;
+			else
+				leafChars[leaf * numClasses + k] = (char) value;
+		}
+	}
+
+	@Override
+	public int numberOfClasses() {
+		return numClasses;
+	}
+
+	@Override
+	public void distributionForInstance(final float[] instance, final float[] distribution) {
+		evaluate(instance, 0, new int[numFeatures], new int[numClasses], distribution, 0);
+	}
+
+	@Override
+	public void distributionForInstances(final float[] instances, final int instancesOffset,
+		final int instanceStride, final int numInstances, final float[] distributions)
+	{
+		final int[] bins = new int[numFeatures];
+		final int[] counts = new int[numClasses];
+		for (int i = 0; i < numInstances; i++)
+			evaluate(instances, instancesOffset + i * instanceStride, bins, counts, distributions,
+				i * numClasses);
+	}
+
+	private void evaluate(final float[] instances, final int instanceBase, final int[] bins,
+		final int[] counts, final float[] distributions, final int distributionBase)
+	{
+		for (final int f : usedFeatures)
+			bins[f] = bin(f, instances[instanceBase + f]);
+		System.arraycopy(prior, 0, counts, 0, numClasses);
+		for (int t = 0; t < numTrees; t++) {
+			int node = treeRoots[t];
+			while (node >= 0)
+				node = bins[nodeAttributes[node]] <= nodeThresholds[node] ? children[2 * node]
+					: children[2 * node + 1];
+			final int o = (node - Integer.MIN_VALUE) * numClasses;
+			if (leafBytes != null)
+				for (int k = 0; k < numClasses; k++)
+					counts[k] += leafBytes[o + k] & 0xff;
+			else
+				for (int k = 0; k < numClasses; k++)
+					counts[k] += leafChars[o + k];
+		}
+		for (int k = 0; k < numClasses; k++)
+			distributions[distributionBase + k] = counts[k];
+		CpuRandomForestCore.normalize(distributions, distributionBase, numClasses);
+	}
+
+	/**
+	 * Returns the index of the first threshold of feature f, that is bigger than
+	 * the value. Equivalently, the number of thresholds that the value is not
+	 * smaller than. For NaN this is the number of thresholds.
+	 */
+	private int bin(final int f, final float value) {
+		final int from = thresholdsOffsets[f];
+		int low = from;
+		int high = thresholdsOffsets[f + 1];
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			// NB: "!(a < b)" instead of "a >= b" to match the tree traversal for NaN.
+			if (!(value < thresholdTable[mid]))
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low - from;
+	}
+}
@@ -0,0 +1,227 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Random forest evaluation using the QuickScorer algorithm.
+ * <p>
+ * The leafs of each tree are numbered from left to right and represented by a
+ * bit vector. Initially all bits are set. All (attribute, threshold) pairs of
+ * the forest are sorted by attribute and threshold. To evaluate an instance,
+ * the thresholds of each attribute are visited in ascending order, as long as
+ * the attribute value is greater or equal to the threshold. Such a node
+ * directs the instance into the bigger child, so all leafs of the smaller child
+ * are cleared from the tree's bit vector. Afterwards, the lowest bit set in the
+ * bit vector of a tree is the index of the exit leaf.
+ * <p>
+ * The trees don't need to be traversed, and there are no data dependent
+ * branches apart from the loop termination. The results are bit-identical to
+ * {@link CpuRandomForestCore}: trees are ordered by height and leaf
+ * probabilities are accumulated in the same order.
+ */
+class QuickScorerRandomForestCore implements CpuRandomForestEngine {
+
+	private final int numClasses;
+
+	private final float[] prior;
+
+	private final int numTrees;
+
+	/**
+	 * The bit vector of tree t starts at word treeWordBase[t] of the bit vector
+	 * array.
+	 */
+	private final int[] treeWordBase;
+
+	/**
+	 * The leaf probabilities of tree t start at index treeLeafBase[t] * numClasses
+	 * in leafProbabilities[].
+	 */
+	private final int[] treeLeafBase;
+
+	private final float[] leafProbabilities;
+
+	private final int numWords;
+
+	/**
+	 * Entries for attribute f are stored from index featureOffsets[f] to
+	 * featureOffsets[f+1] - 1 in thresholds[], clearFrom[] and clearTo[].
+	 */
+	private final int[] featureOffsets;
+
+	private final float[] thresholds;
+
+	/**
+	 * Range of bits, first bit inclusive, last bit exclusive, that are cleared if
+	 * the attribute value is greater or equal to the threshold.
+	 */
+	private final int[] clearFrom;
+
+	private final int[] clearTo;
+
+	public QuickScorerRandomForestCore(final TransparentRandomForest forest) {
+		numClasses = forest.numberOfClasses();
+		final SortedTrees sortedTrees = new SortedTrees(forest);
+		prior = sortedTrees.prior(numClasses);
+		final List<TransparentRandomTree> nonLeafTrees = sortedTrees.nonLeafTrees();
+		numTrees = nonLeafTrees.size();
+		treeWordBase = new int[numTrees];
+		treeLeafBase = new int[numTrees];
+		int words = 0;
+		int leafs = 0;
+		int nodes = 0;
+		int numFeatures = 0;
+		for (int t = 0; t < numTrees; t++) {
+			final TransparentRandomTree tree = nonLeafTrees.get(t);
+			treeWordBase[t] = words;
+			treeLeafBase[t] = leafs;
+			final int numLeafs = tree.numberOfLeafs();
+			words += (numLeafs + 63) >>> 6;
+			leafs += numLeafs;
+			nodes += tree.numberOfNodes() - numLeafs;
+			numFeatures = Math.max(numFeatures, maxAttributeIndex(tree) + 1);
+		}
+		numWords = words;
+		leafProbabilities = new float[leafs * numClasses];
+		final Entry[] entries = new Entry[nodes];
+		final int[] counts = new int[2]; // number of entries and leafs written
+		for (int t = 0; t < numTrees; t++) {
+			counts[1] = 0;
+			write(nonLeafTrees.get(t), t, entries, counts);
+		}
+		Arrays.sort(entries, Comparator.<Entry> comparingInt(e -> e.attribute)
+			.thenComparing((a, b) -> Float.compare(a.threshold, b.threshold)));
+		featureOffsets = new int[numFeatures + 1];
+		thresholds = new float[nodes];
+		clearFrom = new int[nodes];
+		clearTo = new int[nodes];
+		for (int i = 0; i < nodes; i++) {
+			final Entry entry = entries[i];
+			featureOffsets[entry.attribute + 1]++;
+			thresholds[i] = entry.threshold;
+			clearFrom[i] = entry.clearFrom;
+			clearTo[i] = entry.clearTo;
+		}
+		for (int f = 0; f < numFeatures; f++)
+			featureOffsets[f + 1] += featureOffsets[f];
+	}
+
+	private static int maxAttributeIndex(final TransparentRandomTree node) {
+		if (node.isLeaf())
+			return -1;
+		return Math.max(node.attributeIndex(), Math.max(maxAttributeIndex(node.smallerChild()),
+			maxAttributeIndex(node.biggerChild())));
+	}
+
+	/**
+	 * Writes the leaf probabilities of the given sub tree, and adds an
+	 * {@link Entry} for each of its nodes.
+	 *
+	 * @param counts counts[0] is the number of entries written so far. counts[1]
+	 *          is the index of the next leaf in the current tree. Both are
+	 *          incremented by this method.
+	 * @return number of leafs in the sub tree.
+	 */
+	private int write(final TransparentRandomTree node, final int tree, final Entry[] entries,
+		final int[] counts)
+	{
+		if (node.isLeaf()) {
+			final int o = (treeLeafBase[tree] + counts[1]++) * numClasses;
+			for (int i = 0; i < numClasses; ++i)
+				leafProbabilities[o + i] = (float) node.classProbabilities()[i];
+			return 1;
+		}
+		final int firstBit = treeWordBase[tree] * 64 + counts[1];
+		final Entry entry = new Entry(node.attributeIndex(), (float) node.threshold());
+		entries[counts[0]++] = entry;
+		final int smallerLeafs = write(node.smallerChild(), tree, entries, counts);
+		final int biggerLeafs = write(node.biggerChild(), tree, entries, counts);
+		entry.clearFrom = firstBit;
+		entry.clearTo = firstBit + smallerLeafs;
+		return smallerLeafs + biggerLeafs;
+	}
+
+	@Override
+	public int numberOfClasses() {
+		return numClasses;
+	}
+
+	@Override
+	public void distributionForInstance(final float[] instance, final float[] distribution) {
+		evaluate(instance, 0, new long[numWords], distribution, 0);
+	}
+
+	@Override
+	public void distributionForInstances(final float[] instances, final int instancesOffset,
+		final int instanceStride, final int numInstances, final float[] distributions)
+	{
+		final long[] bits = new long[numWords];
+		for (int i = 0; i < numInstances; i++)
+			evaluate(instances, instancesOffset + i * instanceStride, bits, distributions,
+				i * numClasses);
+	}
+
+	private void evaluate(final float[] instances, final int instanceBase, final long[] bits,
+		final float[] distributions, final int distributionBase)
+	{
+		Arrays.fill(bits, -1L);
+		final int numFeatures = featureOffsets.length - 1;
+		for (int f = 0; f < numFeatures; f++) {
+			final float attributeValue = instances[instanceBase + f];
+			final int end = featureOffsets[f + 1];
+			// NB: "!(a < b)" instead of "a >= b" to match the tree traversal for NaN.
+			for (int e = featureOffsets[f]; e < end && !(attributeValue < thresholds[e]); e++)
+				clearBits(bits, clearFrom[e], clearTo[e]);
+		}
+		System.arraycopy(prior, 0, distributions, distributionBase, numClasses);
+		for (int t = 0; t < numTrees; t++) {
+			final int wordBase = treeWordBase[t];
+			int w = wordBase;
+			while (bits[w] == 0)
+				w++;
+			final int leaf = ((w - wordBase) << 6) + Long.numberOfTrailingZeros(bits[w]);
+			final int o = (treeLeafBase[t] + leaf) * numClasses;
+			for (int k = 0; k < numClasses; k++)
+				distributions[distributionBase + k] += leafProbabilities[o + k];
+		}
+		CpuRandomForestCore.normalize(distributions, distributionBase, numClasses);
+	}
+
+	/**
+	 * Clears the bits from index {@code from} (inclusive) to {@code to}
+	 * (exclusive).
+	 */
+	private static void clearBits(final long[] bits, final int from, final int to) {
+		final int firstWord = from >>> 6;
+		final int lastWord = (to - 1) >>> 6;
+		final long firstMask = -1L << from;
+		final long lastMask = -1L >>> -to;
+		if (firstWord == lastWord) {
+			bits[firstWord] &= ~(firstMask & lastMask);
+		}
+		else {
+			bits[firstWord] &= ~firstMask;
+			for (int w = firstWord + 1; w < lastWord; w++)
+				bits[w] = 0;
+			bits[lastWord] &= ~lastMask;
+		}
+	}
+
+	private static class Entry {
+
+		private final int attribute;
+
+		private final float threshold;
+
+		private int clearFrom;
+
+		private int clearTo;
+
+		private Entry(int attribute, float threshold) {
+			this.attribute = attribute;
+			this.threshold = threshold;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary format for random forests. The forest is stored as the flattened
+ * arrays of {@link CpuRandomForestCore}: a 32 bit little endian int with the
+ * number of shards, followed by the shards, see
+ * {@link ShardedRandomForestCore} and {@link CpuRandomForestCore#write} for
+ * the exact layout.
+ * <p>
+ * Reading copies the arrays chunk by chunk with bulk operations into a
+ * {@link FlattenedRandomForest}, that is used as is. There is no Java
+ * deserialization, no reflection, and the trees are not rebuilt as objects,
+ * which makes loading much faster than {@link java.io.ObjectInputStream} and
+ * {@link TransparentRandomForest#forFastRandomForest}.
+ */
+public class RandomForestBinaryFormat {
+
+	private RandomForestBinaryFormat() {
+		// prevent from being instantiated.
+	}
+
+	/**
+	 * Writes the random forest to the channel, starting at its current position.
+	 */
+	public static void write(TransparentRandomForest forest, WritableByteChannel channel)
+		throws IOException
+	{
+		write(FlattenedRandomForest.flatten(forest), channel);
+	}
+
+	/**
+	 * Writes the flattened random forest to the channel, starting at its current
+	 * position.
+	 */
+	public static void write(FlattenedRandomForest forest, WritableByteChannel channel)
+		throws IOException
+	{
+		List<CpuRandomForestCore> shards = forest.shards();
+		ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(shards.size());
+		header.flip();
+		while (header.hasRemaining())
+			channel.write(header);
+		for (CpuRandomForestCore shard : shards)
+			shard.write(channel);
+	}
+
+	/**
+	 * Reads a random forest, starting at the current position of the channel.
+	 * Afterwards the position of the channel is at the end of the random forest
+	 * data.
+	 */
+	public static FlattenedRandomForest read(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining())
+			if (channel.read(header) < 0)
+				throw new EOFException();
+		header.flip();
+		int numShards = header.getInt();
+		if (numShards < 1)
+			throw new IOException("Invalid random forest data.");
+		List<CpuRandomForestCore> shards = new ArrayList<>();
+		for (int i = 0; i < numShards; i++)
+			shards.add(CpuRandomForestCore.read(channel));
+		return new FlattenedRandomForest(shards);
+	}
+}
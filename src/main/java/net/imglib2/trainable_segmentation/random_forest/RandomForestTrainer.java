@@ -0,0 +1,737 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import net.imglib2.trainable_segmentation.utils.ArrayUtils;
+import preview.net.imglib2.parallel.Parallelization;
+import preview.net.imglib2.parallel.TaskExecutor;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Trains a random forest on a {@link TrainingMatrix}. The hyperparameters and
+ * the algorithm are the same as for hr.irb.fastRandomForest.FastRandomForest:
+ * Each tree is trained on a bootstrap sample of the training data. At each node
+ * a random subset of the features is checked for the split with the best Gini
+ * impurity. The trees are grown until the nodes are pure.
+ * <p>
+ * If the number of bins is set, see {@link #setNumBins(int)}, the feature
+ * values are sorted into quantile bins once, before the trees are trained.
+ * The splits are then found by accumulating a class histogram per bin, instead
+ * of sorting the samples at every node.
+ * <p>
+ * The trees are trained in parallel, one task per tree, on the
+ * {@link TaskExecutor} of the caller's {@link Parallelization} context. No
+ * other threads are used. Within a tree task the context is single threaded,
+ * such that nested parallel code doesn't use more threads than the caller
+ * granted. The seed of each tree is derived from {@link #setSeed(int)}, the
+ * result is therefore independent of the number of threads.
+ * <p>
+ * {@link #update} allows a warm start: The trees of an existing forest are
+ * kept, and only a few new trees are trained, with emphasis on newly added
+ * samples.
+ */
+public class RandomForestTrainer implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int numTrees = 10;
+
+	private int numFeatures = 0;
+
+	private int seed = 1;
+
+	private int numBins = 0;
+
+	private double newSampleFraction = 0.5;
+
+	public int getNumTrees() {
+		return numTrees;
+	}
+
+	public void setNumTrees(int numTrees) {
+		if (numTrees < 1)
+			throw new IllegalArgumentException("Number of trees must be positive.");
+		this.numTrees = numTrees;
+	}
+
+	public int getNumFeatures() {
+		return numFeatures;
+	}
+
+	/**
+	 * Sets the number of randomly chosen features, that are checked at each node.
+	 * If zero or negative, log2(numberOfFeatures + 1) + 1 is used.
+	 */
+	public void setNumFeatures(int numFeatures) {
+		this.numFeatures = numFeatures;
+	}
+
+	public int getSeed() {
+		return seed;
+	}
+
+	public void setSeed(int seed) {
+		this.seed = seed;
+	}
+
+	public int getNumBins() {
+		return numBins;
+	}
+
+	/**
+	 * Enables the histogram based split finding. Each feature is divided into
+	 * at most {@code numBins} quantile bins, and only the edges of the bins are
+	 * used as thresholds. The number of bins must be between 2 and 256, zero
+	 * selects the exact split finding, which is the default.
+	 */
+	public void setNumBins(int numBins) {
+		if (numBins != 0 && (numBins < 2 || numBins > BinnedColumns.MAX_BINS))
+			throw new IllegalArgumentException("Number of bins must be 0, or between 2 and " +
+				BinnedColumns.MAX_BINS + ".");
+		this.numBins = numBins;
+	}
+
+	public double getNewSampleFraction() {
+		return newSampleFraction;
+	}
+
+	/**
+	 * Sets the fraction of each bootstrap sample, that is drawn from the new
+	 * samples, when a tree is trained by {@link #update}. The remaining part is
+	 * drawn from all samples. The default is 0.5.
+	 */
+	public void setNewSampleFraction(double newSampleFraction) {
+		if (!(newSampleFraction >= 0 && newSampleFraction <= 1))
+			throw new IllegalArgumentException("New sample fraction must be between 0 and 1.");
+		this.newSampleFraction = newSampleFraction;
+	}
+
+	public TransparentRandomForest train(TrainingMatrix data) {
+		requireSamples(data);
+		List<TreeResult> results = trainTrees(data, numTrees, new Random(seed), data
+			.numberOfSamples(), null);
+		return toForest(results);
+	}
+
+	/**
+	 * Same as {@link #train(TrainingMatrix)}, but additionally evaluates each
+	 * tree on its out of bag samples, and passes the estimated accuracy and
+	 * feature importance to the given consumer. See {@link OutOfBagStatistics}.
+	 * The trained forest is the same as without statistics.
+	 * <p>
+	 * Each tree is evaluated once, plus once for each feature it uses. The votes
+	 * of the trees need {@code 4 * numberOfClasses} bytes per sample.
+	 */
+	public TransparentRandomForest train(TrainingMatrix data,
+		Consumer<OutOfBagStatistics> statistics)
+	{
+		requireSamples(data);
+		long votesSize = (long) data.numberOfSamples() * data.numberOfClasses();
+		if (votesSize > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException(
+				"Too many samples for the calculation of the out of bag statistics.");
+		int[] votes = new int[(int) votesSize];
+		List<TreeResult> results = trainTrees(data, numTrees, new Random(seed), data
+			.numberOfSamples(), votes);
+		double[] importance = new double[data.numberOfFeatures()];
+		for (TreeResult result : results)
+			for (int f = 0; f < importance.length; f++)
+				importance[f] += result.importance[f] / results.size();
+		statistics.accept(new OutOfBagStatistics(majorityVoteAccuracy(data, votes), importance));
+		return toForest(results);
+	}
+
+	private static double majorityVoteAccuracy(TrainingMatrix data, int[] votes) {
+		int numberOfClasses = data.numberOfClasses();
+		int evaluated = 0;
+		int correct = 0;
+		for (int i = 0; i < data.numberOfSamples(); i++) {
+			int best = 0;
+			for (int c = 1; c < numberOfClasses; c++)
+				if (votes[i * numberOfClasses + c] > votes[i * numberOfClasses + best])
+					best = c;
+			if (votes[i * numberOfClasses + best] == 0)
+				continue;
+			evaluated++;
+			if (best == data.classIndex(i))
+				correct++;
+		}
+		return evaluated == 0 ? Double.NaN : (double) correct / evaluated;
+	}
+
+	private static TransparentRandomForest toForest(List<TreeResult> results) {
+		List<TransparentRandomTree> trees = new ArrayList<>(results.size());
+		for (TreeResult result : results)
+			trees.add(result.tree);
+		return new TransparentRandomForest(Collections.unmodifiableList(trees));
+	}
+
+	/**
+	 * Warm start. Trains {@code numNewTrees} new trees and appends them to the
+	 * given forest. The oldest trees are removed, such that the forest has at
+	 * most {@link #getNumTrees()} trees. The trees that are kept are not
+	 * modified.
+	 * <p>
+	 * The training data must contain the samples the given forest was trained
+	 * on, followed by the new samples, starting at index {@code firstNewSample}.
+	 * The new trees are trained on bootstrap samples, that emphasise the new
+	 * samples, see {@link #setNewSampleFraction(double)}.
+	 */
+	public TransparentRandomForest update(TransparentRandomForest forest, TrainingMatrix data,
+		int firstNewSample, int numNewTrees)
+	{
+		requireSamples(data);
+		if (firstNewSample < 0 || firstNewSample > data.numberOfSamples())
+			throw new IllegalArgumentException("Index of the first new sample is out of range.");
+		if (numNewTrees < 1)
+			throw new IllegalArgumentException("Number of new trees must be positive.");
+		if (!forest.trees().isEmpty() && forest.numberOfClasses() != data.numberOfClasses())
+			throw new IllegalArgumentException("Number of classes differs from the random forest.");
+		numNewTrees = Math.min(numNewTrees, numTrees);
+		List<TransparentRandomTree> oldTrees = forest.trees();
+		int keep = Math.min(oldTrees.size(), numTrees - numNewTrees);
+		// NB: The seeds must differ between successive updates.
+		Random random = new Random(seed * 31L + data.numberOfSamples());
+		List<TransparentRandomTree> trees = new ArrayList<>(oldTrees.subList(oldTrees.size() -
+			keep, oldTrees.size()));
+		for (TreeResult result : trainTrees(data, numNewTrees, random, firstNewSample, null))
+			trees.add(result.tree);
+		return new TransparentRandomForest(Collections.unmodifiableList(trees));
+	}
+
+	/**
+	 * Trains the given number of trees. If {@code votes} is not null, the trees
+	 * are evaluated on their out of bag samples.
+	 */
+	private List<TreeResult> trainTrees(TrainingMatrix data, int count, Random random,
+		int firstNewSample, int[] votes)
+	{
+		List<Long> treeSeeds = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			treeSeeds.add(random.nextLong());
+		int featuresPerNode = featuresPerNode(data.numberOfFeatures());
+		BinnedColumns binned = numBins > 0 ? BinnedColumns.compute(data, numBins) : null;
+		Bootstrap bootstrap = new Bootstrap(data.numberOfSamples(), firstNewSample,
+			newSampleFraction);
+		TaskExecutor executor = Parallelization.getTaskExecutor();
+		return executor.forEachApply(treeSeeds, treeSeed -> Parallelization.runSingleThreaded(
+			() -> new TreeBuilder(data, binned, bootstrap, featuresPerNode, treeSeed).build(votes)));
+	}
+
+	private static void requireSamples(TrainingMatrix data) {
+		if (data.numberOfSamples() == 0)
+			throw new IllegalArgumentException("The training data contains no samples.");
+	}
+
+	private int featuresPerNode(int numberOfFeatures) {
+		int k = numFeatures > 0 ? numFeatures : (int) (Math.log(numberOfFeatures + 1) / Math.log(
+			2)) + 1;
+		return Math.min(k, numberOfFeatures);
+	}
+
+	/**
+	 * Grows a single tree. The samples of a node are stored in a consecutive range
+	 * of {@link #samples}, the tree is built depth first, and each split
+	 * partitions the range of the node in place.
+	 * <p>
+	 * In the binned mode, the class histograms of a node are kept until both
+	 * children are built. If a child checks a feature, that was already checked
+	 * by its parent, and the child has more samples than its sibling, the
+	 * histogram of the sibling is calculated and subtracted from the parent's
+	 * histogram.
+	 */
+	private static class TreeBuilder {
+
+		private final TrainingMatrix data;
+
+		private final BinnedColumns binned;
+
+		private final Bootstrap bootstrap;
+
+		private final int numberOfClasses;
+
+		private final int featuresPerNode;
+
+		private final Random random;
+
+		private final int[] samples;
+
+		private final int[] classes;
+
+		private final int[] features;
+
+		private final float[] values;
+
+		private final long[] keys;
+
+		private final int[] leftCounts;
+
+		private TreeBuilder(TrainingMatrix data, BinnedColumns binned, Bootstrap bootstrap,
+			int featuresPerNode, long seed)
+		{
+			this.data = data;
+			this.binned = binned;
+			this.bootstrap = bootstrap;
+			this.numberOfClasses = data.numberOfClasses();
+			this.featuresPerNode = featuresPerNode;
+			this.random = new Random(seed);
+			int n = data.numberOfSamples();
+			this.samples = new int[n];
+			this.classes = new int[n];
+			this.features = new int[data.numberOfFeatures()];
+			this.values = new float[n];
+			this.keys = binned == null ? new long[n] : null;
+			this.leftCounts = new int[numberOfClasses];
+			for (int i = 0; i < features.length; i++)
+				features[i] = i;
+		}
+
+		private TreeResult build(int[] votes) {
+			int n = samples.length;
+			for (int i = 0; i < n; i++)
+				samples[i] = bootstrap.nextSample(random);
+			// NB: Sorted samples give a more cache friendly access to the columns.
+			Arrays.sort(samples);
+			for (int i = 0; i < n; i++)
+				classes[i] = data.classIndex(samples[i]);
+			TransparentRandomTree tree = buildNode(0, n, classCounts(0, n), new Histograms(null, 0,
+				0));
+			double[] importance = votes == null ? null : outOfBag(tree, votes);
+			return new TreeResult(tree, importance);
+		}
+
+		/**
+		 * Evaluates the tree on the samples, that are not part of the bootstrap
+		 * sample. Adds the votes of the tree to {@code votes}. Returns the
+		 * permutation importance of each feature for this tree.
+		 */
+		private double[] outOfBag(TransparentRandomTree tree, int[] votes) {
+			int n = samples.length;
+			boolean[] inBag = new boolean[n];
+			for (int sample : samples)
+				inBag[sample] = true;
+			int count = 0;
+			for (int i = 0; i < n; i++)
+				if (!inBag[i])
+					samples[count++] = i;
+			int[] outOfBag = Arrays.copyOf(samples, count);
+			double[] importance = new double[data.numberOfFeatures()];
+			if (count == 0)
+				return importance;
+			int[] predictions = predict(tree, outOfBag, -1, null);
+			int correct = countCorrect(outOfBag, predictions);
+			synchronized (votes) {
+				for (int i = 0; i < count; i++)
+					votes[outOfBag[i] * numberOfClasses + predictions[i]]++;
+			}
+			BitSet used = new BitSet();
+			tree.usedAttributes(used);
+			float[] permuted = new float[count];
+			for (int feature = used.nextSetBit(0); feature >= 0; feature = used.nextSetBit(feature +
+				1))
+			{
+				data.gather(feature, outOfBag, 0, count, permuted);
+				shuffle(permuted);
+				int permutedCorrect = countCorrect(outOfBag, predict(tree, outOfBag, feature, permuted));
+				importance[feature] = (double) (correct - permutedCorrect) / count;
+			}
+			return importance;
+		}
+
+		/**
+		 * Returns the predicted class of each sample. If {@code permutedFeature} is
+		 * not negative, the values of this feature are taken from
+		 * {@code permutedValues}, instead of the training data.
+		 */
+		private int[] predict(TransparentRandomTree tree, int[] samples, int permutedFeature,
+			float[] permutedValues)
+		{
+			int count = samples.length;
+			int[] ids = samples.clone();
+			int[] positions = new int[count];
+			for (int i = 0; i < count; i++)
+				positions[i] = i;
+			int[] predictions = new int[count];
+			predictNode(tree, ids, positions, 0, count, permutedFeature, permutedValues, predictions);
+			return predictions;
+		}
+
+		/**
+		 * Routes the samples {@code ids[from ... to - 1]} through the tree. Each
+		 * split partitions the range in place, like {@link #partition}.
+		 */
+		private void predictNode(TransparentRandomTree node, int[] ids, int[] positions, int from,
+			int to, int permutedFeature, float[] permutedValues, int[] predictions)
+		{
+			if (from == to)
+				return;
+			if (node.isLeaf()) {
+				int prediction = ArrayUtils.findMax(node.classProbabilities());
+				for (int i = from; i < to; i++)
+					predictions[positions[i]] = prediction;
+				return;
+			}
+			int feature = node.attributeIndex();
+			if (feature == permutedFeature)
+				for (int i = from; i < to; i++)
+					values[i - from] = permutedValues[positions[i]];
+			else
+				data.gather(feature, ids, from, to, values);
+			double threshold = node.threshold();
+			int i = from;
+			int j = to - 1;
+			while (i <= j) {
+				if (values[i - from] < threshold)
+					i++;
+				else {
+					swap(ids, i, j);
+					swap(positions, i, j);
+					values[i - from] = values[j - from];
+					j--;
+				}
+			}
+			predictNode(node.smallerChild(), ids, positions, from, i, permutedFeature, permutedValues,
+				predictions);
+			predictNode(node.biggerChild(), ids, positions, i, to, permutedFeature, permutedValues,
+				predictions);
+		}
+
+		private int countCorrect(int[] samples, int[] predictions) {
+			int correct = 0;
+			for (int i = 0; i < samples.length; i++)
+				if (predictions[i] == data.classIndex(samples[i]))
+					correct++;
+			return correct;
+		}
+
+		private void shuffle(float[] array) {
+			for (int i = array.length - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				float tmp = array[i];
+				array[i] = array[j];
+				array[j] = tmp;
+			}
+		}
+
+		private TransparentRandomTree buildNode(int from, int to, int[] counts,
+			Histograms histograms)
+		{
+			if (to - from < 2 || isPure(counts))
+				return leaf(counts);
+			Split split = findSplit(from, to, counts, histograms);
+			if (split == null)
+				return leaf(counts);
+			int middle = partition(from, to, split);
+			int[] smallerCounts = classCounts(from, middle);
+			int[] biggerCounts = new int[numberOfClasses];
+			for (int c = 0; c < numberOfClasses; c++)
+				biggerCounts[c] = counts[c] - smallerCounts[c];
+			TransparentRandomTree smallerChild = buildNode(from, middle, smallerCounts,
+				new Histograms(histograms, middle, to));
+			TransparentRandomTree biggerChild = buildNode(middle, to, biggerCounts,
+				new Histograms(histograms, from, middle));
+			return TransparentRandomTree.node(split.feature, split.threshold, smallerChild,
+				biggerChild);
+		}
+
+		/**
+		 * Checks {@link #featuresPerNode} randomly chosen features. If none of
+		 * them allows a split, more features are checked, until all features are
+		 * exhausted.
+		 */
+		private Split findSplit(int from, int to, int[] counts, Histograms histograms) {
+			Split best = new Split(sumOfSquares(counts) / (to - from) * (1 + 1e-12));
+			boolean found = false;
+			for (int remaining = features.length, checked = 0; remaining > 0 &&
+				(checked < featuresPerNode || !found); remaining--, checked++)
+			{
+				int j = random.nextInt(remaining);
+				int feature = features[j];
+				features[j] = features[remaining - 1];
+				features[remaining - 1] = feature;
+				found |= binned == null ? findSplit(feature, from, to, counts, best)
+					: findBinnedSplit(feature, from, to, counts, best, histograms);
+			}
+			return found ? best : null;
+		}
+
+		/**
+		 * Sorts the samples by the value of the given feature, and checks all
+		 * thresholds between two consecutive values. Maximizing the sum of
+		 * {@code count(class)^2 / count} over both children is equivalent to
+		 * minimizing the weighted Gini impurity.
+		 */
+		private boolean findSplit(int feature, int from, int to, int[] counts, Split best) {
+			int n = to - from;
+			data.gather(feature, samples, from, to, values);
+			for (int i = 0; i < n; i++)
+				keys[i] = ((long) sortableBits(values[i]) << 32) | i;
+			Arrays.sort(keys, 0, n);
+			Arrays.fill(leftCounts, 0);
+			long sumLeft = 0;
+			long sumRight = (long) sumOfSquares(counts);
+			boolean found = false;
+			for (int i = 0; i < n - 1; i++) {
+				int index = (int) keys[i];
+				int c = classes[from + index];
+				sumLeft += 2 * leftCounts[c] + 1;
+				leftCounts[c]++;
+				sumRight -= 2 * (counts[c] - leftCounts[c]) + 1;
+				float value = values[index];
+				float next = values[(int) keys[i + 1]];
+				if (!(value < next))
+					continue;
+				double score = (double) sumLeft / (i + 1) + (double) sumRight / (n - i - 1);
+				if (score > best.score) {
+					best.score = score;
+					best.feature = feature;
+					best.threshold = threshold(value, next);
+					found = true;
+				}
+			}
+			return found;
+		}
+
+		/**
+		 * Same as {@link #findSplit(int, int, int, int[], Split)}, but only the
+		 * edges of the bins are checked as thresholds.
+		 */
+		private boolean findBinnedSplit(int feature, int from, int to, int[] counts, Split best,
+			Histograms histograms)
+		{
+			int n = to - from;
+			int[] histogram = histogram(histograms, feature, from, to);
+			Arrays.fill(leftCounts, 0);
+			int left = 0;
+			boolean found = false;
+			for (int b = 0; b < binned.numberOfBins(feature) - 1; b++) {
+				for (int c = 0; c < numberOfClasses; c++) {
+					int count = histogram[b * numberOfClasses + c];
+					leftCounts[c] += count;
+					left += count;
+				}
+				if (left == 0)
+					continue;
+				if (left == n)
+					break;
+				double sumLeft = 0;
+				double sumRight = 0;
+				for (int c = 0; c < numberOfClasses; c++) {
+					double l = leftCounts[c];
+					double r = counts[c] - leftCounts[c];
+					sumLeft += l * l;
+					sumRight += r * r;
+				}
+				double score = sumLeft / left + sumRight / (n - left);
+				if (score > best.score) {
+					best.score = score;
+					best.feature = feature;
+					best.bin = b;
+					best.threshold = binned.threshold(feature, b);
+					found = true;
+				}
+			}
+			return found;
+		}
+
+		/**
+		 * Returns the class histogram of the given feature for the samples of the
+		 * node. Uses the sibling subtraction if possible, see {@link TreeBuilder}.
+		 */
+		private int[] histogram(Histograms histograms, int feature, int from, int to) {
+			int[] parentHistogram = histograms.parent == null ? null : histograms.parent.byFeature
+				.get(feature);
+			int[] histogram;
+			if (parentHistogram != null && histograms.siblingTo - histograms.siblingFrom < to - from) {
+				histogram = accumulateHistogram(feature, histograms.siblingFrom, histograms.siblingTo);
+				for (int i = 0; i < histogram.length; i++)
+					histogram[i] = parentHistogram[i] - histogram[i];
+			}
+			else
+				histogram = accumulateHistogram(feature, from, to);
+			histograms.byFeature.put(feature, histogram);
+			return histogram;
+		}
+
+		private int[] accumulateHistogram(int feature, int from, int to) {
+			int[] histogram = new int[binned.numberOfBins(feature) * numberOfClasses];
+			for (int i = from; i < to; i++)
+				histogram[binned.bin(feature, samples[i]) * numberOfClasses + classes[i]]++;
+			return histogram;
+		}
+
+		/**
+		 * Moves the samples with a feature value smaller than the threshold to the
+		 * beginning of the range. Returns the index of the first sample with a
+		 * bigger value.
+		 */
+		private int partition(int from, int to, Split split) {
+			float threshold = split.threshold;
+			if (binned == null)
+				data.gather(split.feature, samples, from, to, values);
+			else {
+				// NB: The bins are used instead of the feature values, which avoids
+				// reading the column. bin <= split.bin is equivalent to
+				// value < split.threshold.
+				for (int i = from; i < to; i++)
+					values[i - from] = binned.bin(split.feature, samples[i]);
+				threshold = split.bin + 1;
+			}
+			int i = from;
+			int j = to - 1;
+			while (i <= j) {
+				if (values[i - from] < threshold)
+					i++;
+				else {
+					swap(samples, i, j);
+					swap(classes, i, j);
+					values[i - from] = values[j - from];
+					j--;
+				}
+			}
+			return i;
+		}
+
+		private int[] classCounts(int from, int to) {
+			int[] counts = new int[numberOfClasses];
+			for (int i = from; i < to; i++)
+				counts[classes[i]]++;
+			return counts;
+		}
+
+		private TransparentRandomTree leaf(int[] counts) {
+			double sum = 0;
+			for (int count : counts)
+				sum += count;
+			double[] probabilities = new double[numberOfClasses];
+			for (int c = 0; c < numberOfClasses; c++)
+				probabilities[c] = counts[c] / sum;
+			return TransparentRandomTree.leaf(probabilities);
+		}
+	}
+
+	private static class TreeResult {
+
+		private final TransparentRandomTree tree;
+
+		private final double[] importance;
+
+		private TreeResult(TransparentRandomTree tree, double[] importance) {
+			this.tree = tree;
+			this.importance = importance;
+		}
+	}
+
+	private static class Split {
+
+		private double score;
+
+		private int feature = -1;
+
+		private float threshold;
+
+		private int bin;
+
+		private Split(double score) {
+			this.score = score;
+		}
+	}
+
+	/**
+	 * Draws the samples of a bootstrap sample. If there are new samples, each
+	 * sample is drawn from the new samples with probability
+	 * {@link #newSampleFraction}, and from all samples otherwise.
+	 */
+	private static class Bootstrap {
+
+		private final int numberOfSamples;
+
+		private final int firstNewSample;
+
+		private final double newSampleFraction;
+
+		private Bootstrap(int numberOfSamples, int firstNewSample, double newSampleFraction) {
+			this.numberOfSamples = numberOfSamples;
+			this.firstNewSample = firstNewSample;
+			this.newSampleFraction = newSampleFraction;
+		}
+
+		private int nextSample(Random random) {
+			// NB: Without new samples, the random numbers are the same as for a
+			// plain bootstrap sample.
+			if (firstNewSample < numberOfSamples && random.nextDouble() < newSampleFraction)
+				return firstNewSample + random.nextInt(numberOfSamples - firstNewSample);
+			return random.nextInt(numberOfSamples);
+		}
+	}
+
+	/**
+	 * Class histograms of the features checked at a node, each stored as
+	 * {@code histogram[bin * numberOfClasses + classIndex]}. Only used in the
+	 * binned mode.
+	 */
+	private static class Histograms {
+
+		private final Histograms parent;
+
+		private final int siblingFrom;
+
+		private final int siblingTo;
+
+		private final Map<Integer, int[]> byFeature = new HashMap<>();
+
+		private Histograms(Histograms parent, int siblingFrom, int siblingTo) {
+			this.parent = parent;
+			this.siblingFrom = siblingFrom;
+			this.siblingTo = siblingTo;
+		}
+	}
+
+	// -- Helper methods --
+
+	private static boolean isPure(int[] counts) {
+		int nonZero = 0;
+		for (int count : counts)
+			if (count > 0)
+				nonZero++;
+		return nonZero <= 1;
+	}
+
+	private static double sumOfSquares(int[] counts) {
+		double sum = 0;
+		for (int count : counts)
+			sum += (double) count * count;
+		return sum;
+	}
+
+	/**
+	 * Returns a threshold t with {@code value < t <= next}. The threshold is a
+	 * float, such that it stays the same when the forest is flattened.
+	 */
+	static float threshold(float value, float next) {
+		float t = (float) (((double) value + next) / 2);
+		return value < t ? t : next;
+	}
+
+	/**
+	 * Maps the float to an int, such that the order is preserved.
+	 */
+	static int sortableBits(float value) {
+		int bits = Float.floatToIntBits(value);
+		return bits ^ ((bits >> 31) & 0x7fffffff);
+	}
+
+	private static void swap(int[] array, int i, int j) {
+		int tmp = array[i];
+		array[i] = array[j];
+		array[j] = tmp;
+	}
+}
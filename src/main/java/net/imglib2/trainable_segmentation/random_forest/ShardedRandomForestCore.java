@@ -0,0 +1,124 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Random forest, that is too big for the arrays of a single
+ * {@link CpuRandomForestCore}. The trees are split into several shards, each
+ * of them is a {@link CpuRandomForestCore}.
+ * <p>
+ * The shards contain consecutive runs of the trees ordered by height, and
+ * accumulate their leaf probabilities into the same buffer, one after the
+ * other. The class probabilities are therefore bit-identical to a single
+ * {@link CpuRandomForestCore}.
+ */
+class ShardedRandomForestCore implements CpuRandomForestEngine {
+
+	/**
+	 * Maximal size of the arrays of a shard, same as the maximal array size
+	 * of the JVM.
+	 */
+	static final long MAX_SHARD_SIZE = Integer.MAX_VALUE - 8;
+
+	private final int numClasses;
+
+	private final List<CpuRandomForestCore> shards;
+
+	ShardedRandomForestCore(final List<CpuRandomForestCore> shards) {
+		if (shards.isEmpty())
+			throw new IllegalArgumentException("At least one shard is required.");
+		this.numClasses = shards.get(0).numberOfClasses();
+		this.shards = shards;
+	}
+
+	/**
+	 * Returns a {@link CpuRandomForestCore} if the forest fits into one, a
+	 * {@link ShardedRandomForestCore} otherwise.
+	 */
+	static CpuRandomForestEngine flatten(final TransparentRandomForest forest) {
+		final List<CpuRandomForestCore> shards = split(forest, MAX_SHARD_SIZE);
+		return shards.size() == 1 ? shards.get(0) : new ShardedRandomForestCore(shards);
+	}
+
+	/**
+	 * Splits the forest into {@link CpuRandomForestCore}s, whose arrays don't
+	 * exceed the given size.
+	 *
+	 * @throws IllegalArgumentException if a single tree exceeds the given size.
+	 */
+	static List<CpuRandomForestCore> split(final TransparentRandomForest forest,
+		final long maxShardSize)
+	{
+		final int numClasses = forest.numberOfClasses();
+		final List<TransparentRandomTree> trees = SortedTrees.sortedByHeight(forest);
+		final List<CpuRandomForestCore> shards = new ArrayList<>();
+		List<TransparentRandomTree> shard = new ArrayList<>();
+		final long[] shardSize = new long[3];
+		for (final TransparentRandomTree tree : trees) {
+			final long[] size = CpuRandomForestCore.storageSize(tree, numClasses);
+			if (!fits(size, new long[3], maxShardSize))
+				throw new IllegalArgumentException("A tree of the random forest is too big to be " +
+					"flattened.");
+			if (!fits(size, shardSize, maxShardSize)) {
+				shards.add(new CpuRandomForestCore(new TransparentRandomForest(shard)));
+				shard = new ArrayList<>();
+				shardSize[0] = shardSize[1] = shardSize[2] = 0;
+			}
+			shard.add(tree);
+			for (int i = 0; i < 3; i++)
+				shardSize[i] += size[i];
+		}
+		if (!shard.isEmpty() || shards.isEmpty())
+			shards.add(new CpuRandomForestCore(new TransparentRandomForest(shard)));
+		return shards;
+	}
+
+	private static boolean fits(final long[] size, final long[] shardSize,
+		final long maxShardSize)
+	{
+		for (int i = 0; i < 3; i++)
+			if (shardSize[i] + size[i] > maxShardSize)
+				return false;
+		return true;
+	}
+
+	List<CpuRandomForestCore> shards() {
+		return Collections.unmodifiableList(shards);
+	}
+
+	@Override
+	public int numberOfClasses() {
+		return numClasses;
+	}
+
+	@Override
+	public void distributionForInstance(final float[] instance, final float[] distribution) {
+		distributionForInstances(instance, 0, instance.length, 1, distribution);
+	}
+
+	@Override
+	public void distributionForInstances(final float[] instances, final int instancesOffset,
+		final int instanceStride, final int numInstances, final float[] distributions)
+	{
+		Arrays.fill(distributions, 0, numInstances * numClasses, 0);
+		for (final CpuRandomForestCore shard : shards)
+			shard.addDistributionForInstances(instances, instancesOffset, instanceStride,
+				numInstances, distributions);
+		for (int i = 0; i < numInstances; i++)
+			CpuRandomForestCore.normalize(distributions, i * numClasses, numClasses);
+	}
+
+	/**
+	 * Reconstructs the trees of all shards, see
+	 * {@link CpuRandomForestCore#toTransparentRandomForest()}.
+	 */
+	TransparentRandomForest toTransparentRandomForest() {
+		final List<TransparentRandomTree> trees = new ArrayList<>();
+		for (final CpuRandomForestCore shard : shards)
+			trees.addAll(shard.toTransparentRandomForest().trees());
+		return new TransparentRandomForest(Collections.unmodifiableList(trees));
+	}
+}
@@ -0,0 +1,125 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The trees of a random forest, in the order in which all CPU engines evaluate
+ * them: sorted by height, like in {@link CpuRandomForestCore}. Trees that are
+ * a single leaf don't need to be evaluated, their class probabilities are
+ * added to the prior. Accumulating the leaf probabilities in the same order
+ * makes the results of the engines bit-identical.
+ */
+class SortedTrees {
+
+	private final List<TransparentRandomTree> leafTrees = new ArrayList<>();
+
+	private final List<TransparentRandomTree> nonLeafTrees = new ArrayList<>();
+
+	SortedTrees(final TransparentRandomForest forest) {
+		for (final TransparentRandomTree tree : sortedByHeight(forest))
+			(tree.isLeaf() ? leafTrees : nonLeafTrees).add(tree);
+	}
+
+	/**
+	 * Returns all trees of the forest, sorted by height.
+	 */
+	static List<TransparentRandomTree> sortedByHeight(final TransparentRandomForest forest) {
+		return forest.trees().stream()
+			.sorted(Comparator.comparingInt(TransparentRandomTree::height))
+			.collect(Collectors.toList());
+	}
+
+	/**
+	 * Returns the trees, that consist of a single leaf.
+	 */
+	List<TransparentRandomTree> leafTrees() {
+		return leafTrees;
+	}
+
+	/**
+	 * Returns the trees, that need to be evaluated, sorted by height.
+	 */
+	List<TransparentRandomTree> nonLeafTrees() {
+		return nonLeafTrees;
+	}
+
+	/**
+	 * Returns the sum of the class probabilities of the {@link #leafTrees()}.
+	 */
+	float[] prior(final int numClasses) {
+		final float[] prior = new float[numClasses];
+		for (final TransparentRandomTree tree : leafTrees)
+			for (int i = 0; i < numClasses; ++i)
+				prior[i] += (float) tree.classProbabilities()[i];
+		return prior;
+	}
+
+	/**
+	 * Returns the number of nodes, that are not leafs, in the
+	 * {@link #nonLeafTrees()}.
+	 */
+	int numberOfNodes() {
+		return nonLeafTrees.stream().mapToInt(tree -> tree.numberOfNodes() - tree
+			.numberOfLeafs()).sum();
+	}
+
+	/**
+	 * Returns the number of leafs in the {@link #nonLeafTrees()}.
+	 */
+	int numberOfLeafs() {
+		return nonLeafTrees.stream().mapToInt(TransparentRandomTree::numberOfLeafs).sum();
+	}
+
+	/**
+	 * Numbers the nodes and leafs of the {@link #nonLeafTrees()}, each tree in
+	 * pre order, and stores how they are linked. The children of node i are
+	 * stored at children[2 * i] (smaller) and children[2 * i + 1] (bigger).
+	 * Leafs are stored as negative numbers: leafIndex + Integer.MIN_VALUE.
+	 *
+	 * @param treeRoots Output, index of the root node of each tree.
+	 * @param children Output, length {@code 2 * numberOfNodes()}.
+	 * @param nodeWriter Called with the index of each node, that is not a leaf.
+	 * @param leafWriter Called with the index of each leaf.
+	 */
+	void writeNodes(final int[] treeRoots, final int[] children, final NodeWriter nodeWriter,
+		final NodeWriter leafWriter)
+	{
+		final int[] counts = new int[2]; // number of nodes and leafs written
+		for (int t = 0; t < nonLeafTrees.size(); t++) {
+			treeRoots[t] = counts[0];
+			write(nonLeafTrees.get(t), counts, children, nodeWriter, leafWriter);
+		}
+	}
+
+	/**
+	 * Writes the given sub tree in pre order.
+	 *
+	 * @param counts counts[0] is the number of nodes, counts[1] the number of leafs
+	 *          written so far. Both are incremented by this method.
+	 * @return the value stored in children[] to reference the sub tree.
+	 */
+	private static int write(final TransparentRandomTree node, final int[] counts,
+		final int[] children, final NodeWriter nodeWriter, final NodeWriter leafWriter)
+	{
+		if (node.isLeaf()) {
+			final int leaf = counts[1]++;
+			leafWriter.write(leaf, node);
+			return leaf + Integer.MIN_VALUE;
+		}
+		final int index = counts[0]++;
+		nodeWriter.write(index, node);
+		children[2 * index] = write(node.smallerChild(), counts, children, nodeWriter,
+			leafWriter);
+		children[2 * index + 1] = write(node.biggerChild(), counts, children, nodeWriter,
+			leafWriter);
+		return index;
+	}
+
+	interface NodeWriter {
+
+		void write(int index, TransparentRandomTree node);
+	}
+}
@@ -0,0 +1,68 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+/**
+ * Training data of the {@link RandomForestTrainer}. The feature values are
+ * stored column wise, i.e. all values of one feature are read at once.
+ * Implementations must allow concurrent reads.
+ */
+public interface TrainingMatrix {
+
+	int numberOfFeatures();
+
+	int numberOfSamples();
+
+	int numberOfClasses();
+
+	/**
+	 * Returns the class index of the given sample.
+	 */
+	int classIndex(int sample);
+
+	/**
+	 * Reads the values of one feature for a list of samples. Writes the value of
+	 * sample {@code samples[i]} to {@code values[i - from]}, for all
+	 * {@code from <= i < to}.
+	 */
+	void gather(int feature, int[] samples, int from, int to, float[] values);
+
+	/**
+	 * Returns a {@link TrainingMatrix} that wraps around the given arrays.
+	 *
+	 * @param columns Feature values, {@code columns[feature][sample]}.
+	 * @param classIndices Class index of each sample.
+	 */
+	static TrainingMatrix of(float[][] columns, int[] classIndices, int numberOfClasses) {
+		for (float[] column : columns)
+			if (column.length != classIndices.length)
+				throw new IllegalArgumentException("All columns must have the same length.");
+		return new TrainingMatrix() {
+
+			@Override
+			public int numberOfFeatures() {
+				return columns.length;
+			}
+
+			@Override
+			public int numberOfSamples() {
+				return classIndices.length;
+			}
+
+			@Override
+			public int numberOfClasses() {
+				return numberOfClasses;
+			}
+
+			@Override
+			public int classIndex(int sample) {
+				return classIndices[sample];
+			}
+
+			@Override
+			public void gather(int feature, int[] samples, int from, int to, float[] values) {
+				float[] column = columns[feature];
+				for (int i = from; i < to; i++)
+					values[i - from] = column[samples[i]];
+			}
+		};
+	}
+}
@@ -5,8 +5,12 @@ import hr.irb.fastRandomForest.FastRandomForest;
 import net.imglib2.trainable_segmentation.utils.ArrayUtils;
 import weka.core.Instance;
 
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -17,7 +21,9 @@ import java.util.stream.Stream;
  * Java reflection is used to extract the parameter from the weka fast random
  * forest.
  */
-public class TransparentRandomForest {
+public class TransparentRandomForest implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	private final List<TransparentRandomTree> trees;
 
@@ -51,6 +57,40 @@ public class TransparentRandomForest {
 		return trees.isEmpty() ? 0 : trees.get(0).numberOfClasses();
 	}
 
+	/**
+	 * Returns the sorted indices of all attributes, that are used by at least one
+	 * node of the forest.
+	 */
+	public int[] usedAttributes() {
+		BitSet bits = new BitSet();
+		for (TransparentRandomTree tree : trees)
+			tree.usedAttributes(bits);
+		return bits.stream().toArray();
+	}
+
+	/**
+	 * Returns a forest that expects only the attributes listed in
+	 * {@code attributes}. Attribute {@code attributes[i]} of the original forest
+	 * becomes attribute {@code i} of the returned forest. All attributes used by
+	 * the forest must be listed, see {@link #usedAttributes()}.
+	 */
+	public TransparentRandomForest selectAttributes(int[] attributes) {
+		int length = attributes.length == 0 ? 0 : Arrays.stream(attributes).max().getAsInt() + 1;
+		int[] mapping = new int[length];
+		Arrays.fill(mapping, -1);
+		for (int i = 0; i < attributes.length; i++)
+			mapping[attributes[i]] = i;
+		IntUnaryOperator operator = attribute -> {
+			int index = attribute < mapping.length ? mapping[attribute] : -1;
+			if (index < 0)
+				throw new IllegalArgumentException("Attribute " + attribute +
+					" is used by the random forest, but missing in the list of selected attributes.");
+			return index;
+		};
+		return new TransparentRandomForest(trees.stream().map(tree -> tree.mapAttributes(operator))
+			.collect(Collectors.toList()));
+	}
+
 	public double[] distributionForInstance(Instance instance, int numberOfClasses) {
 		double[] result = new double[numberOfClasses];
 		for (TransparentRandomTree tree : trees)
@@ -3,6 +3,10 @@ package net.imglib2.trainable_segmentation.random_forest;
 
 import weka.core.Instance;
 
+import java.io.Serializable;
+import java.util.BitSet;
+import java.util.function.IntUnaryOperator;
+
 /**
  * Wraps around a hr.irb.fastRandomForest.FastRandomTree and exposes all the
  * parameters (threshold, children and classification probabilities).
@@ -10,7 +14,9 @@ import weka.core.Instance;
  * Java reflection is used to extract the parameter from the weka fast random
  * forest.
  */
-public class TransparentRandomTree {
+public class TransparentRandomTree implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	private final int attribute;
 
@@ -106,6 +112,28 @@ public class TransparentRandomTree {
 		}
 	}
 
+	/**
+	 * Returns a copy of this tree, where the attribute index of every node is
+	 * replaced by {@code mapping.applyAsInt(attributeIndex)}.
+	 */
+	public TransparentRandomTree mapAttributes(IntUnaryOperator mapping) {
+		if (isLeaf())
+			return this;
+		return node(mapping.applyAsInt(attribute), threshold, smallerChild.mapAttributes(mapping),
+			biggerChild.mapAttributes(mapping));
+	}
+
+	/**
+	 * Sets the bits of all attribute indices that are used by the tree.
+	 */
+	public void usedAttributes(BitSet result) {
+		if (isLeaf())
+			return;
+		result.set(attribute);
+		smallerChild.usedAttributes(result);
+		biggerChild.usedAttributes(result);
+	}
+
 	/**
 	 * Returns true if the tree is only one leafnode.
 	 */
@@ -0,0 +1,307 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates the byte code of a class, that implements
+ * {@link CompiledTreeGroup} for a given group of trees.
+ * <p>
+ * Each tree is translated into nested if / else statements with constant
+ * attribute indices and thresholds. For example:
+ *
+ * <pre>
+ * {@code
+ * if (instances[instanceBase + 3] < 0.25f)
+ *     leafs[7] = 42;
+ * else if (instances[instanceBase + 1] < 0.5f)
+ *     leafs[7] = 45;
+ * else
+ *     leafs[7] = 48;
+ * }
+ * </pre>
+ *
+ * The class file version is 49 (Java 5), which doesn't require stack map frames.
+ * The size of a method is limited to 64 KiB by the JVM. And branch offsets are
+ * limited to 32 KiB. But HotSpot doesn't JIT compile methods bigger than
+ * {@link #HUGE_METHOD_LIMIT} bytes, they would run in the interpreter.
+ * {@link #MAX_CODE_SIZE} is therefore chosen below this much lower limit.
+ */
+class TreeGroupClassWriter {
+
+	/**
+	 * Default value of the HotSpot option -XX:HugeMethodLimit.
+	 */
+	static final int HUGE_METHOD_LIMIT = 8000;
+
+	/**
+	 * Upper bound for the size of the generated method, including the final
+	 * return instruction.
+	 */
+	static final int MAX_CODE_SIZE = 7900;
+
+	private static final String INTERFACE_NAME = CompiledTreeGroup.class.getName().replace('.',
+		'/');
+
+	private static final int ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ALOAD_3 = 0x2d, ILOAD_2 = 0x1c,
+			IADD = 0x60, FALOAD = 0x30, IASTORE = 0x4f, FCMPG = 0x96, IFGE = 0x9c, GOTO = 0xa7,
+			RETURN = 0xb1, INVOKESPECIAL = 0xb7, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+			ICONST_0 = 0x03;
+
+	private final ConstantPool constants = new ConstantPool();
+
+	private final Code code = new Code();
+
+	private final List<Integer> treeEnds = new ArrayList<>();
+
+	/**
+	 * Returns an upper bound for the number of bytes of byte code, required to
+	 * evaluate the given tree.
+	 */
+	static int estimateCodeSize(TransparentRandomTree tree) {
+		int numLeafs = tree.numberOfLeafs();
+		int numNodes = tree.numberOfNodes() - numLeafs;
+		return 14 * numNodes + 11 * numLeafs;
+	}
+
+	/**
+	 * Adds the byte code for a tree.
+	 *
+	 * @param tree The tree.
+	 * @param treeIndex Index of the tree in the forest.
+	 * @param leafOffsets Offsets to be written for the leafs of the tree, in depth
+	 *          first order.
+	 */
+	void addTree(TransparentRandomTree tree, int treeIndex, int[] leafOffsets) {
+		treeEnds.clear();
+		writeNode(tree, treeIndex, leafOffsets, new int[1]);
+		int end = code.size();
+		for (int position : treeEnds)
+			code.patchBranch(position, end);
+	}
+
+	private void writeNode(TransparentRandomTree node, int treeIndex, int[] leafOffsets,
+		int[] nextLeaf)
+	{
+		if (node.isLeaf()) {
+			// leafs[treeIndex] = leafOffset;
+			code.u1(ALOAD_3);
+			pushInt(treeIndex);
+			pushInt(leafOffsets[nextLeaf[0]++]);
+			code.u1(IASTORE);
+			treeEnds.add(code.size());
+			code.u1(GOTO);
+			code.u2(0);
+		}
+		else {
+			// if (instances[instanceBase + attribute] < threshold) smaller else bigger
+			// NB: fcmpg returns 1 for NaN, that's consistent with the "<" operator.
+			code.u1(ALOAD_1);
+			code.u1(ILOAD_2);
+			pushInt(node.attributeIndex());
+			code.u1(IADD);
+			code.u1(FALOAD);
+			code.u1(LDC_W);
+			code.u2(constants.floatConstant((float) node.threshold()));
+			code.u1(FCMPG);
+			int branch = code.size();
+			code.u1(IFGE);
+			code.u2(0);
+			writeNode(node.smallerChild(), treeIndex, leafOffsets, nextLeaf);
+			code.patchBranch(branch, code.size());
+			writeNode(node.biggerChild(), treeIndex, leafOffsets, nextLeaf);
+		}
+	}
+
+	private void pushInt(int value) {
+		if (value >= -1 && value <= 5)
+			code.u1(ICONST_0 + value);
+		else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			code.u1(BIPUSH);
+			code.u1(value);
+		}
+		else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			code.u1(SIPUSH);
+			code.u2(value);
+		}
+		else {
+			code.u1(LDC_W);
+			code.u2(constants.intConstant(value));
+		}
+	}
+
+	int codeSize() {
+		return code.size();
+	}
+
+	/**
+	 * Returns the class file for a class with the given name. The class has a
+	 * public default constructor and implements {@link CompiledTreeGroup}.
+	 */
+	byte[] toClassFile(String className) {
+		int thisClass = constants.classConstant(className.replace('.', '/'));
+		int superClass = constants.classConstant("java/lang/Object");
+		int interfaceClass = constants.classConstant(INTERFACE_NAME);
+		int objectInit = constants.methodConstant(superClass, "<init>", "()V");
+		int codeName = constants.utf8("Code");
+		int initName = constants.utf8("<init>");
+		int initDescriptor = constants.utf8("()V");
+		int evaluateName = constants.utf8("evaluate");
+		int evaluateDescriptor = constants.utf8("([FI[I)V");
+		Code init = new Code();
+		init.u1(ALOAD_0);
+		init.u1(INVOKESPECIAL);
+		init.u2(objectInit);
+		init.u1(RETURN);
+		code.u1(RETURN);
+		try (ByteArrayOutputStream bytes = new ByteArrayOutputStream()) {
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0); // minor version
+			out.writeShort(49); // major version
+			constants.write(out);
+			out.writeShort(0x0031); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(interfaceClass);
+			out.writeShort(0); // fields
+			out.writeShort(2); // methods
+			writeMethod(out, initName, initDescriptor, codeName, 1, 1, init);
+			writeMethod(out, evaluateName, evaluateDescriptor, codeName, 4, 4, code);
+			out.writeShort(0); // attributes
+			out.flush();
+			return bytes.toByteArray();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeName,
+		int maxStack, int maxLocals, Code code) throws IOException
+	{
+		out.writeShort(0x0001); // ACC_PUBLIC
+		out.writeShort(name);
+		out.writeShort(descriptor);
+		out.writeShort(1); // attributes
+		out.writeShort(codeName);
+		out.writeInt(12 + code.size());
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.size());
+		code.writeTo(out);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // attributes
+	}
+
+	private static class Code extends ByteArrayOutputStream {
+
+		void u1(int value) {
+			write(value);
+		}
+
+		void u2(int value) {
+			write(value >> 8);
+			write(value);
+		}
+
+		/**
+		 * Sets the offset of the branch instruction at the given position, such that
+		 * it jumps to the given target.
+		 */
+		void patchBranch(int position, int target) {
+			int offset = target - position;
+			buf[position + 1] = (byte) (offset >> 8);
+			buf[position + 2] = (byte) offset;
+		}
+	}
+
+	private static class ConstantPool {
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		private final DataOutputStream out = new DataOutputStream(bytes);
+
+		private final Map<Object, Integer> indices = new HashMap<>();
+
+		private int count = 1;
+
+		int utf8(String value) {
+			return entry("utf8:" + value, () -> {
+				out.writeByte(1);
+				out.writeUTF(value);
+			});
+		}
+
+		int intConstant(int value) {
+			return entry("int:" + value, () -> {
+				out.writeByte(3);
+				out.writeInt(value);
+			});
+		}
+
+		int floatConstant(float value) {
+			int bits = Float.floatToRawIntBits(value);
+			return entry("float:" + bits, () -> {
+				out.writeByte(4);
+				out.writeInt(bits);
+			});
+		}
+
+		int classConstant(String internalName) {
+			int name = utf8(internalName);
+			return entry("class:" + internalName, () -> {
+				out.writeByte(7);
+				out.writeShort(name);
+			});
+		}
+
+		int methodConstant(int clazz, String name, String descriptor) {
+			int nameIndex = utf8(name);
+			int descriptorIndex = utf8(descriptor);
+			int nameAndType = entry("nameAndType:" + name + descriptor, () -> {
+				out.writeByte(12);
+				out.writeShort(nameIndex);
+				out.writeShort(descriptorIndex);
+			});
+			return entry("method:" + clazz + ":" + nameAndType, () -> {
+				out.writeByte(10);
+				out.writeShort(clazz);
+				out.writeShort(nameAndType);
+			});
+		}
+
+		private int entry(Object key, EntryWriter writer) {
+			Integer index = indices.get(key);
+			if (index != null)
+				return index;
+			if (count >= 0xffff)
+				throw new IllegalStateException("Too many constants.");
+			try {
+				writer.write();
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			indices.put(key, count);
+			return count++;
+		}
+
+		void write(DataOutputStream output) throws IOException {
+			out.flush();
+			output.writeShort(count);
+			bytes.writeTo(output);
+		}
+
+		private interface EntryWriter {
+
+			void write() throws IOException;
+		}
+	}
+}
@@ -31,6 +31,23 @@ public class ArrayUtils {
 		return maxIndex;
 	}
 
+	/**
+	 * Returns the index of the maximum among {@code values[offset]} to
+	 * {@code values[offset + length - 1]}, relative to offset. The first index is
+	 * returned in case of ties.
+	 */
+	public static int findMax(float[] values, int offset, int length) {
+		int maxIndex = 0;
+		float max = values[offset];
+		for (int i = 1; i < length; i++) {
+			if (max < values[offset + i]) {
+				maxIndex = i;
+				max = values[offset + i];
+			}
+		}
+		return maxIndex;
+	}
+
 	public static double[] add(double[] a, double[] b) {
 		for (int i = 0; i < a.length; i++)
 			b[i] += a[i];
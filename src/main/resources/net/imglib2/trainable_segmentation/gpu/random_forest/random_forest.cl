@@ -51,8 +51,8 @@ __kernel void random_forest
     sum += results[i];
   }
 
-  // normalize distribution
+  // normalize distribution, and scale it to the range of integer output types
   for(int i = 0; i < NUMBER_OF_CLASSES; i++) {
-    PIXEL(dst, x + i * dst_channel_skip, y, z) = results[i] / sum;
+    PIXEL(dst, x + i * dst_channel_skip, y, z) = results[i] / sum * OUTPUT_SCALE + OUTPUT_ROUNDING;
   }
 }
@@ -0,0 +1,38 @@
+#define PIXEL(image, x, y, z) (image[((z) * GET_IMAGE_HEIGHT(image) + (y)) * GET_IMAGE_WIDTH(image) + (x)])
+
+__kernel void statistics
+(
+  IMAGE_dst_TYPE dst,
+  IMAGE_src_TYPE src,
+  const int num_classes
+)
+{
+  const int x = get_global_id(0), y = get_global_id(1), z = get_global_id(2);
+  const int src_channel_skip = GET_IMAGE_WIDTH(src) * GET_IMAGE_HEIGHT(src) * GET_IMAGE_DEPTH(src);
+  const int dst_channel_skip = GET_IMAGE_WIDTH(dst) * GET_IMAGE_HEIGHT(dst) * GET_IMAGE_DEPTH(dst);
+
+  int maxIndex = 0;
+  float maxValue = PIXEL(src, x, y, z);
+  float secondValue = -INFINITY;
+  float entropy = 0;
+  for(int i = 0; i < num_classes; i++) {
+    float value = PIXEL(src, x + i * src_channel_skip, y, z);
+    if(value > 0)
+      entropy -= value * log(value);
+    if(i == 0)
+      continue;
+    bool bigger = value > maxValue;
+    secondValue = bigger ? maxValue : max(secondValue, value);
+    maxValue = bigger ? value : maxValue;
+    maxIndex = bigger ? i : maxIndex;
+  }
+
+  if(CLASS_INDEX_CHANNEL >= 0)
+    PIXEL(dst, x + CLASS_INDEX_CHANNEL * dst_channel_skip, y, z) = maxIndex;
+  if(MAX_PROBABILITY_CHANNEL >= 0)
+    PIXEL(dst, x + MAX_PROBABILITY_CHANNEL * dst_channel_skip, y, z) = maxValue;
+  if(MARGIN_CHANNEL >= 0)
+    PIXEL(dst, x + MARGIN_CHANNEL * dst_channel_skip, y, z) = num_classes < 2 ? maxValue : maxValue - secondValue;
+  if(ENTROPY_CHANNEL >= 0)
+    PIXEL(dst, x + ENTROPY_CHANNEL * dst_channel_skip, y, z) = num_classes < 2 ? 0 : entropy / log((float) num_classes);
+}
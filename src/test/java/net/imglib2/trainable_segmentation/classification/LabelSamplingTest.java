@@ -0,0 +1,97 @@
+package net.imglib2.trainable_segmentation.classification;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelRegion;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.type.numeric.integer.IntType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link LabelSampling}.
+ */
+public class LabelSamplingTest {
+
+	@Test
+	public void testBalance() {
+		assertArrayEquals(new int[] { 10, 45, 45 }, LabelSampling.balance(new int[] { 10, 1000,
+			50 }, 100));
+		assertArrayEquals(new int[] { 10, 20, 30 }, LabelSampling.balance(new int[] { 10, 20, 30 },
+			100));
+		assertArrayEquals(new int[] { 0, 50, 50 }, LabelSampling.balance(new int[] { 0, 70, 80 },
+			100));
+	}
+
+	@Test
+	public void testSample() {
+		List<LabelRegion<String>> regions = regions();
+		List<long[]> positions = new LabelSampling(300, 500, 42).sample(regions);
+		assertEquals(3, positions.size());
+		assertEquals(2 * 50, positions.get(0).length);
+		assertEquals(2 * 225, positions.get(1).length);
+		assertEquals(2 * 225, positions.get(2).length);
+		for (int c = 0; c < regions.size(); c++)
+			assertSubsequence(regions.get(c), positions.get(c));
+	}
+
+	@Test
+	public void testSeed() {
+		List<LabelRegion<String>> regions = regions();
+		long[] a = new LabelSampling(100, 1000, 42).sample(regions).get(1);
+		long[] b = new LabelSampling(100, 1000, 42).sample(regions).get(1);
+		long[] c = new LabelSampling(100, 1000, 43).sample(regions).get(1);
+		assertArrayEquals(a, b);
+		assertNotEquals(Arrays.toString(a), Arrays.toString(c));
+	}
+
+	/**
+	 * Checks that all the positions belong to the region, and are in the order
+	 * of the region's cursor.
+	 */
+	private static void assertSubsequence(LabelRegion<?> region, long[] positions) {
+		Cursor<Void> cursor = region.cursor();
+		long[] position = new long[2];
+		int i = 0;
+		while (cursor.hasNext() && i < positions.length) {
+			cursor.fwd();
+			cursor.localize(position);
+			if (position[0] == positions[i] && position[1] == positions[i + 1])
+				i += 2;
+		}
+		assertTrue(i == positions.length);
+	}
+
+	/**
+	 * Three classes, with 50, 1000 and 4000 labeled pixels.
+	 */
+	private static List<LabelRegion<String>> regions() {
+		ImgLabeling<String, IntType> labeling = new ImgLabeling<>(ArrayImgs.ints(100, 100));
+		RandomAccess<LabelingType<String>> ra = labeling.randomAccess();
+		int[] sizes = { 50, 1000, 4000 };
+		int offset = 0;
+		for (int c = 0; c < sizes.length; c++) {
+			for (int i = offset; i < offset + sizes[c]; i++) {
+				ra.setPosition(new long[] { i % 100, i / 100 });
+				ra.get().add("class" + c);
+			}
+			offset += sizes[c];
+		}
+		LabelRegions<String> regions = new LabelRegions<>(labeling);
+		List<LabelRegion<String>> result = new ArrayList<>();
+		for (int c = 0; c < sizes.length; c++)
+			result.add(regions.getLabelRegion("class" + c));
+		return result;
+	}
+}
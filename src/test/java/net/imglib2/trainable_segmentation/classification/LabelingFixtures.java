@@ -0,0 +1,58 @@
+package net.imglib2.trainable_segmentation.classification;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random images and labelings made of horizontal lines, shared by the tests of
+ * the sparse feature extraction and the training session.
+ */
+class LabelingFixtures {
+
+	private LabelingFixtures() {
+		// prevent from being instantiated.
+	}
+
+	static Img<FloatType> randomImage(long... dimensions) {
+		Img<FloatType> image = ArrayImgs.floats(dimensions);
+		Random random = new Random(42);
+		image.forEach(pixel -> pixel.setReal(random.nextFloat()));
+		return image;
+	}
+
+	/**
+	 * Returns {@code x, y, classIndex, length} of a horizontal line, that starts
+	 * at pixel (x, y), see {@link #labeling}.
+	 */
+	static int[] line(int x, int y, int classIndex, int length) {
+		return new int[] { x, y, classIndex, length };
+	}
+
+	/**
+	 * Returns a two dimensional labeling of the image, where the pixels of each
+	 * line are labeled with the class name of the line.
+	 */
+	static LabelRegions<String> labeling(Interval image, List<String> classNames,
+		int[]... lines)
+	{
+		ImgLabeling<String, IntType> labeling = new ImgLabeling<>(ArrayImgs.ints(image.dimension(0),
+			image.dimension(1)));
+		RandomAccess<LabelingType<String>> ra = labeling.randomAccess();
+		for (int[] line : lines)
+			for (int x = 0; x < line[3]; x++) {
+				ra.setPosition(new long[] { line[0] + x, line[1] });
+				ra.get().add(classNames.get(line[2]));
+			}
+		return new LabelRegions<>(labeling);
+	}
+}
@@ -3,15 +3,20 @@ package net.imglib2.trainable_segmentation.classification;
 
 import com.google.gson.JsonElement;
 import io.scif.img.ImgSaver;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.roi.labeling.LabelingType;
 import net.imglib2.test.ImgLib2Assert;
 import net.imglib2.trainable_segmentation.RevampUtils;
 import net.imglib2.trainable_segmention.pixel_feature.filter.gauss.GaussFeature;
+import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
 import net.imglib2.trainable_segmentation.pixel_feature.settings.ChannelSetting;
 import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSetting;
 import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSettings;
@@ -19,27 +24,37 @@ import net.imglib2.trainable_segmentation.pixel_feature.settings.GlobalSettings;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.GroupedFeatures;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.SingleFeatures;
 import net.imglib2.trainable_segmentation.Utils;
+import net.imglib2.trainable_segmentation.random_forest.NativeRandomForest;
+import net.imglib2.trainable_segmentation.random_forest.PredictionStatistic;
 import net.imglib2.trainable_segmentation.utils.CpuGpuRunner;
 import net.imglib2.trainable_segmentation.utils.SingletonContext;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.scijava.Context;
+import preview.net.imglib2.loops.LoopBuilder;
+import weka.classifiers.Classifier;
 import weka.classifiers.meta.RandomCommittee;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.Random;
+import java.util.function.LongPredicate;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeFalse;
 
 /**
@@ -80,14 +95,160 @@ public class SegmenterTest {
 		ImgLib2Assert.assertImageEqualsRealType(expectedProbabilityMap, probabilityMap, 0.001);
 	}
 
+	@Test
+	public void testFusedTiles() {
+		assumeFalse(useGpu);
+		Segmenter segmenter = trainClassifier();
+		segmenter.setFusedTileSize(17);
+		RandomAccessibleInterval<? extends IntegerType<?>> result = segmenter.segment(img);
+		checkExpected(result, segmenter.classNames());
+		RandomAccessibleInterval<? extends RealType<?>> probabilityMap = segmenter.predict(img);
+		ImgLib2Assert.assertImageEqualsRealType(expectedProbabilityMap, probabilityMap, 0.001);
+	}
+
+	@Test
+	public void testPredictStatistics() {
+		Segmenter segmenter = trainClassifier();
+		segmenter.setUseGpu(useGpu);
+		PredictionStatistic[] statistics = PredictionStatistic.values();
+		RandomAccessibleInterval<FloatType> result = segmenter.predictStatistics(img, statistics);
+		RandomAccessibleInterval<FloatType> probabilityMap = Cast.unchecked(segmenter.predict(img));
+		int numberOfClasses = segmenter.classNames().size();
+		Img<FloatType> expected = ArrayImgs.floats(Intervals.dimensionsAsLongArray(result));
+		LoopBuilder.setImages(Views.collapse(probabilityMap), Views.collapse(expected)).forEachPixel(
+			(probabilities, values) -> {
+				float[] distribution = new float[numberOfClasses];
+				for (int k = 0; k < numberOfClasses; k++)
+					distribution[k] = probabilities.get(k).getRealFloat();
+				for (int s = 0; s < statistics.length; s++)
+					values.get(s).setReal(statistics[s].compute(distribution, 0, numberOfClasses));
+			});
+		ImgLib2Assert.assertImageEqualsRealType(expected, result, 0.001);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPredictDuplicateStatistics() {
+		Segmenter segmenter = trainClassifier();
+		segmenter.setUseGpu(useGpu);
+		segmenter.predictStatistics(img, PredictionStatistic.MARGIN, PredictionStatistic.MARGIN);
+	}
+
+	@Test
+	public void testPredictUnsignedByte() {
+		Segmenter segmenter = trainClassifier();
+		segmenter.setUseGpu(useGpu);
+		RandomAccessibleInterval<UnsignedByteType> result = segmenter.predict(img,
+			new UnsignedByteType());
+		RandomAccessibleInterval<FloatType> probabilityMap = Cast.unchecked(segmenter.predict(img));
+		Img<FloatType> expected = ArrayImgs.floats(Intervals.dimensionsAsLongArray(result));
+		LoopBuilder.setImages(probabilityMap, expected).forEachPixel((p, e) -> e.setReal(p
+			.getRealFloat() * 255));
+		ImgLib2Assert.assertImageEqualsRealType(expected, result, 1);
+	}
+
+	@Test
+	public void testPredictDoubleType() {
+		Segmenter segmenter = trainClassifier();
+		segmenter.setUseGpu(useGpu);
+		RandomAccessibleInterval<DoubleType> result = segmenter.predict(img, new DoubleType());
+		ImgLib2Assert.assertImageEqualsRealType(expectedProbabilityMap, result, 0.001);
+	}
+
+	@Test
+	public void testNativeRandomForest() {
+		Segmenter segmenter = trainClassifier(Trainer.initNativeRandomForest());
+		segmenter.setUseGpu(useGpu);
+		assertTrue(accuracy(segmenter) > 0.98);
+	}
+
+	@Test
+	public void testIncrementalTraining() {
+		Segmenter segmenter = trainClassifier(Trainer.initNativeRandomForest());
+		Segmenter incremental = new Segmenter(context, segmenter.classNames(), segmenter
+			.settings(), Trainer.initNativeRandomForest());
+		incremental.setUseGpu(useGpu);
+		// NB: The first incremental training trains the whole forest, the second
+		// only gets the labels of the right half.
+		long half = img.dimension(0) / 2;
+		Trainer.incremental(incremental, 50).trainLabeledImage(img, loadLabeling(
+			"nucleiLabeling.tif", x -> x < half));
+		Trainer.incremental(incremental, 50).trainLabeledImage(img, loadLabeling(
+			"nucleiLabeling.tif", x -> x >= half));
+		assertTrue(accuracy(incremental) > 0.95);
+		// NB: A loaded segmenter has no samples, and is trained from scratch.
+		Segmenter loaded = Segmenter.fromJson(context, incremental.toJsonTree());
+		loaded.setUseGpu(useGpu);
+		Trainer.incremental(loaded, 50).trainLabeledImage(img, labeling);
+		assertTrue(accuracy(loaded) > 0.98);
+	}
+
+	@Test
+	public void testMostImportantFeaturesTwoChannels() {
+		// NB: Channel 1 is noise, channel 2 is the nuclei image.
+		Img<FloatType> noise = ArrayImgs.floats(Intervals.dimensionsAsLongArray(img));
+		Random random = new Random(42);
+		noise.forEach(pixel -> pixel.setReal(random.nextFloat() * 255));
+		RandomAccessibleInterval<FloatType> image = Views.stack(noise, img);
+		GlobalSettings globals = GlobalSettings.default2d()
+			.channels(ChannelSetting.multiple(2))
+			.sigmas(Arrays.asList(1.0, 4.0, 8.0))
+			.build();
+		FeatureSettings featureSettings = new FeatureSettings(globals, SingleFeatures.identity(),
+			GroupedFeatures.gauss(), GroupedFeatures.differenceOfGaussians());
+		NativeRandomForest classifier = Trainer.initNativeRandomForest();
+		classifier.setComputeOutOfBagStatistics(true);
+		Segmenter segmenter = Trainer.train(context, image, labeling, featureSettings, classifier);
+		// NB: The reduced settings must calculate the most important features, of both channels.
+		int k = 3;
+		FeatureSettings reduced = segmenter.mostImportantFeatureSettings(k);
+		assertTrue(reduced.features().size() <= k);
+		List<String> labels = segmenter.features().attributeLabels();
+		List<String> reducedLabels = new FeatureCalculator(context, reduced).attributeLabels();
+		for (int feature : segmenter.outOfBagStatistics().mostImportantFeatures(k))
+			assertTrue(reducedLabels.contains(labels.get(feature)));
+		Segmenter retrained = Trainer.trainWithMostImportantFeatures(context, image, labeling,
+			segmenter, k);
+		retrained.setUseGpu(useGpu);
+		assertEquals(reduced, retrained.settings());
+		assertTrue(retrained.getClassifier() instanceof NativeRandomForest);
+		assertTrue(accuracy(retrained, image) > 0.95);
+	}
+
+	/**
+	 * Returns the fraction of pixels in "nucleiExpected.tif", that are
+	 * segmented correctly.
+	 */
+	private double accuracy(Segmenter segmenter) {
+		return accuracy(segmenter, img);
+	}
+
+	private double accuracy(Segmenter segmenter, RandomAccessibleInterval<?> image) {
+		RandomAccessibleInterval<? extends IntegerType<?>> result = segmenter.segment(image);
+		Img<UnsignedByteType> expected = ImageJFunctions.wrapByte(Utils.loadImage(
+			"nucleiExpected.tif"));
+		long[] counts = new long[2];
+		Views.interval(Views.pair(result, expected), expected).forEach(p -> {
+			int e = p.getB().get();
+			if (e == 0) return;
+			counts[0]++;
+			if (segmenter.classNames().get(p.getA().getInteger()).equals(Integer.toString(e)))
+				counts[1]++;
+		});
+		return (double) counts[1] / counts[0];
+	}
+
 	private Segmenter trainClassifier() {
+		return trainClassifier(Trainer.initRandomForest());
+	}
+
+	private Segmenter trainClassifier(Classifier classifier) {
 		GlobalSettings globals = GlobalSettings.default2d()
 			.channels(ChannelSetting.SINGLE)
 			.dimensions(img.numDimensions()).sigmas(Arrays.asList(1.0, 4.0, 8.0))
 			.build();
 		FeatureSettings featureSettings = new FeatureSettings(globals, SingleFeatures.identity(),
 			GroupedFeatures.gauss());
-		return Trainer.train(context, img, labeling, featureSettings);
+		return Trainer.train(context, img, labeling, featureSettings, classifier);
 	}
 
 	private void checkExpected(RandomAccessibleInterval<? extends IntegerType<?>> result,
@@ -116,6 +277,35 @@ public class SegmenterTest {
 		Utils.<IntegerType> assertImagesEqual(result, result2);
 	}
 
+	@Test
+	public void testStoreLoadNativeRandomForest() {
+		Segmenter segmenter = trainClassifier(Trainer.initNativeRandomForest());
+		Segmenter loaded = Segmenter.fromJson(context, segmenter.toJsonTree());
+		loaded.setUseGpu(useGpu);
+		assertTrue(loaded.getClassifier() instanceof NativeRandomForest);
+		RandomAccessibleInterval<? extends RealType<?>> expected = segmenter.predict(img);
+		RandomAccessibleInterval<? extends RealType<?>> actual = loaded.predict(img);
+		ImgLib2Assert.assertImageEqualsRealType(expected, actual, 0.001);
+	}
+
+	@Test
+	public void testSaveLoadBinary() throws IOException {
+		Segmenter segmenter = trainClassifier();
+		File file = File.createTempFile("segmenter", ".bin");
+		try {
+			segmenter.saveBinary(file.toPath());
+			Segmenter loaded = Segmenter.loadBinary(context, file.toPath());
+			loaded.setUseGpu(useGpu);
+			assertEquals(segmenter.classNames(), loaded.classNames());
+			assertEquals(segmenter.settings(), loaded.settings());
+			RandomAccessibleInterval<? extends RealType<?>> probabilityMap = loaded.predict(img);
+			ImgLib2Assert.assertImageEqualsRealType(expectedProbabilityMap, probabilityMap, 0.001);
+		}
+		finally {
+			file.delete();
+		}
+	}
+
 	@Ignore("Only fast random forest is supported")
 	@Test
 	public void testDifferentWekaClassifiers() {
@@ -129,13 +319,26 @@ public class SegmenterTest {
 	}
 
 	private static LabelRegions<String> loadLabeling(String file) {
+		return loadLabeling(file, x -> true);
+	}
+
+	/**
+	 * Loads the labeling, but only keeps the labels of pixels, whose x
+	 * coordinate is accepted by the filter.
+	 */
+	private static LabelRegions<String> loadLabeling(String file, LongPredicate xFilter) {
 		Img<? extends IntegerType<?>> img = ImageJFunctions.wrapByte(Utils.loadImage(file));
 		final ImgLabeling<String, IntType> labeling = new ImgLabeling<>(RevampUtils.createImage(img,
 			new IntType()));
-		Views.interval(Views.pair(img, labeling), labeling).forEach(p -> {
-			int value = p.getA().getInteger();
-			if (value != 0) p.getB().add(Integer.toString(value));
-		});
+		Cursor<? extends IntegerType<?>> cursor = img.localizingCursor();
+		RandomAccess<LabelingType<String>> ra = labeling.randomAccess();
+		while (cursor.hasNext()) {
+			int value = cursor.next().getInteger();
+			if (value == 0 || !xFilter.test(cursor.getLongPosition(0)))
+				continue;
+			ra.setPosition(cursor);
+			ra.get().add(Integer.toString(value));
+		}
 		return new LabelRegions<>(labeling);
 	}
 
@@ -0,0 +1,134 @@
+package net.imglib2.trainable_segmentation.classification;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.roi.labeling.LabelRegion;
+import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.GroupedFeatures;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.SingleFeatures;
+import net.imglib2.trainable_segmentation.utils.views.FastViews;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import net.imglib2.view.composite.Composite;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static net.imglib2.trainable_segmentation.classification.LabelingFixtures.labeling;
+import static net.imglib2.trainable_segmentation.classification.LabelingFixtures.line;
+import static net.imglib2.trainable_segmentation.classification.LabelingFixtures.randomImage;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link SparseFeatureExtraction}.
+ */
+public class SparseFeatureExtractionTest {
+
+	private final FeatureCalculator calculator = FeatureCalculator.default2d()
+		.addFeatures(SingleFeatures.identity(), GroupedFeatures.gauss())
+		.build();
+
+	private final Img<FloatType> image = randomImage(700, 600);
+
+	@Test
+	public void testSameSamplesAsDense() {
+		List<LabelRegion<String>> regions = scribbles(image, 2, 40);
+		RecordingTraining expected = new RecordingTraining(calculator.count());
+		RandomAccess<? extends Composite<FloatType>> ra = FastViews.collapse(calculator.apply(
+			image)).randomAccess();
+		for (int classIndex = 0; classIndex < regions.size(); classIndex++)
+			for (Cursor<Void> cursor = regions.get(classIndex).cursor(); cursor
+				.hasNext();)
+			{
+				cursor.fwd();
+				ra.setPosition(cursor);
+				expected.add(ra.get(), classIndex);
+			}
+		RecordingTraining actual = new RecordingTraining(calculator.count());
+		assertTrue(SparseFeatureExtraction.addLabeledPixels(calculator, Views.extendBorder(image),
+			image, regions, actual::add));
+		assertEquals(expected.classes, actual.classes);
+		for (int i = 0; i < expected.vectors.size(); i++)
+			assertArrayEquals(expected.vectors.get(i), actual.vectors.get(i), 0.0001f);
+	}
+
+	@Test
+	public void testDenseLabels() {
+		List<LabelRegion<String>> regions = scribbles(image, 2, 600);
+		RecordingTraining training = new RecordingTraining(calculator.count());
+		assertFalse(SparseFeatureExtraction.addLabeledPixels(calculator, Views.extendBorder(image),
+			image, regions, training::add));
+		assertTrue(training.classes.isEmpty());
+	}
+
+	@Test
+	public void testLargeMargin() {
+		// NB: The margin of the largest sigma covers the whole image.
+		FeatureCalculator calculator = FeatureCalculator.default2d()
+			.sigmas(1.0, 64.0)
+			.addFeatures(SingleFeatures.identity(), GroupedFeatures.gauss())
+			.build();
+		List<LabelRegion<String>> regions = scribbles(image, 2, 40);
+		RecordingTraining training = new RecordingTraining(calculator.count());
+		assertFalse(SparseFeatureExtraction.addLabeledPixels(calculator, Views.extendBorder(image),
+			image, regions, training::add));
+		assertTrue(training.classes.isEmpty());
+	}
+
+	/**
+	 * Labels a horizontal line of the given length for each class.
+	 */
+	private static List<LabelRegion<String>> scribbles(RandomAccessibleInterval<?> image,
+		int numberOfClasses, int length)
+	{
+		List<String> classNames = new ArrayList<>();
+		List<int[]> lines = new ArrayList<>();
+		for (int c = 0; c < numberOfClasses; c++) {
+			classNames.add("class" + c);
+			lines.add(line(30, 100 + 300 * c, c, length));
+		}
+		return Trainer.regionsPerClass(classNames, labeling(image, classNames, lines.toArray(
+			new int[0][])));
+	}
+
+	private static class RecordingTraining implements Training {
+
+		private final List<float[]> vectors = new ArrayList<>();
+
+		private final List<Integer> classes = new ArrayList<>();
+
+		private final int count;
+
+		private RecordingTraining(int count) {
+			this.count = count;
+		}
+
+		@Override
+		public void add(Composite<? extends RealType<?>> featureVector, int classIndex) {
+			float[] vector = new float[count];
+			for (int i = 0; i < vector.length; i++)
+				vector[i] = featureVector.get(i).getRealFloat();
+			vectors.add(vector);
+			classes.add(classIndex);
+		}
+
+		@Override
+		public void add(float[] featureVector, int offset, int classIndex) {
+			vectors.add(Arrays.copyOfRange(featureVector, offset, offset + count));
+			classes.add(classIndex);
+		}
+
+		@Override
+		public void train() {
+
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package net.imglib2.trainable_segmentation.classification;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.GroupedFeatures;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.SingleFeatures;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSettings;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.GlobalSettings;
+import net.imglib2.trainable_segmentation.random_forest.TrainingMatrix;
+import net.imglib2.trainable_segmentation.utils.SingletonContext;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.imglib2.trainable_segmentation.classification.LabelingFixtures.line;
+import static net.imglib2.trainable_segmentation.classification.LabelingFixtures.randomImage;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link TrainingSession}.
+ */
+public class TrainingSessionTest {
+
+	private final Segmenter segmenter = new Segmenter(SingletonContext.getInstance(), Arrays
+		.asList("foreground", "background"), new FeatureSettings(GlobalSettings.default2d().build(),
+			SingleFeatures.identity(), GroupedFeatures.gauss()), Trainer.initNativeRandomForest());
+
+	private final Img<FloatType> image = randomImage(300, 200);
+
+	@Test
+	public void testUpdateEqualsFreshSession() {
+		// NB: Add a line, erase part of another, and change the class of a third.
+		TrainingSession session = new TrainingSession(segmenter);
+		session.update(image, labeling(image, line(5, 10, 0, 100), line(5, 20, 1, 50), line(5, 30,
+			0, 40)));
+		LabelRegions<String> changed = labeling(image, line(5, 10, 0, 100), line(5, 20, 1, 20),
+			line(5, 30, 1, 40), line(5, 150, 1, 60));
+		session.update(image, changed);
+		TrainingSession fresh = new TrainingSession(segmenter);
+		fresh.update(image, changed);
+		assertEquals(100 + 20 + 40 + 60, session.numberOfSamples());
+		assertSameSamples(fresh.data(), session.data());
+	}
+
+	@Test
+	public void testRemove() {
+		Img<FloatType> other = randomImage(100, 100);
+		TrainingSession session = new TrainingSession(segmenter);
+		session.update(image, labeling(image, line(5, 10, 0, 100)));
+		session.update(other, labeling(other, line(5, 10, 1, 50)));
+		assertEquals(150, session.numberOfSamples());
+		session.remove(image);
+		assertEquals(50, session.numberOfSamples());
+	}
+
+	@Test
+	public void testOnlyChangedPixelsAreCalculated() {
+		// NB: The image is large enough for the sparse feature extraction.
+		Img<FloatType> image = randomImage(2000, 2000);
+		CountingFeatureCalculator calculator = new CountingFeatureCalculator(segmenter);
+		TrainingSession session = new TrainingSession(segmenter, calculator);
+		session.update(image, labeling(image, line(5, 10, 0, 100), line(5, 20, 1, 50)));
+		assertTrue(calculator.pixels.get() > 0);
+		// NB: Erasing labels calculates nothing.
+		calculator.pixels.set(0);
+		session.update(image, labeling(image, line(5, 10, 0, 100)));
+		assertEquals(0, calculator.pixels.get());
+		// NB: Adding a line only calculates the features around the new line.
+		session.update(image, labeling(image, line(5, 10, 0, 100), line(1500, 1500, 1, 60)));
+		CountingFeatureCalculator expected = new CountingFeatureCalculator(segmenter);
+		new TrainingSession(segmenter, expected).update(image, labeling(image, line(1500, 1500, 1,
+			60)));
+		assertEquals(expected.pixels.get(), calculator.pixels.get());
+		assertEquals(160, session.numberOfSamples());
+	}
+
+	private static void assertSameSamples(TrainingMatrix expected, TrainingMatrix actual) {
+		int n = expected.numberOfSamples();
+		assertEquals(n, actual.numberOfSamples());
+		int[] samples = new int[n];
+		for (int i = 0; i < n; i++)
+			samples[i] = i;
+		for (int f = 0; f < expected.numberOfFeatures(); f++) {
+			float[] expectedValues = new float[n];
+			float[] actualValues = new float[n];
+			expected.gather(f, samples, 0, n, expectedValues);
+			actual.gather(f, samples, 0, n, actualValues);
+			assertArrayEquals(expectedValues, actualValues, 0.0001f);
+		}
+		for (int i = 0; i < n; i++)
+			assertEquals(expected.classIndex(i), actual.classIndex(i));
+	}
+
+	private LabelRegions<String> labeling(Interval image, int[]... lines) {
+		return LabelingFixtures.labeling(image, segmenter.classNames(), lines);
+	}
+
+	/**
+	 * Counts the pixels, for which features are calculated.
+	 */
+	private static class CountingFeatureCalculator extends FeatureCalculator {
+
+		private final AtomicLong pixels = new AtomicLong();
+
+		private CountingFeatureCalculator(Segmenter segmenter) {
+			super(SingletonContext.getInstance(), segmenter.features().settings());
+		}
+
+		@Override
+		public RandomAccessibleInterval<FloatType> apply(RandomAccessibleInterval<?> image) {
+			pixels.addAndGet(Intervals.numElements(outputIntervalFromInput(image)));
+			return super.apply(image);
+		}
+
+		@Override
+		public void applyInterleaved(RandomAccessible<?> input, Interval interval,
+			int[] featureIndices, float[] buffer)
+		{
+			pixels.addAndGet(Intervals.numElements(interval));
+			super.applyInterleaved(input, interval, featureIndices, buffer);
+		}
+	}
+}
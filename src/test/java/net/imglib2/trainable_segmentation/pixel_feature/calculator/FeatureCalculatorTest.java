@@ -2,6 +2,7 @@
 package net.imglib2.trainable_segmentation.pixel_feature.calculator;
 
 import net.imglib2.trainable_segmentation.gpu.api.GpuPixelWiseOperation;
+import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
@@ -15,6 +16,7 @@ import net.imglib2.trainable_segmentation.pixel_feature.settings.ChannelSetting;
 import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSetting;
 import net.imglib2.trainable_segmentation.utils.CpuGpuRunner;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 import org.junit.Test;
@@ -27,6 +29,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 @RunWith(CpuGpuRunner.class)
@@ -68,6 +71,43 @@ public class FeatureCalculatorTest {
 		Utils.assertImagesEqual(ArrayImgs.floats(new float[] { 44, 45, 14, 15 }, 1, 1, 4), out);
 	}
 
+	@Test
+	public void testSelectedFeatures() {
+		FeatureCalculator calculator = FeatureCalculator.default2d()
+			.channels(ChannelSetting.multiple(2))
+			.addFeatures(add_42, add_12)
+			.build();
+		calculator.setUseGpu(useGpu);
+		Img<FloatType> input = ArrayImgs.floats(new float[] { 2, 3 }, 1, 1, 2);
+		RandomAccessibleInterval<FloatType> out = calculator.apply(Views.extendBorder(input),
+			new FinalInterval(1, 1), new int[] { 3, 0 });
+		Utils.assertImagesEqual(ArrayImgs.floats(new float[] { 15, 44 }, 1, 1, 2), out);
+	}
+
+	@Test
+	public void testNoSelectedFeatures() {
+		FeatureCalculator calculator = FeatureCalculator.default2d()
+			.addFeatures(add_42, add_12)
+			.build();
+		calculator.setUseGpu(useGpu);
+		Img<FloatType> input = ArrayImgs.floats(new float[] { 2, 3 }, 2, 1);
+		RandomAccessibleInterval<FloatType> out = calculator.apply(Views.extendBorder(input),
+			input, new int[0]);
+		assertArrayEquals(new long[] { 2, 1, 0 }, Intervals.dimensionsAsLongArray(out));
+	}
+
+	@Test
+	public void testInterleaved() {
+		FeatureCalculator calculator = FeatureCalculator.default2d()
+			.addFeatures(add_42, add_12)
+			.build();
+		calculator.setUseGpu(useGpu);
+		Img<FloatType> input = ArrayImgs.floats(new float[] { 2, 3 }, 2, 1);
+		float[] buffer = new float[4];
+		calculator.applyInterleaved(Views.extendBorder(input), input, new int[] { 0, 1 }, buffer);
+		assertArrayEquals(new float[] { 44, 14, 45, 15 }, buffer, 0);
+	}
+
 	public static class AddValue extends AbstractFeatureOp implements FeatureOp {
 
 		@Parameter
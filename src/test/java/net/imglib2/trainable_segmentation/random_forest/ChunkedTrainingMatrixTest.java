@@ -0,0 +1,90 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link ChunkedTrainingMatrix}.
+ */
+public class ChunkedTrainingMatrixTest {
+
+	private static final int CHUNK_SIZE = ChunkedTrainingMatrix.CHUNK_SIZE;
+
+	@Test
+	public void testAdd() {
+		ChunkedTrainingMatrix matrix = new ChunkedTrainingMatrix(3, 5);
+		addSamples(matrix, 0, 2 * CHUNK_SIZE + 7);
+		assertSamples(matrix, 0, 2 * CHUNK_SIZE + 7);
+	}
+
+	@Test
+	public void testAddAll() {
+		// NB: The first part ends in the middle of a chunk, the second part is
+		// therefore copied. The third part is added to an aligned matrix, its
+		// full chunks are shared.
+		ChunkedTrainingMatrix first = new ChunkedTrainingMatrix(3, 5);
+		addSamples(first, 0, CHUNK_SIZE + 3);
+		ChunkedTrainingMatrix second = new ChunkedTrainingMatrix(3, 5);
+		addSamples(second, CHUNK_SIZE + 3, 3 * CHUNK_SIZE);
+		ChunkedTrainingMatrix third = new ChunkedTrainingMatrix(3, 5);
+		addSamples(third, 3 * CHUNK_SIZE, 4 * CHUNK_SIZE + 100);
+		ChunkedTrainingMatrix matrix = new ChunkedTrainingMatrix(3, 5);
+		matrix.addAll(first);
+		matrix.addAll(second);
+		matrix.addAll(third);
+		assertSamples(matrix, 0, 4 * CHUNK_SIZE + 100);
+		// NB: Adding samples must not change the shared chunks.
+		addSamples(third, 4 * CHUNK_SIZE + 100, 5 * CHUNK_SIZE);
+		addSamples(matrix, 4 * CHUNK_SIZE + 100, 5 * CHUNK_SIZE);
+		assertSamples(matrix, 0, 5 * CHUNK_SIZE);
+		assertSamples(third, 3 * CHUNK_SIZE, 5 * CHUNK_SIZE);
+	}
+
+	@Test
+	public void testSelect() {
+		ChunkedTrainingMatrix matrix = new ChunkedTrainingMatrix(3, 5);
+		addSamples(matrix, 0, 2 * CHUNK_SIZE + 7);
+		int[] samples = new int[CHUNK_SIZE + 10];
+		for (int i = 0; i < samples.length; i++)
+			samples[i] = (samples.length - 1 - i) * 2;
+		ChunkedTrainingMatrix selected = matrix.select(samples);
+		assertEquals(samples.length, selected.numberOfSamples());
+		float[] expected = new float[samples.length];
+		float[] actual = new float[samples.length];
+		int[] all = new int[samples.length];
+		for (int i = 0; i < samples.length; i++)
+			all[i] = i;
+		for (int f = 0; f < 3; f++) {
+			matrix.gather(f, samples, 0, samples.length, expected);
+			selected.gather(f, all, 0, samples.length, actual);
+			assertArrayEquals(expected, actual, 0);
+		}
+		for (int i = 0; i < samples.length; i++)
+			assertEquals(matrix.classIndex(samples[i]), selected.classIndex(i));
+	}
+
+	private static void addSamples(ChunkedTrainingMatrix matrix, int from, int to) {
+		for (int i = from; i < to; i++)
+			matrix.add(new float[] { -1, i, 2 * i, 3 * i }, 1, i % 5);
+	}
+
+	private static void assertSamples(ChunkedTrainingMatrix matrix, int from, int to) {
+		int n = to - from;
+		assertEquals(n, matrix.numberOfSamples());
+		int[] samples = new int[n];
+		for (int i = 0; i < n; i++)
+			samples[i] = n - 1 - i;
+		for (int f = 0; f < 3; f++) {
+			float[] expected = new float[n];
+			for (int i = 0; i < n; i++)
+				expected[i] = (f + 1) * (from + samples[i]);
+			float[] actual = new float[n];
+			matrix.gather(f, samples, 0, n, actual);
+			assertArrayEquals(expected, actual, 0);
+		}
+		for (int i = 0; i < n; i++)
+			assertEquals((from + i) % 5, matrix.classIndex(i));
+	}
+}
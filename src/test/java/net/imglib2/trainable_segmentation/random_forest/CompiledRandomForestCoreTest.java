@@ -0,0 +1,79 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link CompiledRandomForestCore} by comparing the results to
+ * {@link CpuRandomForestCore} on randomly generated forests.
+ */
+public class CompiledRandomForestCoreTest {
+
+	private final RandomForestGenerator generator = new RandomForestGenerator(5);
+
+	@Test
+	public void testTwoClasses() {
+		compareToCpuRandomForestCore(2);
+	}
+
+	@Test
+	public void testThreeClasses() {
+		compareToCpuRandomForestCore(3);
+	}
+
+	@Test
+	public void testFourClasses() {
+		compareToCpuRandomForestCore(4);
+	}
+
+	@Test
+	public void testFallbackForHugeTrees() {
+		TransparentRandomForest forest = new TransparentRandomForest(Collections.singletonList(
+			fullTree(12)));
+		assertTrue(CompiledRandomForestCore.compileOrInterpret(
+			forest) instanceof CpuRandomForestCore);
+	}
+
+	@Test
+	public void testMethodsAreSmallEnoughForTheJit() {
+		// NB: Trees of height 9 can be too big for a method, that is JIT compiled.
+		assertTrue(CompiledRandomForestCore.compileOrInterpret(new TransparentRandomForest(
+			Collections.singletonList(fullTree(9)))) instanceof CpuRandomForestCore);
+		TransparentRandomForest forest = new TransparentRandomForest(Arrays.asList(fullTree(8),
+			fullTree(8), fullTree(8), fullTree(3)));
+		int[] codeSizes = ((CompiledRandomForestCore) CompiledRandomForestCore.compileOrInterpret(
+			forest)).codeSizes();
+		assertEquals(3, codeSizes.length);
+		for (int codeSize : codeSizes)
+			assertTrue(codeSize <= TreeGroupClassWriter.HUGE_METHOD_LIMIT);
+	}
+
+	private static TransparentRandomTree fullTree(int height) {
+		if (height == 0)
+			return TransparentRandomTree.leaf(new double[] { 0.5, 0.5 });
+		return TransparentRandomTree.node(0, 0.5, fullTree(height - 1), fullTree(height - 1));
+	}
+
+	private void compareToCpuRandomForestCore(int numberOfClasses) {
+		// NB: 50 trees of height 8 don't fit into a single method.
+		for (int maxHeight : new int[] { 1, 3, 6, 8 }) {
+			TransparentRandomForest forest = generator.randomForest(50, maxHeight, numberOfClasses);
+			CpuRandomForestCore expectedRf = new CpuRandomForestCore(forest);
+			CpuRandomForestEngine actualRf = CompiledRandomForestCore.compileOrInterpret(forest);
+			for (int i = 0; i < 100; i++) {
+				float[] instance = generator.randomInstance();
+				float[] expected = new float[numberOfClasses];
+				float[] actual = new float[numberOfClasses];
+				expectedRf.distributionForInstance(instance, expected);
+				actualRf.distributionForInstance(instance, actual);
+				assertArrayEquals(expected, actual, 0);
+			}
+		}
+	}
+}
@@ -2,6 +2,7 @@
 package net.imglib2.trainable_segmentation.random_forest;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Random;
 import java.util.stream.Collectors;
@@ -52,6 +53,31 @@ public class CpuRandomForestCoreTest {
 		trainAndCompareRandomForests(4);
 	}
 
+	@Test
+	public void testProfiledLayout() {
+		RandomForestGenerator generator = new RandomForestGenerator(10);
+		TransparentRandomForest forest = generator.randomForest(50, 10, 3);
+		CpuRandomForestCore original = new CpuRandomForestCore(forest);
+		// profile with a skewed sample, such that the layout actually changes
+		float[] sample = new float[100 * 10];
+		for (int i = 0; i < sample.length; i++)
+			sample[i] = random.nextInt(3) / 10f;
+		CpuRandomForestCore.NodeProfile profile = original.newNodeProfile();
+		profile.add(sample, 0, 10, 100);
+		CpuRandomForestCore relayout = profile.relayout();
+		CpuRandomForestCore unchanged = original.newNodeProfile().relayout();
+		for (int i = 0; i < 100; i++) {
+			float[] instance = generator.randomInstance();
+			float[] expected = new float[3];
+			original.distributionForInstance(instance, expected);
+			float[] actual = new float[3];
+			relayout.distributionForInstance(instance, actual);
+			assertArrayEquals(expected, actual, 0);
+			unchanged.distributionForInstance(instance, actual);
+			assertArrayEquals(expected, actual, 0);
+		}
+	}
+
 	public void trainAndCompareRandomForests(int numberOfClasses) throws Exception {
 		// test a random forest with small trees (tree heights roughly 0 and 1)
 		trainAndCompareRandomForests(10, numberOfClasses, 4);
@@ -75,6 +101,7 @@ public class CpuRandomForestCoreTest {
 		FastRandomForest fastRf = trainFastRandomForest(trainingDataset);
 		CpuRandomForestCore cpuRf = new CpuRandomForestCore(fastRf);
 		compareRandomForests(testDataset, fastRf, cpuRf);
+		compareBatchEvaluation(testDataset, cpuRf);
 	}
 
 	private Instances randomDataset(int numberOfFeatures, int numberOfClasses,
@@ -113,6 +140,29 @@ public class CpuRandomForestCoreTest {
 		}
 	}
 
+	/**
+	 * Tests that {@link CpuRandomForestCore#distributionForInstances} gives the same
+	 * result as {@link CpuRandomForestCore#distributionForInstance}.
+	 */
+	private void compareBatchEvaluation(Instances data, CpuRandomForestCore cpuRf) {
+		int numberOfClasses = cpuRf.numberOfClasses();
+		int stride = data.numAttributes();
+		float[] instances = new float[data.size() * stride];
+		for (int i = 0; i < data.size(); i++)
+			System.arraycopy(ArrayUtils.toFloats(data.get(i).toDoubleArray()), 0, instances, i * stride,
+				stride);
+		float[] distributions = new float[data.size() * numberOfClasses];
+		cpuRf.distributionForInstances(instances, 0, stride, data.size(), distributions);
+		for (int i = 0; i < data.size(); i++) {
+			float[] expected = new float[numberOfClasses];
+			float[] featureVector = ArrayUtils.toFloats(data.get(i).toDoubleArray());
+			cpuRf.distributionForInstance(featureVector, expected);
+			float[] actual = Arrays.copyOfRange(distributions, i * numberOfClasses, (i + 1) *
+				numberOfClasses);
+			assertArrayEquals(expected, actual, 0);
+		}
+	}
+
 	private Instances emptyDataset(int numberOfFeatures, int numberOfClasses) {
 		final ArrayList<Attribute> attInfo = new ArrayList<>();
 		for (int j = 0; j < numberOfFeatures; j++)
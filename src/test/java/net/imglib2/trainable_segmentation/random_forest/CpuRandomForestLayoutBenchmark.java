@@ -0,0 +1,89 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import com.google.gson.JsonElement;
+import hr.irb.fastRandomForest.FastRandomForest;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.trainable_segmentation.Utils;
+import net.imglib2.trainable_segmentation.classification.Segmenter;
+import net.imglib2.trainable_segmentation.gson.GsonUtils;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.scijava.Context;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the depth first layout of {@link CpuRandomForestCore} with the
+ * layout optimized by {@link CpuRandomForestPrediction#optimizeLayout}. The
+ * profile is collected on the first ten slices of the image only.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CpuRandomForestLayoutBenchmark {
+
+	private static final Segmenter segmenter = initializeSegmenter();
+
+	private static final RandomAccessibleInterval<FloatType> features = initializeFeatures();
+
+	private static final CpuRandomForestPrediction depthFirst = new CpuRandomForestPrediction(
+		(FastRandomForest) segmenter.getClassifier(), segmenter.features().count());
+
+	private static final CpuRandomForestPrediction profiled = depthFirst.optimizeLayout(Views
+		.interval(features, new FinalInterval(new long[] { 0, 0, 0, 0 }, new long[] { 99, 99, 9,
+			features.max(3) })));
+
+	private final Img<UnsignedByteType> out = ArrayImgs.unsignedBytes(100, 100, 100);
+
+	@Benchmark
+	public Object benchmarkDepthFirstLayout() {
+		depthFirst.segment(features, out);
+		return out;
+	}
+
+	@Benchmark
+	public Object benchmarkProfiledLayout() {
+		profiled.segment(features, out);
+		return out;
+	}
+
+	private static Segmenter initializeSegmenter() {
+		Context context = new Context();
+		JsonElement read = GsonUtils.read(CpuRandomForestLayoutBenchmark.class.getResource(
+			"/clij/t1-head.classifier").getFile());
+		return Segmenter.fromJson(context, read);
+	}
+
+	private static RandomAccessibleInterval<FloatType> initializeFeatures() {
+		RandomAccessibleInterval<FloatType> input = Utils.loadImageFloatType(
+			"https://imagej.net/images/t1-head.zip");
+		return segmenter.features().apply(Views.extendBorder(input), new FinalInterval(100, 100,
+			100));
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options options = new OptionsBuilder().include(CpuRandomForestLayoutBenchmark.class
+			.getSimpleName()).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,56 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import net.imglib2.trainable_segmentation.utils.ArrayUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link EarlyExitRandomForestCore} by comparing the results to
+ * {@link CpuRandomForestCore} on randomly generated forests.
+ */
+public class EarlyExitRandomForestCoreTest {
+
+	private final RandomForestGenerator generator = new RandomForestGenerator(5);
+
+	@Test
+	public void testTwoClasses() {
+		compareToCpuRandomForestCore(2);
+	}
+
+	@Test
+	public void testThreeClasses() {
+		compareToCpuRandomForestCore(3);
+	}
+
+	@Test
+	public void testFiveClasses() {
+		compareToCpuRandomForestCore(5);
+	}
+
+	private void compareToCpuRandomForestCore(int numberOfClasses) {
+		for (int maxHeight : new int[] { 1, 3, 6, 9 }) {
+			TransparentRandomForest forest = generator.randomForest(100, maxHeight, numberOfClasses);
+			CpuRandomForestCore expectedRf = new CpuRandomForestCore(forest);
+			EarlyExitRandomForestCore actualRf = new EarlyExitRandomForestCore(forest);
+			int numInstances = 200;
+			float[] instances = new float[numInstances * 5];
+			for (int i = 0; i < numInstances; i++)
+				System.arraycopy(generator.randomInstance(), 0, instances, i * 5, 5);
+			int[] classes = new int[numInstances];
+			actualRf.classifyInstances(instances, 0, 5, numInstances, new float[numberOfClasses],
+				classes);
+			for (int i = 0; i < numInstances; i++) {
+				float[] instance = new float[5];
+				System.arraycopy(instances, i * 5, instance, 0, 5);
+				float[] expected = new float[numberOfClasses];
+				float[] actual = new float[numberOfClasses];
+				expectedRf.distributionForInstance(instance, expected);
+				actualRf.distributionForInstance(instance, actual);
+				assertArrayEquals(expected, actual, 0);
+				assertEquals(ArrayUtils.findMax(expected), classes[i]);
+			}
+		}
+	}
+}
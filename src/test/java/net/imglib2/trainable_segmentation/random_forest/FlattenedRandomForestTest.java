@@ -0,0 +1,127 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import net.imglib2.trainable_segmentation.utils.ArrayUtils;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Tests {@link FlattenedRandomForest} by comparing it to the
+ * {@link TransparentRandomForest} it was flattened from.
+ */
+public class FlattenedRandomForestTest {
+
+	private final RandomForestGenerator generator = new RandomForestGenerator(10);
+
+	@Test
+	public void testUsedAttributes() {
+		for (int numberOfClasses : new int[] { 2, 3, 5 }) {
+			TransparentRandomForest forest = generator.randomForest(50, 8, numberOfClasses);
+			assertArrayEquals(forest.usedAttributes(), FlattenedRandomForest.flatten(forest)
+				.usedAttributes());
+		}
+	}
+
+	@Test
+	public void testSelectAttributes() {
+		TransparentRandomForest forest = generator.randomForest(50, 8, 3);
+		// NB: The selected attributes are permuted.
+		int[] used = forest.usedAttributes();
+		int[] selected = new int[used.length];
+		for (int i = 0; i < used.length; i++)
+			selected[i] = used[used.length - 1 - i];
+		CpuRandomForestCore expectedRf = new CpuRandomForestCore(forest.selectAttributes(selected));
+		CpuRandomForestEngine actualRf = FlattenedRandomForest.flatten(forest).selectAttributes(
+			selected).engine();
+		for (int i = 0; i < 100; i++) {
+			float[] instance = select(generator.randomInstance(), selected);
+			assertArrayEquals(distribution(expectedRf, instance), distribution(actualRf, instance), 0);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSelectMissingAttribute() {
+		TransparentRandomForest forest = generator.randomForest(50, 8, 3);
+		int[] used = forest.usedAttributes();
+		FlattenedRandomForest.flatten(forest).selectAttributes(Arrays.copyOf(used, used.length -
+			1));
+	}
+
+	@Test
+	public void testNodeArrays() {
+		for (int numberOfClasses : new int[] { 2, 3, 5 }) {
+			TransparentRandomForest forest = generator.randomForest(100, 9, numberOfClasses);
+			CpuRandomForestCore expectedRf = new CpuRandomForestCore(forest);
+			// NB: Several shards, with trees in "compact" and "expanded" storage.
+			FlattenedRandomForest flattened = new FlattenedRandomForest(ShardedRandomForestCore
+				.split(forest, 1000 * numberOfClasses));
+			NodeArraysForest actualRf = flattened.toNodeArrays(NodeArraysForest::new);
+			for (int i = 0; i < 100; i++) {
+				float[] instance = generator.randomInstance();
+				assertArrayEquals(distribution(expectedRf, instance), actualRf.distribution(instance),
+					1e-6f);
+			}
+		}
+	}
+
+	private static float[] select(float[] instance, int[] attributes) {
+		float[] result = new float[attributes.length];
+		for (int i = 0; i < attributes.length; i++)
+			result[i] = instance[attributes[i]];
+		return result;
+	}
+
+	private static float[] distribution(CpuRandomForestEngine engine, float[] instance) {
+		float[] distribution = new float[engine.numberOfClasses()];
+		engine.distributionForInstance(instance, distribution);
+		return distribution;
+	}
+
+	/**
+	 * Evaluates the node arrays like the GPU kernel.
+	 */
+	private static class NodeArraysForest {
+
+		private final int numberOfClasses;
+
+		private final int numberOfNodes;
+
+		private final int numberOfLeafs;
+
+		private final short[] nodeIndices;
+
+		private final float[] nodeThresholds;
+
+		private final float[] leafProbabilities;
+
+		private NodeArraysForest(int numberOfClasses, int numberOfNodes, int numberOfLeafs,
+			short[] nodeIndices, float[] nodeThresholds, float[] leafProbabilities)
+		{
+			this.numberOfClasses = numberOfClasses;
+			this.numberOfNodes = numberOfNodes;
+			this.numberOfLeafs = numberOfLeafs;
+			this.nodeIndices = nodeIndices;
+			this.nodeThresholds = nodeThresholds;
+			this.leafProbabilities = leafProbabilities;
+		}
+
+		private float[] distribution(float[] instance) {
+			float[] distribution = new float[numberOfClasses];
+			for (int tree = 0; tree < nodeThresholds.length / numberOfNodes; tree++) {
+				int node = 0;
+				while (node >= 0) {
+					int offset = tree * numberOfNodes + node;
+					int b = instance[nodeIndices[offset * 3]] < nodeThresholds[offset] ? 1 : 2;
+					node = nodeIndices[offset * 3 + b];
+				}
+				int leafOffset = (tree * numberOfLeafs + node - Short.MIN_VALUE) * numberOfClasses;
+				for (int k = 0; k < numberOfClasses; k++)
+					distribution[k] += leafProbabilities[leafOffset + k];
+			}
+			ArrayUtils.normalize(distribution);
+			return distribution;
+		}
+	}
+}
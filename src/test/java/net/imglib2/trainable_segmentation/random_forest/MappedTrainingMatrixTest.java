@@ -0,0 +1,95 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link MappedTrainingMatrix}.
+ */
+public class MappedTrainingMatrixTest {
+
+	private static final int CHUNK_SIZE = ChunkedTrainingMatrix.CHUNK_SIZE;
+
+	@Test
+	public void testAddAndOpen() throws IOException {
+		File file = File.createTempFile("training", ".bin");
+		try {
+			try (MappedTrainingMatrix matrix = MappedTrainingMatrix.create(file.toPath(), 3, 5)) {
+				addSamples(matrix, 0, CHUNK_SIZE + 7);
+				assertSamples(matrix, CHUNK_SIZE + 7);
+			}
+			// NB: Continue adding samples to the file.
+			try (MappedTrainingMatrix matrix = MappedTrainingMatrix.open(file.toPath())) {
+				assertEquals(3, matrix.numberOfFeatures());
+				assertEquals(5, matrix.numberOfClasses());
+				assertSamples(matrix, CHUNK_SIZE + 7);
+				addSamples(matrix, CHUNK_SIZE + 7, 3 * CHUNK_SIZE);
+			}
+			try (MappedTrainingMatrix matrix = MappedTrainingMatrix.open(file.toPath())) {
+				assertSamples(matrix, 3 * CHUNK_SIZE);
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testTrain() throws IOException {
+		// NB: The forest trained on the file must equal the forest trained in memory.
+		TrainingMatrix data = RandomForestTrainerTest.generateData(new Random(1), 1000);
+		File file = File.createTempFile("training", ".bin");
+		try (MappedTrainingMatrix matrix = MappedTrainingMatrix.create(file.toPath(), data
+			.numberOfFeatures(), data.numberOfClasses()))
+		{
+			float[] vector = new float[data.numberOfFeatures()];
+			int[] sample = new int[1];
+			float[] value = new float[1];
+			for (int i = 0; i < data.numberOfSamples(); i++) {
+				sample[0] = i;
+				for (int f = 0; f < vector.length; f++) {
+					data.gather(f, sample, 0, 1, value);
+					vector[f] = value[0];
+				}
+				matrix.add(vector, 0, data.classIndex(i));
+			}
+			RandomForestTrainer trainer = new RandomForestTrainer();
+			TransparentRandomForest expected = trainer.train(data);
+			TransparentRandomForest actual = trainer.train(matrix);
+			TrainingMatrix test = RandomForestTrainerTest.generateData(new Random(2), 1000);
+			assertEquals(RandomForestTrainerTest.accuracy(expected, test), RandomForestTrainerTest
+				.accuracy(actual, test), 0);
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	private static void addSamples(MappedTrainingMatrix matrix, int from, int to) {
+		for (int i = from; i < to; i++)
+			matrix.add(new float[] { -1, i, 2 * i, 3 * i }, 1, i % 5);
+	}
+
+	private static void assertSamples(MappedTrainingMatrix matrix, int n) {
+		assertEquals(n, matrix.numberOfSamples());
+		int[] samples = new int[n];
+		for (int i = 0; i < n; i++)
+			samples[i] = n - 1 - i;
+		for (int f = 0; f < 3; f++) {
+			float[] expected = new float[n];
+			for (int i = 0; i < n; i++)
+				expected[i] = (f + 1) * samples[i];
+			float[] actual = new float[n];
+			matrix.gather(f, samples, 0, n, actual);
+			assertArrayEquals(expected, actual, 0);
+		}
+		for (int i = 0; i < n; i++)
+			assertEquals(i % 5, matrix.classIndex(i));
+	}
+}
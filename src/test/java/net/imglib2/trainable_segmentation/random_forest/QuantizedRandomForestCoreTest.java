@@ -0,0 +1,71 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import net.imglib2.trainable_segmentation.utils.ArrayUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Tests {@link QuantizedRandomForestCore} by comparing the results to
+ * {@link CpuRandomForestCore} on randomly generated forests.
+ */
+public class QuantizedRandomForestCoreTest {
+
+	private final RandomForestGenerator generator = new RandomForestGenerator(5);
+
+	@Test
+	public void test16Bit() {
+		assertMaxError(16, 1e-4f);
+	}
+
+	@Test
+	public void test8Bit() {
+		assertMaxError(8, 1e-2f);
+	}
+
+	@Test
+	public void testExactTraversal() {
+		// NB: One-hot leaf probabilities are quantized without error, any
+		// difference would be caused by a wrong path through a tree.
+		List<TransparentRandomTree> trees = new ArrayList<>();
+		for (TransparentRandomTree tree : generator.randomForest(50, 8, 3).trees())
+			trees.add(oneHot(tree));
+		TransparentRandomForest forest = new TransparentRandomForest(trees);
+		compare(forest, new QuantizedRandomForestCore(forest, 8), 1e-6f);
+	}
+
+	private void assertMaxError(int bits, float delta) {
+		for (int numberOfClasses : new int[] { 2, 3, 5 }) {
+			TransparentRandomForest forest = generator.randomForest(50, 9, numberOfClasses);
+			compare(forest, new QuantizedRandomForestCore(forest, bits), delta);
+		}
+	}
+
+	private void compare(TransparentRandomForest forest, CpuRandomForestEngine actualRf,
+		float delta)
+	{
+		int numberOfClasses = forest.numberOfClasses();
+		CpuRandomForestCore expectedRf = new CpuRandomForestCore(forest);
+		for (int i = 0; i < 100; i++) {
+			float[] instance = generator.randomInstance();
+			float[] expected = new float[numberOfClasses];
+			float[] actual = new float[numberOfClasses];
+			expectedRf.distributionForInstance(instance, expected);
+			actualRf.distributionForInstance(instance, actual);
+			assertArrayEquals(expected, actual, delta);
+		}
+	}
+
+	private static TransparentRandomTree oneHot(TransparentRandomTree tree) {
+		if (tree.isLeaf()) {
+			double[] probabilities = new double[tree.numberOfClasses()];
+			probabilities[ArrayUtils.findMax(tree.classProbabilities())] = 1;
+			return TransparentRandomTree.leaf(probabilities);
+		}
+		return TransparentRandomTree.node(tree.attributeIndex(), tree.threshold(), oneHot(tree
+			.smallerChild()), oneHot(tree.biggerChild()));
+	}
+}
@@ -0,0 +1,58 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Tests {@link QuickScorerRandomForestCore} by comparing the results to
+ * {@link CpuRandomForestCore} on randomly generated forests.
+ */
+public class QuickScorerRandomForestCoreTest {
+
+	private final RandomForestGenerator generator = new RandomForestGenerator(5);
+
+	@Test
+	public void testLeafOnlyTree() {
+		TransparentRandomTree tree = TransparentRandomTree.leaf(new double[] { 0.1, 0.9 });
+		TransparentRandomForest forest = new TransparentRandomForest(Collections.singletonList(tree));
+		float[] distribution = new float[2];
+		new QuickScorerRandomForestCore(forest).distributionForInstance(new float[1], distribution);
+		assertArrayEquals(new float[] { 0.1f, 0.9f }, distribution, 0);
+	}
+
+	@Test
+	public void testTwoClasses() {
+		compareToCpuRandomForestCore(2);
+	}
+
+	@Test
+	public void testThreeClasses() {
+		compareToCpuRandomForestCore(3);
+	}
+
+	@Test
+	public void testFourClasses() {
+		compareToCpuRandomForestCore(4);
+	}
+
+	private void compareToCpuRandomForestCore(int numberOfClasses) {
+		// NB: trees of height 9 have up to 512 leafs, and need multiple words per bit
+		// vector.
+		for (int maxHeight : new int[] { 1, 3, 6, 9 }) {
+			TransparentRandomForest forest = generator.randomForest(50, maxHeight, numberOfClasses);
+			CpuRandomForestCore expectedRf = new CpuRandomForestCore(forest);
+			QuickScorerRandomForestCore actualRf = new QuickScorerRandomForestCore(forest);
+			for (int i = 0; i < 100; i++) {
+				float[] instance = generator.randomInstance();
+				float[] expected = new float[numberOfClasses];
+				float[] actual = new float[numberOfClasses];
+				expectedRf.distributionForInstance(instance, expected);
+				actualRf.distributionForInstance(instance, actual);
+				assertArrayEquals(expected, actual, 0);
+			}
+		}
+	}
+}
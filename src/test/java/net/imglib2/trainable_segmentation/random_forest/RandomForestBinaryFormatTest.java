@@ -0,0 +1,119 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link RandomForestBinaryFormat}.
+ */
+public class RandomForestBinaryFormatTest {
+
+	private final RandomForestGenerator generator = new RandomForestGenerator(10);
+
+	@Test
+	public void testWriteRead() throws IOException {
+		for (int numberOfClasses : new int[] { 2, 3, 5 }) {
+			TransparentRandomForest forest = generator.randomForest(50, 8, numberOfClasses);
+			FlattenedRandomForest loaded = writeRead(forest);
+			assertEquals(numberOfClasses, loaded.numberOfClasses());
+			assertArrayEquals(forest.usedAttributes(), loaded.usedAttributes());
+			CpuRandomForestCore expectedRf = new CpuRandomForestCore(forest);
+			CpuRandomForestEngine actualRf = loaded.engine();
+			for (int i = 0; i < 100; i++) {
+				float[] instance = generator.randomInstance();
+				float[] expected = new float[numberOfClasses];
+				float[] actual = new float[numberOfClasses];
+				expectedRf.distributionForInstance(instance, expected);
+				actualRf.distributionForInstance(instance, actual);
+				assertArrayEquals(expected, actual, 0);
+			}
+		}
+	}
+
+	@Test
+	public void testDeepTree() throws IOException {
+		// NB: A degenerated tree of height 100, each node has a leaf as smaller child.
+		TransparentRandomTree tree = TransparentRandomTree.leaf(new double[] { 1, 0 });
+		for (int i = 0; i < 100; i++)
+			tree = TransparentRandomTree.node(i % 10, i * 0.01, TransparentRandomTree.leaf(
+				new double[] { i * 0.01, 1 - i * 0.01 }), tree);
+		TransparentRandomForest forest = new TransparentRandomForest(Collections.singletonList(
+			tree));
+		CpuRandomForestCore expectedRf = new CpuRandomForestCore(forest);
+		CpuRandomForestEngine actualRf = writeRead(forest).engine();
+		for (int i = 0; i < 100; i++) {
+			float[] instance = generator.randomInstance();
+			float[] expected = new float[2];
+			float[] actual = new float[2];
+			expectedRf.distributionForInstance(instance, expected);
+			actualRf.distributionForInstance(instance, actual);
+			assertArrayEquals(expected, actual, 0);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testWrongNumberOfTrees() throws IOException {
+		ByteBuffer bytes = toBytes(generator.randomForest(50, 8, 2));
+		// NB: The first shard starts at offset 4, numTreesOfHeight[1] at offset 16.
+		bytes.putInt(16, bytes.getInt(16) + 1);
+		read(bytes);
+	}
+
+	@Test(expected = IOException.class)
+	public void testTooManyHeights() throws IOException {
+		ByteBuffer bytes = toBytes(generator.randomForest(50, 8, 2));
+		bytes.putInt(8, Integer.MAX_VALUE);
+		read(bytes);
+	}
+
+	private static ByteBuffer toBytes(TransparentRandomForest forest) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		RandomForestBinaryFormat.write(forest, Channels.newChannel(bytes));
+		return ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static FlattenedRandomForest read(ByteBuffer bytes) throws IOException {
+		File file = File.createTempFile("forest", ".bin");
+		try {
+			Files.write(file.toPath(), bytes.array());
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				return RandomForestBinaryFormat.read(channel);
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	private static FlattenedRandomForest writeRead(TransparentRandomForest forest)
+		throws IOException
+	{
+		File file = File.createTempFile("forest", ".bin");
+		try {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				RandomForestBinaryFormat.write(forest, channel);
+			}
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				FlattenedRandomForest result = RandomForestBinaryFormat.read(channel);
+				assertEquals(channel.size(), channel.position());
+				return result;
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates random {@link TransparentRandomForest}s and feature vectors for
+ * testing.
+ */
+class RandomForestGenerator {
+
+	private final Random random = new Random(42);
+
+	private final int numberOfFeatures;
+
+	RandomForestGenerator(int numberOfFeatures) {
+		this.numberOfFeatures = numberOfFeatures;
+	}
+
+	float[] randomInstance() {
+		float[] instance = new float[numberOfFeatures];
+		for (int i = 0; i < numberOfFeatures; i++)
+			instance[i] = random.nextInt(10) / 10f;
+		return instance;
+	}
+
+	TransparentRandomForest randomForest(int numberOfTrees, int maxHeight, int numberOfClasses) {
+		List<TransparentRandomTree> trees = new ArrayList<>();
+		for (int i = 0; i < numberOfTrees; i++)
+			trees.add(randomTree(random.nextInt(maxHeight + 1), numberOfClasses));
+		return new TransparentRandomForest(trees);
+	}
+
+	TransparentRandomTree randomTree(int height, int numberOfClasses) {
+		if (height == 0 || random.nextInt(8) == 0) {
+			double[] probabilities = new double[numberOfClasses];
+			for (int i = 0; i < numberOfClasses; i++)
+				probabilities[i] = random.nextDouble();
+			return TransparentRandomTree.leaf(probabilities);
+		}
+		// NB: thresholds are chosen from a small set of values, to test equal
+		// thresholds and attribute values.
+		return TransparentRandomTree.node(random.nextInt(numberOfFeatures), random.nextInt(10) / 10.0,
+			randomTree(height - 1, numberOfClasses), randomTree(height - 1, numberOfClasses));
+	}
+}
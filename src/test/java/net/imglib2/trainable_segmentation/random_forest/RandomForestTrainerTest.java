@@ -0,0 +1,225 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import org.junit.Test;
+import preview.net.imglib2.parallel.Parallelization;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link RandomForestTrainer}.
+ */
+public class RandomForestTrainerTest {
+
+	private static final int NUMBER_OF_FEATURES = 4;
+
+	@Test
+	public void testThreshold() {
+		float value = 1.0f;
+		float next = Math.nextUp(value);
+		float t = RandomForestTrainer.threshold(value, next);
+		assertTrue(value < t && t <= next);
+		assertEquals(1.5f, RandomForestTrainer.threshold(1, 2), 0);
+	}
+
+	@Test
+	public void testSortableBits() {
+		float[] values = { Float.NEGATIVE_INFINITY, -2, -1, -0.5f, 0, 0.5f, 1, 2,
+			Float.POSITIVE_INFINITY };
+		for (int i = 0; i < values.length - 1; i++)
+			assertTrue(RandomForestTrainer.sortableBits(values[i]) < RandomForestTrainer.sortableBits(
+				values[i + 1]));
+	}
+
+	@Test
+	public void testAccuracy() {
+		TrainingMatrix training = generateData(new Random(1), 2000);
+		TrainingMatrix test = generateData(new Random(2), 1000);
+		RandomForestTrainer trainer = new RandomForestTrainer();
+		trainer.setNumTrees(20);
+		TransparentRandomForest forest = trainer.train(training);
+		assertEquals(20, forest.trees().size());
+		assertTrue(accuracy(forest, test) > 0.9);
+	}
+
+	@Test
+	public void testBinnedAccuracy() {
+		TrainingMatrix training = generateData(new Random(1), 2000);
+		TrainingMatrix test = generateData(new Random(2), 1000);
+		RandomForestTrainer trainer = new RandomForestTrainer();
+		trainer.setNumTrees(20);
+		trainer.setNumBins(32);
+		assertTrue(accuracy(trainer.train(training), test) > 0.9);
+	}
+
+	@Test
+	public void testBinnedThresholds() {
+		// NB: With two bins, the only threshold of a feature is its median.
+		TrainingMatrix training = generateData(new Random(1), 1000);
+		RandomForestTrainer trainer = new RandomForestTrainer();
+		trainer.setNumBins(2);
+		BinnedColumns binned = BinnedColumns.compute(training, 2);
+		for (TransparentRandomTree tree : trainer.train(training).trees())
+			assertThresholds(binned, tree);
+	}
+
+	private static void assertThresholds(BinnedColumns binned, TransparentRandomTree tree) {
+		if (tree.isLeaf())
+			return;
+		assertEquals(binned.threshold(tree.attributeIndex(), 0), tree.threshold(), 0);
+		assertThresholds(binned, tree.smallerChild());
+		assertThresholds(binned, tree.biggerChild());
+	}
+
+	@Test
+	public void testSameSeedSameForest() {
+		TrainingMatrix training = generateData(new Random(1), 500);
+		RandomForestTrainer trainer = new RandomForestTrainer();
+		trainer.setNumTrees(10);
+		float[] expected = distributions(trainer.train(training), training);
+		float[] actual = distributions(trainer.train(training), training);
+		assertArrayEquals(expected, actual, 0);
+	}
+
+	@Test
+	public void testUpdate() {
+		// NB: The old samples only cover half of the feature space.
+		TrainingMatrix all = generateData(new Random(1), 2000);
+		TrainingMatrix old = select(all, i -> all.classIndex(i) % 2 == 0);
+		TrainingMatrix data = select(all, i -> all.classIndex(i) % 2 == 0, i -> all.classIndex(
+			i) % 2 == 1);
+		TrainingMatrix test = generateData(new Random(2), 1000);
+		RandomForestTrainer trainer = new RandomForestTrainer();
+		trainer.setNumTrees(20);
+		TransparentRandomForest forest = trainer.train(old);
+		TransparentRandomForest updated = trainer.update(forest, data, old.numberOfSamples(), 15);
+		assertEquals(20, updated.trees().size());
+		for (int i = 0; i < 5; i++)
+			assertSame(forest.trees().get(15 + i), updated.trees().get(i));
+		assertTrue(accuracy(forest, test) < 0.6);
+		assertTrue(accuracy(updated, test) > 0.9);
+	}
+
+	@SafeVarargs
+	private static TrainingMatrix select(TrainingMatrix data, IntPredicate... parts) {
+		ChunkedTrainingMatrix result = new ChunkedTrainingMatrix(data.numberOfFeatures(), data
+			.numberOfClasses());
+		int[] samples = allSamples(data);
+		float[] vector = new float[data.numberOfFeatures()];
+		float[] value = new float[1];
+		for (IntPredicate part : parts)
+			for (int i : samples)
+				if (part.test(i)) {
+					for (int f = 0; f < vector.length; f++) {
+						data.gather(f, samples, i, i + 1, value);
+						vector[f] = value[0];
+					}
+					result.add(vector, 0, data.classIndex(i));
+				}
+		return result;
+	}
+
+	@Test
+	public void testOutOfBagStatistics() {
+		// NB: Only the first two features are informative.
+		TrainingMatrix training = generateData(new Random(1), 2000);
+		RandomForestTrainer trainer = new RandomForestTrainer();
+		trainer.setNumTrees(20);
+		OutOfBagStatistics[] statistics = new OutOfBagStatistics[1];
+		TransparentRandomForest forest = trainer.train(training, s -> statistics[0] = s);
+		assertArrayEquals(distributions(trainer.train(training), training), distributions(forest,
+			training), 0);
+		assertTrue(statistics[0].accuracy() > 0.9);
+		double[] importance = statistics[0].featureImportance();
+		assertTrue(Math.min(importance[0], importance[1]) > 0.1);
+		assertTrue(Math.max(Math.abs(importance[2]), Math.abs(importance[3])) < 0.02);
+		int[] top = statistics[0].mostImportantFeatures(2);
+		Arrays.sort(top);
+		assertArrayEquals(new int[] { 0, 1 }, top);
+	}
+
+	@Test
+	public void testSingleThreaded() {
+		TrainingMatrix training = generateData(new Random(1), 500);
+		RandomForestTrainer trainer = new RandomForestTrainer();
+		float[] expected = distributions(trainer.train(training), training);
+		float[] actual = distributions(Parallelization.runSingleThreaded(() -> trainer.train(
+			training)), training);
+		assertArrayEquals(expected, actual, 0);
+	}
+
+	@Test
+	public void testPureLeafs() {
+		// NB: Without bootstrapping every training sample would be classified
+		// correctly. With 50 trees, each sample is out of bag for only a few trees.
+		TrainingMatrix training = generateData(new Random(1), 300);
+		RandomForestTrainer trainer = new RandomForestTrainer();
+		trainer.setNumTrees(50);
+		trainer.setNumFeatures(NUMBER_OF_FEATURES);
+		assertTrue(accuracy(trainer.train(training), training) > 0.99);
+	}
+
+	/**
+	 * The class of a sample is determined by the first two features. The
+	 * remaining features are noise.
+	 */
+	static TrainingMatrix generateData(Random random, int numberOfSamples) {
+		float[][] columns = new float[NUMBER_OF_FEATURES][numberOfSamples];
+		int[] classes = new int[numberOfSamples];
+		for (int i = 0; i < numberOfSamples; i++) {
+			for (int f = 0; f < NUMBER_OF_FEATURES; f++)
+				columns[f][i] = random.nextFloat();
+			classes[i] = (columns[0][i] > 0.5 ? 1 : 0) + (columns[1][i] > 0.3 ? 2 : 0);
+		}
+		return TrainingMatrix.of(columns, classes, 4);
+	}
+
+	static double accuracy(TransparentRandomForest forest, TrainingMatrix data) {
+		CpuRandomForestCore core = new CpuRandomForestCore(forest);
+		int[] samples = allSamples(data);
+		float[] instances = instances(data, samples);
+		int[] classes = new int[samples.length];
+		float[] distributions = new float[samples.length * core.numberOfClasses()];
+		core.classifyInstances(instances, 0, data.numberOfFeatures(), samples.length,
+			distributions, classes);
+		int correct = 0;
+		for (int i = 0; i < samples.length; i++)
+			if (classes[i] == data.classIndex(i))
+				correct++;
+		return (double) correct / samples.length;
+	}
+
+	private static float[] distributions(TransparentRandomForest forest, TrainingMatrix data) {
+		CpuRandomForestCore core = new CpuRandomForestCore(forest);
+		int[] samples = allSamples(data);
+		float[] distributions = new float[samples.length * core.numberOfClasses()];
+		core.distributionForInstances(instances(data, samples), 0, data.numberOfFeatures(),
+			samples.length, distributions);
+		return distributions;
+	}
+
+	private static int[] allSamples(TrainingMatrix data) {
+		int[] samples = new int[data.numberOfSamples()];
+		for (int i = 0; i < samples.length; i++)
+			samples[i] = i;
+		return samples;
+	}
+
+	private static float[] instances(TrainingMatrix data, int[] samples) {
+		int numberOfFeatures = data.numberOfFeatures();
+		float[] instances = new float[samples.length * numberOfFeatures];
+		float[] column = new float[samples.length];
+		for (int f = 0; f < numberOfFeatures; f++) {
+			data.gather(f, samples, 0, samples.length, column);
+			for (int i = 0; i < samples.length; i++)
+				instances[i * numberOfFeatures + f] = column[i];
+		}
+		return instances;
+	}
+}
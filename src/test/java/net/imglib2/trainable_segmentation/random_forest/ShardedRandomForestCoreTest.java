@@ -0,0 +1,56 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link ShardedRandomForestCore} by comparing the results to
+ * {@link CpuRandomForestCore}. A small shard size is used, to split
+ * moderately sized forests.
+ */
+public class ShardedRandomForestCoreTest {
+
+	private final RandomForestGenerator generator = new RandomForestGenerator(5);
+
+	@Test
+	public void testTwoClasses() {
+		compareToCpuRandomForestCore(2);
+	}
+
+	@Test
+	public void testFiveClasses() {
+		compareToCpuRandomForestCore(5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTreeTooBig() {
+		// NB: A tree of height 1 with two classes needs four probabilities[] entries.
+		TransparentRandomTree tree = TransparentRandomTree.node(0, 0.5, TransparentRandomTree.leaf(
+			new double[] { 1, 0 }), TransparentRandomTree.leaf(new double[] { 0, 1 }));
+		ShardedRandomForestCore.split(new TransparentRandomForest(Collections.singletonList(tree)),
+			3);
+	}
+
+	private void compareToCpuRandomForestCore(int numberOfClasses) {
+		TransparentRandomForest forest = generator.randomForest(100, 9, numberOfClasses);
+		CpuRandomForestCore expectedRf = new CpuRandomForestCore(forest);
+		List<CpuRandomForestCore> shards = ShardedRandomForestCore.split(forest, 1000 *
+			numberOfClasses);
+		assertTrue(shards.size() > 1);
+		ShardedRandomForestCore actualRf = new ShardedRandomForestCore(shards);
+		int numInstances = 200;
+		float[] instances = new float[numInstances * 5];
+		for (int i = 0; i < numInstances; i++)
+			System.arraycopy(generator.randomInstance(), 0, instances, i * 5, 5);
+		float[] expected = new float[numInstances * numberOfClasses];
+		float[] actual = new float[numInstances * numberOfClasses];
+		expectedRf.distributionForInstances(instances, 0, 5, numInstances, expected);
+		actualRf.distributionForInstances(instances, 0, 5, numInstances, actual);
+		assertArrayEquals(expected, actual, 0);
+	}
+}
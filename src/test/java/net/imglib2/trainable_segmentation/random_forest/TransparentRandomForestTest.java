@@ -0,0 +1,43 @@
+package net.imglib2.trainable_segmentation.random_forest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Tests {@link TransparentRandomForest#usedAttributes()} and
+ * {@link TransparentRandomForest#selectAttributes(int[])}.
+ */
+public class TransparentRandomForestTest {
+
+	@Test
+	public void testUsedAttributes() {
+		TransparentRandomTree leaf = TransparentRandomTree.leaf(new double[] { 0.5, 0.5 });
+		TransparentRandomTree tree = TransparentRandomTree.node(7, 0.5, leaf, TransparentRandomTree
+			.node(2, 0.5, leaf, leaf));
+		TransparentRandomForest forest = new TransparentRandomForest(Arrays.asList(tree, leaf));
+		assertArrayEquals(new int[] { 2, 7 }, forest.usedAttributes());
+	}
+
+	@Test
+	public void testSelectAttributes() {
+		RandomForestGenerator generator = new RandomForestGenerator(10);
+		TransparentRandomForest forest = generator.randomForest(5, 3, 2);
+		int[] used = forest.usedAttributes();
+		CpuRandomForestCore expectedRf = new CpuRandomForestCore(forest);
+		CpuRandomForestCore actualRf = new CpuRandomForestCore(forest.selectAttributes(used));
+		for (int i = 0; i < 100; i++) {
+			float[] instance = generator.randomInstance();
+			float[] selected = new float[used.length];
+			for (int j = 0; j < used.length; j++)
+				selected[j] = instance[used[j]];
+			float[] expected = new float[2];
+			float[] actual = new float[2];
+			expectedRf.distributionForInstance(instance, expected);
+			actualRf.distributionForInstance(selected, actual);
+			assertArrayEquals(expected, actual, 0);
+		}
+	}
+}